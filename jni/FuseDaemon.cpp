@@ -1565,7 +1565,9 @@ static void do_read_with_redaction(fuse_req_t req, size_t size, off_t off, fuse_
                                    bool direct_io) {
     handle* h = reinterpret_cast<handle*>(fi->fh);
 
-    std::vector<ReadRange> ranges;
+    // Reused across reads on the same thread to avoid allocating for each one
+    thread_local std::vector<ReadRange> ranges;
+    ranges.clear();
     h->ri->getReadRanges(off, size, &ranges);
 
     // As an optimization, return early if there are no ranges to redact.
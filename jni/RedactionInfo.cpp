@@ -18,7 +18,8 @@
 
 #include <android-base/logging.h>
 
-using std::unique_ptr;
+#include <algorithm>
+
 using std::vector;
 
 namespace mediaprovider {
@@ -115,91 +116,42 @@ RedactionInfo::RedactionInfo(int redaction_ranges_num, const off64_t* redaction_
     processRedactionRanges(redaction_ranges_num, redaction_ranges);
 }
 
-unique_ptr<vector<RedactionRange>> RedactionInfo::getOverlappingRedactionRanges(size_t size,
-                                                                                off64_t off) const {
-    if (hasOverlapWithReadRequest(size, off)) {
-        const off64_t start = off;
-        const off64_t end = static_cast<off64_t>(off + size);
-
-        auto first_redaction = redaction_ranges_.end();
-        auto last_redaction = redaction_ranges_.begin();
-        for (auto iter = redaction_ranges_.begin(); iter != redaction_ranges_.end(); ++iter) {
-            if (iter->second > start && iter->first < end) {
-                if (iter < first_redaction) first_redaction = iter;
-                if (iter > last_redaction) last_redaction = iter;
-            }
-
-            if (iter->first >= end) {
-                break;
-            }
-        }
-
-        if (first_redaction != redaction_ranges_.end()) {
-            CHECK(first_redaction <= last_redaction);
-            return std::make_unique<vector<RedactionRange>>(first_redaction, last_redaction + 1);
-        }
-    }
-    return std::make_unique<vector<RedactionRange>>();
-}
-
 void RedactionInfo::getReadRanges(off64_t off, size_t size, std::vector<ReadRange>* out) const {
-    const auto rr = getOverlappingRedactionRanges(size, off);
-    const size_t num_ranges = rr->size();
-    if (num_ranges == 0) {
+    if (!hasOverlapWithReadRequest(size, off)) {
         return;
     }
 
     const off64_t read_start = off;
     const off64_t read_end = static_cast<off64_t>(read_start + size);
 
-    // The algorithm for computing redaction ranges is very simple.
-    // Given a set of overlapping redaction ranges [s1, e1) [s2, e2) .. [sN, eN) for a read
-    // [s, e)
-    //
-    // We can construct a series of indices that we know will be the starts of every read range
-    // that we intend to return. Then, it's relatively simple to compute the lengths of the ranges.
-    // Also note that the read ranges we return always alternate in whether they're redacting or
-    // not. i.e, we will never return two consecutive redacting ranges or non redacting ranges.
-    std::vector<off64_t> sorted_indices;
-
-    // Compute the list of indices -- this list will always contain { e1, s2, e2... sN }
-    // In addition, it may contain s or both (s and s1), depending on the start index.
-    // In addition, it may contain e or both (e and eN), depending on the end index.
+    // Redaction ranges are sorted and never overlap or touch, so their ends are sorted too, and
+    // the first range that can overlap the read is the first one ending after it starts.
+    auto iter = std::upper_bound(
+            redaction_ranges_.begin(), redaction_ranges_.end(), read_start,
+            [](off64_t start, const RedactionRange& range) { return start < range.second; });
+
+    // Emit read ranges as we walk the overlapping redaction ranges, alternating between the
+    // gaps before them and the parts of them covered by the read.
     //
     // For a concrete example, consider ranges [10, 20) and [30, 40)
-    // For a read [0, 60) : sorted_indices will be { 0, 10, 20, 30, 40, 60 } is_first = false
-    // For a read [15, 60) : sorted_indices will be { 15, 20, 30, 40, 60 } is_first = true
-    // For a read [0, 35) : sorted_indices will be { 0, 10, 20, 30, 35 } is_first = false
-    // For a read [15, 35) : sorted_indices will be { 15, 20, 30, 35 } is_first = true
-    for (int i = 0; i < num_ranges; ++i) {
-        sorted_indices.push_back(rr->at(i).first);
-        sorted_indices.push_back(rr->at(i).second);
-    }
-
-    // Find the right position for read_start in sorted_indices
-    // Either insert at the beginning or replace s1 with read_start
-    bool is_first_range_redaction = true;
-    if (read_start < rr->at(0).first) {
-        is_first_range_redaction = false;
-        sorted_indices.insert(sorted_indices.begin(), read_start);
-    } else {
-        sorted_indices.front() = read_start;
-    }
-
-    // Find the right position for read_end in sorted_indices
-    // Either insert at the end or replace eN with read_end
-    if (read_end > rr->at(num_ranges - 1).second) {
-        sorted_indices.push_back(read_end);
-    } else {
-        sorted_indices.back() = read_end;
+    // For a read [0, 60) we'll return { 0, 10, false } { 10, 10, true } { 20, 10, false }
+    //     { 30, 10, true } { 40, 20, false }
+    // For a read [15, 35) we'll return { 15, 5, true } { 20, 10, false } { 30, 5, true }
+    off64_t pos = read_start;
+    for (; iter != redaction_ranges_.end() && iter->first < read_end; ++iter) {
+        const off64_t redaction_start = std::max(iter->first, read_start);
+        const off64_t redaction_end = std::min(iter->second, read_end);
+        if (redaction_start > pos) {
+            out->emplace_back(pos, redaction_start - pos, false);
+        }
+        CHECK(redaction_end > redaction_start);
+        out->emplace_back(redaction_start, redaction_end - redaction_start, true);
+        pos = redaction_end;
     }
 
-    bool is_redaction = is_first_range_redaction;
-    for (int i = 0; i < (sorted_indices.size() - 1); ++i) {
-        const off64_t read_size = sorted_indices[i + 1] - sorted_indices[i];
-        CHECK(read_size > 0);
-        out->push_back(ReadRange(sorted_indices[i], read_size, is_redaction));
-        is_redaction = !is_redaction;
+    // Only return ranges when the read overlaps any redaction range
+    if (pos != read_start && pos < read_end) {
+        out->emplace_back(pos, read_end - pos, false);
     }
 }
 
@@ -20,6 +20,7 @@
 
 #include <memory>
 #include <ostream>
+#include <random>
 #include <vector>
 
 #include "libfuse_jni/RedactionInfo.h"
@@ -381,4 +382,73 @@ TEST(RedactionInfoTest, testSingleRedactionRangesZeroSize) {
     EXPECT_EQ(0, out.size());
 }
 
+// Computes read ranges one byte at a time, as a reference to compare against.
+static vector<ReadRange> getReadRangesByByte(const vector<off64_t>& ranges, off64_t off,
+                                             size_t size) {
+    vector<bool> redacted(size);
+    bool any_redacted = false;
+    for (int i = 0; i < ranges.size(); i += 2) {
+        for (off64_t pos = std::max(ranges[i], off);
+             pos < std::min(ranges[i + 1], static_cast<off64_t>(off + size)); ++pos) {
+            redacted[pos - off] = true;
+            any_redacted = true;
+        }
+    }
+
+    vector<ReadRange> out;
+    if (!any_redacted) {
+        return out;
+    }
+    size_t start = 0;
+    for (size_t i = 1; i <= size; ++i) {
+        if (i == size || redacted[i] != redacted[start]) {
+            out.push_back(ReadRange(off + start, i - start, redacted[start]));
+            start = i;
+        }
+    }
+    return out;
+}
+
+// Randomly overlapping, adjoining and zero size ranges, compared against the reference.
+TEST(RedactionInfoTest, testRandomRedactionRanges) {
+    std::mt19937 random(42);
+    for (int iteration = 0; iteration < 1000; ++iteration) {
+        const int num_ranges = random() % 20;
+        vector<off64_t> ranges;
+        for (int i = 0; i < num_ranges; ++i) {
+            const off64_t start = random() % 500;
+            ranges.push_back(start);
+            ranges.push_back(start + random() % 50);
+        }
+        RedactionInfo info(num_ranges, ranges.data());
+
+        for (int read = 0; read < 50; ++read) {
+            const off64_t off = random() % 600;
+            const size_t size = 1 + random() % 200;
+
+            vector<ReadRange> out;
+            info.getReadRanges(off, size, &out);
+            EXPECT_EQ(getReadRangesByByte(ranges, off, size), out)
+                    << "read [" << off << ", " << off + size << ")";
+        }
+    }
+}
+
+// Appending to a vector that already holds ranges from a previous read.
+TEST(RedactionInfoTest, testReusedOutput) {
+    // [10, 20), [30, 40)
+    off64_t ranges[4] = {10, 20, 30, 40};
+
+    RedactionInfo info = RedactionInfo(2, ranges);
+
+    std::vector<ReadRange> out;
+    info.getReadRanges(0, 15, &out);  // read offsets [0, 15)
+    info.getReadRanges(35, 10, &out);  // read offsets [35, 45)
+    EXPECT_EQ(4, out.size());
+    EXPECT_EQ(ReadRange(0, 10, false), out[0]);  // offsets: [0, 10) len = 10
+    EXPECT_EQ(ReadRange(10, 5, true), out[1]);   // offsets: [10, 15) len = 5
+    EXPECT_EQ(ReadRange(35, 5, true), out[2]);   // offsets: [35, 40) len = 5
+    EXPECT_EQ(ReadRange(40, 5, false), out[3]);  // offsets: [40, 45) len = 5
+}
+
 }  // namespace mediaprovider::fuse
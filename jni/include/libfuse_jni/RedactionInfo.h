@@ -70,7 +70,12 @@ class RedactionInfo {
 
     /**
      * Returns a set of ranges to fulfill a read request starting at |off| of size
-     * |size|.
+     * |size|, by appending them to |out|. Nothing is appended if the read doesn't
+     * overlap any redaction range.
+     *
+     * <p>Runs in time logarithmic in the number of redaction ranges plus linear in
+     * the number of ranges returned, and allocates nothing beyond growing |out|, so
+     * callers can reuse the same vector across reads.
      */
     void getReadRanges(off64_t off, size_t size, std::vector<ReadRange>* out) const;
 
@@ -84,21 +89,6 @@ class RedactionInfo {
     int size() const;
 
   private:
-    /**
-     * Calculates the redaction ranges that overlap with a given read request.
-     * The read request is defined by its size and the offset of its first byte.
-     *
-     * <p>The returned ranges are guaranteed to be:
-     *     * Non-overlapping (with each other)
-     *     * Sorted in an ascending order of offset
-     *
-     * @param size size of the read request
-     * @param off offset of the first byte of the read request
-     * @return unique_ptr to a vector of RedactionRanges. If there are no
-     * relevant redaction ranges, the vector will be empty.
-     */
-    std::unique_ptr<std::vector<RedactionRange>> getOverlappingRedactionRanges(size_t size,
-                                                                               off64_t off) const;
     std::vector<RedactionRange> redaction_ranges_;
     void processRedactionRanges(int redaction_ranges_num, const off64_t* redaction_ranges);
     bool hasOverlapWithReadRequest(size_t size, off64_t off) const;
@@ -54,6 +54,7 @@ import android.provider.MediaStore.Video;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -85,6 +86,7 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -94,7 +96,9 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 
@@ -164,6 +168,23 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
 
     private static final int NOTIFY_BATCH_SIZE = 256;
 
+    /**
+     * Device config keys for the window in milliseconds over which change
+     * notifications for each database are merged before being dispatched.
+     * A value of {@code 0} dispatches notifications as soon as possible.
+     */
+    public static final String NOTIFY_COALESCE_WINDOW_MS_INTERNAL_KEY =
+            "notify_coalesce_window_ms_internal";
+    public static final String NOTIFY_COALESCE_WINDOW_MS_EXTERNAL_KEY =
+            "notify_coalesce_window_ms_external";
+
+    /**
+     * Device config key for the number of {@link Uri} in a single dispatch
+     * beyond which items are collapsed into their collection {@link Uri}.
+     * A value of {@code 0} disables collapsing.
+     */
+    public static final String NOTIFY_COLLAPSE_THRESHOLD_KEY = "notify_collapse_threshold";
+
     final Context mContext;
     final String mName;
     final int mVersion;
@@ -214,6 +235,18 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
     /** Stores cached value of next row id of the database which optimises new id inserts. */
     private AtomicLong mNextRowIdBackup = new AtomicLong(INVALID_ROW_ID);
 
+    private volatile long mNotifyCoalesceWindowMillis;
+    private volatile int mNotifyCollapseThreshold;
+
+    /**
+     * Map from {@code flags} value to set of {@link Uri} waiting for the
+     * current coalescing window to elapse.
+     */
+    @GuardedBy("mPendingNotifyChanges")
+    private final SparseArray<ArraySet<Uri>> mPendingNotifyChanges = new SparseArray<>();
+    @GuardedBy("mPendingNotifyChanges")
+    private boolean mPendingNotifyScheduled;
+
     public interface OnSchemaChangeListener {
         void onSchemaChange(@NonNull String volumeName, int versionFrom, int versionTo,
                 long itemCount, long durationMillis, String databaseUuid);
@@ -351,12 +384,12 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.setCustomScalarFunction("_INSERT", (arg) -> {
             if (arg != null && mFilesListener != null
                     && !mSchemaLock.isWriteLockedByCurrentThread()) {
-                final String[] split = arg.split(":", 5);
-                final String volumeName = split[0];
-                final long id = Long.parseLong(split[1]);
-                final int mediaType = Integer.parseInt(split[2]);
-                final boolean isDownload = Integer.parseInt(split[3]) != 0;
-                final boolean isPending = Integer.parseInt(split[4]) != 0;
+                final TriggerArgs args = new TriggerArgs(arg);
+                final String volumeName = args.nextString();
+                final long id = args.nextLong();
+                final int mediaType = args.nextInt();
+                final boolean isDownload = args.nextBoolean();
+                final boolean isPending = args.nextBoolean();
 
                 FileRow insertedRow = FileRow.newBuilder(id)
                         .setVolumeName(volumeName)
@@ -376,25 +409,25 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.setCustomScalarFunction("_UPDATE", (arg) -> {
             if (arg != null && mFilesListener != null
                     && !mSchemaLock.isWriteLockedByCurrentThread()) {
-                final String[] split = arg.split(":", 18);
-                final String volumeName = split[0];
-                final long oldId = Long.parseLong(split[1]);
-                final int oldMediaType = Integer.parseInt(split[2]);
-                final boolean oldIsDownload = Integer.parseInt(split[3]) != 0;
-                final long newId = Long.parseLong(split[4]);
-                final int newMediaType = Integer.parseInt(split[5]);
-                final boolean newIsDownload = Integer.parseInt(split[6]) != 0;
-                final boolean oldIsTrashed = Integer.parseInt(split[7]) != 0;
-                final boolean newIsTrashed = Integer.parseInt(split[8]) != 0;
-                final boolean oldIsPending = Integer.parseInt(split[9]) != 0;
-                final boolean newIsPending = Integer.parseInt(split[10]) != 0;
-                final boolean oldIsFavorite = Integer.parseInt(split[11]) != 0;
-                final boolean newIsFavorite = Integer.parseInt(split[12]) != 0;
-                final int oldSpecialFormat = Integer.parseInt(split[13]);
-                final int newSpecialFormat = Integer.parseInt(split[14]);
-                final String oldOwnerPackage = split[15];
-                final String newOwnerPackage = split[16];
-                final String oldPath = split[17];
+                final TriggerArgs args = new TriggerArgs(arg);
+                final String volumeName = args.nextString();
+                final long oldId = args.nextLong();
+                final int oldMediaType = args.nextInt();
+                final boolean oldIsDownload = args.nextBoolean();
+                final long newId = args.nextLong();
+                final int newMediaType = args.nextInt();
+                final boolean newIsDownload = args.nextBoolean();
+                final boolean oldIsTrashed = args.nextBoolean();
+                final boolean newIsTrashed = args.nextBoolean();
+                final boolean oldIsPending = args.nextBoolean();
+                final boolean newIsPending = args.nextBoolean();
+                final boolean oldIsFavorite = args.nextBoolean();
+                final boolean newIsFavorite = args.nextBoolean();
+                final int oldSpecialFormat = args.nextInt();
+                final int newSpecialFormat = args.nextInt();
+                final String oldOwnerPackage = args.nextString();
+                final String newOwnerPackage = args.nextString();
+                final String oldPath = args.remaining();
 
                 FileRow oldRow = FileRow.newBuilder(oldId)
                         .setVolumeName(volumeName)
@@ -430,13 +463,13 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.setCustomScalarFunction("_DELETE", (arg) -> {
             if (arg != null && mFilesListener != null
                     && !mSchemaLock.isWriteLockedByCurrentThread()) {
-                final String[] split = arg.split(":", 6);
-                final String volumeName = split[0];
-                final long id = Long.parseLong(split[1]);
-                final int mediaType = Integer.parseInt(split[2]);
-                final boolean isDownload = Integer.parseInt(split[3]) != 0;
-                final String ownerPackage = split[4];
-                final String path = split[5];
+                final TriggerArgs args = new TriggerArgs(arg);
+                final String volumeName = args.nextString();
+                final long id = args.nextLong();
+                final int mediaType = args.nextInt();
+                final boolean isDownload = args.nextBoolean();
+                final String ownerPackage = args.nextString();
+                final String path = args.remaining();
 
                 FileRow deletedRow = FileRow.newBuilder(id)
                         .setVolumeName(volumeName)
@@ -467,6 +500,73 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         });
     }
 
+    /**
+     * Parser for the {@code ':'}-delimited argument passed by the triggers
+     * created in {@link #createLatestTriggers}. Custom scalar functions can
+     * only accept a single string argument, so this decodes numeric fields in
+     * place rather than splitting into substrings for every affected row. The
+     * final field is read with {@link #remaining()}, so it may contain
+     * {@code ':'} itself.
+     */
+    @VisibleForTesting
+    static final class TriggerArgs {
+        private final String mArg;
+        private int mPos;
+
+        TriggerArgs(@NonNull String arg) {
+            mArg = arg;
+        }
+
+        private int nextDelimiter() {
+            final int end = mArg.indexOf(':', mPos);
+            if (end == -1) {
+                throw new IllegalArgumentException("Missing field in trigger argument " + mArg);
+            }
+            return end;
+        }
+
+        @NonNull String nextString() {
+            final int end = nextDelimiter();
+            final String res = mArg.substring(mPos, end);
+            mPos = end + 1;
+            return res;
+        }
+
+        long nextLong() {
+            final int end = nextDelimiter();
+            int i = mPos;
+            final boolean negative = (i < end && mArg.charAt(i) == '-');
+            if (negative) i++;
+            if (i == end) {
+                throw new NumberFormatException("Empty numeric field in " + mArg);
+            }
+            long res = 0;
+            for (; i < end; i++) {
+                final int digit = mArg.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Invalid numeric field in " + mArg);
+                }
+                res = res * 10 + digit;
+            }
+            mPos = end + 1;
+            return negative ? -res : res;
+        }
+
+        int nextInt() {
+            return (int) nextLong();
+        }
+
+        boolean nextBoolean() {
+            return nextLong() != 0;
+        }
+
+        @NonNull String remaining() {
+            final String res = mArg.substring(mPos);
+            mPos = mArg.length();
+            return res;
+        }
+    }
+
     @Override
     public void onCreate(final SQLiteDatabase db) {
         Log.v(TAG, "onCreate() for " + mName);
@@ -702,6 +802,13 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
          * with other more important tasks.
          */
         public final ArrayList<Runnable> backgroundTasks = new ArrayList<>();
+
+        /**
+         * Map from batch type to a batch of side-effects that have been
+         * accumulated via {@link #postBackgroundBatched} during this
+         * transaction, and which are run after {@link #backgroundTasks}.
+         */
+        public final ArrayMap<Class<?>, Runnable> backgroundBatches = new ArrayMap<>();
     }
 
     public boolean isTransactionActive() {
@@ -772,19 +879,37 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
             // doesn't steal resources from the more important foreground work
             ForegroundThread.getExecutor().execute(() -> {
                 for (int i = 0; i < state.notifyChanges.size(); i++) {
-                    notifyChangeInternal(state.notifyChanges.valueAt(i),
+                    dispatchChanges(state.notifyChanges.valueAt(i),
                             state.notifyChanges.keyAt(i));
                 }
 
                 // Now that we've finished with all our important work, we can
-                // finally kick off any internal background tasks
-                for (int i = 0; i < state.backgroundTasks.size(); i++) {
-                    BackgroundThread.getExecutor().execute(state.backgroundTasks.get(i));
+                // finally kick off any internal background tasks; we run them
+                // as a single task so that bulk operations don't flood the
+                // background executor with a task per affected row
+                if (!state.backgroundTasks.isEmpty() || !state.backgroundBatches.isEmpty()) {
+                    BackgroundThread.getExecutor().execute(() -> {
+                        runBackgroundTasks(state);
+                    });
                 }
             });
         }
     }
 
+    private static void runBackgroundTasks(@NonNull TransactionState state) {
+        Trace.beginSection("runBackgroundTasks");
+        try {
+            for (int i = 0; i < state.backgroundTasks.size(); i++) {
+                state.backgroundTasks.get(i).run();
+            }
+            for (int i = 0; i < state.backgroundBatches.size(); i++) {
+                state.backgroundBatches.valueAt(i).run();
+            }
+        } finally {
+            Trace.endSection();
+        }
+    }
+
     /**
      * Execute the given operation inside a transaction. If the calling thread
      * is not already in an active transaction, this method will wrap the given
@@ -861,6 +986,10 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 state.notifyChanges.put(flags, set);
             }
             set.add(uri);
+        } else if (mNotifyCoalesceWindowMillis > 0) {
+            ForegroundThread.getExecutor().execute(() -> {
+                dispatchChanges(Collections.singleton(uri), flags);
+            });
         } else {
             ForegroundThread.getExecutor().execute(() -> {
                 notifySingleChangeInternal(uri, flags);
@@ -868,6 +997,95 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         }
     }
 
+    /**
+     * Configure how change notifications are dispatched once their
+     * transaction has finished.
+     *
+     * @param windowMillis window over which notifications are merged across
+     *            transactions, or {@code 0} to dispatch them immediately.
+     * @param collapseThreshold number of {@link Uri} in a single dispatch
+     *            beyond which items are collapsed into their collection, or
+     *            {@code 0} to never collapse.
+     */
+    public void setNotifyCoalescing(long windowMillis, int collapseThreshold) {
+        mNotifyCoalesceWindowMillis = Math.max(0, windowMillis);
+        mNotifyCollapseThreshold = Math.max(0, collapseThreshold);
+    }
+
+    private void dispatchChanges(@NonNull Collection<Uri> uris, int flags) {
+        final long windowMillis = mNotifyCoalesceWindowMillis;
+        if (windowMillis <= 0) {
+            notifyChangeInternal(collapseUris(uris, mNotifyCollapseThreshold), flags);
+            return;
+        }
+
+        synchronized (mPendingNotifyChanges) {
+            ArraySet<Uri> set = mPendingNotifyChanges.get(flags);
+            if (set == null) {
+                set = new ArraySet<>();
+                mPendingNotifyChanges.put(flags, set);
+            }
+            set.addAll(uris);
+            if (!mPendingNotifyScheduled) {
+                mPendingNotifyScheduled = true;
+                ForegroundThread.getHandler().postDelayed(this::dispatchPendingChanges,
+                        windowMillis);
+            }
+        }
+    }
+
+    private void dispatchPendingChanges() {
+        final SparseArray<ArraySet<Uri>> pending;
+        synchronized (mPendingNotifyChanges) {
+            pending = mPendingNotifyChanges.clone();
+            mPendingNotifyChanges.clear();
+            mPendingNotifyScheduled = false;
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            notifyChangeInternal(collapseUris(pending.valueAt(i), mNotifyCollapseThreshold),
+                    pending.keyAt(i));
+        }
+    }
+
+    /**
+     * Collapse the given {@link Uri} into their collections when there are
+     * more than the given threshold. Observers of an item are still notified,
+     * since {@link ContentResolver} delivers changes of a collection to all
+     * observers of its descendants.
+     */
+    @VisibleForTesting
+    static @NonNull Collection<Uri> collapseUris(@NonNull Collection<Uri> uris, int threshold) {
+        if (threshold <= 0 || uris.size() <= threshold) {
+            return uris;
+        }
+
+        // Group items by their parent, together with that parent when it's
+        // notified itself, leaving any other non-item Uri alone
+        final ArrayMap<String, List<Uri>> groups = new ArrayMap<>();
+        for (Uri uri : uris) {
+            final String path = uri.getPath();
+            final String segment = uri.getLastPathSegment();
+            final String key;
+            if (path != null && segment != null && TextUtils.isDigitsOnly(segment)) {
+                key = uri.getAuthority() + path.substring(0, path.lastIndexOf('/'));
+            } else {
+                key = uri.getAuthority() + path;
+            }
+            List<Uri> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(uri);
+        }
+
+        final ArraySet<Uri> res = new ArraySet<>();
+        for (int i = 0; i < groups.size(); i++) {
+            res.add(MediaProvider.computeCommonPrefix(groups.valueAt(i)));
+        }
+        return res;
+    }
+
     private void notifySingleChangeInternal(@NonNull Uri uri, int flags) {
         Trace.beginSection("notifySingleChange");
         try {
@@ -916,6 +1134,31 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         }
     }
 
+    /**
+     * Accumulate a side-effect into a batch of the given type, to be run in
+     * background after any current transaction has finished. Each transaction
+     * holds at most one batch of each type, which is created on demand using
+     * the given factory and then passed to the given operation. If there is
+     * no active transaction, a new batch is immediately dispatched to run in
+     * the background.
+     */
+    public <T extends Runnable> void postBackgroundBatched(@NonNull Class<T> type,
+            @NonNull Supplier<T> factory, @NonNull Consumer<T> op) {
+        final TransactionState state = mTransactionState.get();
+        if (state != null) {
+            T batch = type.cast(state.backgroundBatches.get(type));
+            if (batch == null) {
+                batch = factory.get();
+                state.backgroundBatches.put(type, batch);
+            }
+            op.accept(batch);
+        } else {
+            final T batch = factory.get();
+            op.accept(batch);
+            BackgroundThread.getExecutor().execute(batch);
+        }
+    }
+
     /**
      * This method cleans up any files created by android.media.MiniThumbFile, removed after P.
      * It's triggered during database update only, in order to run only once.
@@ -1518,6 +1761,14 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         c.close();
     }
 
+    /**
+     * Creates the triggers that report every change to the files table to
+     * {@link OnFilesChangeListener} as it happens. Buffering changes in a
+     * table for the listener to drain at commit isn't an option: writes made
+     * through {@link #runWithoutTransaction} autocommit with no hook to drain
+     * from, and the listener must see each row before the commit, e.g. to
+     * back up the next row id and invalidate file access xattrs.
+     */
     private static void createLatestTriggers(SQLiteDatabase db) {
         makePristineTriggers(db);
 
@@ -61,7 +61,8 @@ import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 
 import com.android.modules.utils.build.SdkLevel;
-import com.android.providers.media.util.LongArray;
+import com.android.providers.media.util.LongHashMap;
+import com.android.providers.media.util.LongHashSet;
 import com.android.providers.media.util.UserCache;
 
 import java.util.Locale;
@@ -291,28 +292,85 @@ public class LocalCallingIdentity {
     public static final int APPOP_REQUEST_INSTALL_PACKAGES_FOR_SHARED_UID = 1 << 25;
     public static final int PERMISSION_ACCESS_MTP = 1 << 26;
 
+    /**
+     * Permissions consulted by nearly every file access, which
+     * {@link #resolveCommonPermissions()} resolves in one pass.
+     */
+    public static final int PERMISSIONS_COMMON = PERMISSION_IS_SELF | PERMISSION_IS_SHELL
+            | PERMISSION_IS_MANAGER | PERMISSION_IS_DELEGATOR | PERMISSION_IS_REDACTION_NEEDED
+            | PERMISSION_IS_LEGACY_GRANTED | PERMISSION_IS_LEGACY_READ
+            | PERMISSION_IS_LEGACY_WRITE | PERMISSION_READ_AUDIO | PERMISSION_READ_VIDEO
+            | PERMISSION_READ_IMAGES | PERMISSION_WRITE_AUDIO | PERMISSION_WRITE_VIDEO
+            | PERMISSION_WRITE_IMAGES | PERMISSION_IS_SYSTEM_GALLERY
+            | PERMISSION_WRITE_EXTERNAL_STORAGE;
+
     private volatile int hasPermission;
     private volatile int hasPermissionResolved;
 
     public boolean hasPermission(int permission) {
         if ((hasPermissionResolved & permission) == 0) {
-            if (hasPermissionInternal(permission)) {
+            enforceUserRestrictions();
+            setPermissionResolved(permission, hasPermissionInternal(permission));
+        }
+        return (hasPermission & permission) != 0;
+    }
+
+    /**
+     * Resolve all {@link #PERMISSIONS_COMMON} up front, so that later checks
+     * don't each pay for their own binder calls. Unlike
+     * {@link #hasPermission(int)}, this never throws for a restricted shell
+     * user; it leaves the permissions unresolved instead, so that they're
+     * enforced when checked.
+     */
+    public void resolveCommonPermissions() {
+        if (isShellRestricted()) {
+            return;
+        }
+        getPackageName();
+        getSharedPackageNames();
+        getTargetSdkVersion();
+
+        // Resolve in ascending order, since some permissions are derived from
+        // lower ones, such as PERMISSION_IS_LEGACY_READ from
+        // PERMISSION_IS_LEGACY_GRANTED
+        int pending = PERMISSIONS_COMMON & ~hasPermissionResolved;
+        while (pending != 0) {
+            final int permission = Integer.lowestOneBit(pending);
+            pending &= ~permission;
+            if ((hasPermissionResolved & permission) == 0) {
+                setPermissionResolved(permission, hasPermissionInternal(permission));
+            }
+        }
+    }
+
+    private void setPermissionResolved(int permission, boolean granted) {
+        // Callers on several threads may resolve different permissions of the
+        // same identity at once, so updates mustn't be lost
+        synchronized (lock) {
+            if (granted) {
                 hasPermission |= permission;
             }
             hasPermissionResolved |= permission;
         }
-        return (hasPermission & permission) != 0;
     }
 
-    private boolean hasPermissionInternal(int permission) {
-        boolean targetSdkIsAtLeastT = getTargetSdkVersion() > Build.VERSION_CODES.S_V2;
-        // While we're here, enforce any broad user-level restrictions
-        if ((uid == Process.SHELL_UID) && context.getSystemService(UserManager.class)
-                .hasUserRestriction(UserManager.DISALLOW_USB_FILE_TRANSFER)) {
+    private boolean isShellRestricted() {
+        return (uid == Process.SHELL_UID) && context.getSystemService(UserManager.class)
+                .hasUserRestriction(UserManager.DISALLOW_USB_FILE_TRANSFER);
+    }
+
+    /**
+     * Enforce any broad user-level restrictions.
+     */
+    private void enforceUserRestrictions() {
+        if (isShellRestricted()) {
             throw new SecurityException(
                     "Shell user cannot access files for user " + UserHandle.myUserId());
         }
+    }
 
+    private boolean hasPermissionInternal(int permission) {
+        boolean targetSdkIsAtLeastT = getTargetSdkVersion() > Build.VERSION_CODES.S_V2;
         switch (permission) {
             case PERMISSION_IS_SELF:
                 return checkPermissionSelf(context, pid, uid);
@@ -503,25 +561,20 @@ public class LocalCallingIdentity {
     }
 
     @GuardedBy("lock")
-    private final LongArray ownedIds = new LongArray();
+    private final LongHashSet ownedIds = new LongHashSet();
 
     public boolean isOwned(long id) {
         synchronized (lock) {
-            return ownedIds.indexOf(id) != -1;
+            return ownedIds.contains(id);
         }
     }
 
     public void setOwned(long id, boolean owned) {
         synchronized (lock) {
-            final int index = ownedIds.indexOf(id);
             if (owned) {
-                if (index == -1) {
-                    ownedIds.add(id);
-                }
+                ownedIds.add(id);
             } else {
-                if (index != -1) {
-                    ownedIds.remove(index);
-                }
+                ownedIds.remove(id);
             }
         }
     }
@@ -529,21 +582,36 @@ public class LocalCallingIdentity {
     @GuardedBy("lock")
     private final ArrayMap<String, Long> rowIdOfDeletedPaths = new ArrayMap<>();
 
+    /**
+     * Reverse index of {@link #rowIdOfDeletedPaths}. Neither is bounded, since
+     * forgetting a deleted path would make deleting it again fail instead of
+     * being a no-op.
+     */
+    @GuardedBy("lock")
+    private final LongHashMap<String> deletedPathOfRowIds = new LongHashMap<>();
+
     public void addDeletedRowId(@NonNull String path, long id) {
         synchronized (lock) {
-            rowIdOfDeletedPaths.put(path.toLowerCase(Locale.ROOT), id);
+            final String key = path.toLowerCase(Locale.ROOT);
+            final Long previousId = rowIdOfDeletedPaths.put(key, id);
+            if (previousId != null && previousId != id) {
+                deletedPathOfRowIds.remove(previousId);
+            }
+            final String previousPath = deletedPathOfRowIds.put(id, key);
+            if (previousPath != null && !previousPath.equals(key)) {
+                rowIdOfDeletedPaths.remove(previousPath);
+            }
         }
     }
 
     public boolean removeDeletedRowId(long id) {
         synchronized (lock) {
-            int index = rowIdOfDeletedPaths.indexOfValue(id);
-            final boolean isDeleted = index > -1;
-            while (index > -1) {
-                rowIdOfDeletedPaths.removeAt(index);
-                index = rowIdOfDeletedPaths.indexOfValue(id);
+            final String path = deletedPathOfRowIds.remove(id);
+            if (path == null) {
+                return false;
             }
-            return isDeleted;
+            rowIdOfDeletedPaths.remove(path);
+            return true;
         }
     }
 
@@ -17,6 +17,7 @@
 package com.android.providers.media;
 
 import static android.Manifest.permission.ACCESS_MEDIA_LOCATION;
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
 import static android.app.AppOpsManager.permissionToOp;
 import static android.app.PendingIntent.FLAG_CANCEL_CURRENT;
 import static android.app.PendingIntent.FLAG_IMMUTABLE;
@@ -107,6 +108,7 @@ import static com.android.providers.media.util.SyntheticPathUtils.isRedactedPath
 import static com.android.providers.media.util.SyntheticPathUtils.isSyntheticPath;
 
 import android.annotation.IntDef;
+import android.app.ActivityManager;
 import android.app.AppOpsManager;
 import android.app.AppOpsManager.OnOpActiveChangedListener;
 import android.app.AppOpsManager.OnOpChangedListener;
@@ -162,6 +164,7 @@ import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.IBinder;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.OnCloseListener;
 import android.os.Parcelable;
@@ -205,9 +208,9 @@ import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.LongSparseArray;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.Size;
-import android.util.SparseArray;
 import android.webkit.MimeTypeMap;
 
 import androidx.annotation.GuardedBy;
@@ -233,12 +236,14 @@ import com.android.providers.media.playlist.Playlist;
 import com.android.providers.media.scan.MediaScanner;
 import com.android.providers.media.scan.ModernMediaScanner;
 import com.android.providers.media.util.CachedSupplier;
+import com.android.providers.media.util.CopyOnWriteSparseArray;
 import com.android.providers.media.util.DatabaseUtils;
 import com.android.providers.media.util.FileUtils;
 import com.android.providers.media.util.ForegroundThread;
 import com.android.providers.media.util.IsoInterface;
 import com.android.providers.media.util.Logging;
 import com.android.providers.media.util.LongArray;
+import com.android.providers.media.util.LongBitmap;
 import com.android.providers.media.util.Metrics;
 import com.android.providers.media.util.MimeUtils;
 import com.android.providers.media.util.PermissionUtils;
@@ -258,6 +263,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
@@ -278,10 +284,13 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
@@ -370,6 +379,11 @@ public class MediaProvider extends ContentProvider {
 
     private static final int NON_HIDDEN_CACHE_SIZE = 50;
 
+    /**
+     * Number of files whose redaction ranges are cached.
+     */
+    private static final int REDACTION_CACHE_SIZE = 512;
+
     /**
      * This is required as idle maintenance maybe stopped anytime; we do not want to query
      * and accumulate values to update for a long time, instead we want to batch query and update
@@ -377,6 +391,12 @@ public class MediaProvider extends ContentProvider {
      */
     private static final int IDLE_MAINTENANCE_ROWS_LIMIT = 1000;
 
+    /**
+     * Number of rows whose paths are resolved by a single query when updating
+     * quota types in bulk.
+     */
+    private static final int QUOTA_BATCH_SIZE = 500;
+
     /**
      * Where clause to match pending files from FUSE. Pending files from FUSE will not have
      * PATTERN_PENDING_FILEPATH_FOR_SQL pattern.
@@ -508,55 +528,117 @@ public class MediaProvider extends ContentProvider {
      * maintained in this map while the UID is actively working with a
      * performance-critical component, such as camera.
      */
-    @GuardedBy("mCachedCallingIdentity")
-    private final SparseArray<LocalCallingIdentity> mCachedCallingIdentity = new SparseArray<>();
+    private final CopyOnWriteSparseArray<LocalCallingIdentity> mCachedCallingIdentity =
+            new CopyOnWriteSparseArray<>();
 
     private final OnOpActiveChangedListener mActiveListener = (code, uid, packageName, active) -> {
-        synchronized (mCachedCallingIdentity) {
-            if (active) {
-                // TODO moltmann: Set correct featureId
-                mCachedCallingIdentity.put(uid,
-                        LocalCallingIdentity.fromExternal(getContext(), mUserCache, uid,
-                            packageName, null));
-            } else {
-                mCachedCallingIdentity.remove(uid);
-            }
+        if (active) {
+            // Keep any identity cached by a concurrent callback, unless the UID
+            // went inactive while this one was built
+            final long generation = mCachedCallingIdentity.getGeneration();
+            // TODO moltmann: Set correct featureId
+            mCachedCallingIdentity.putIfAbsent(uid,
+                    LocalCallingIdentity.fromExternal(getContext(), mUserCache, uid,
+                        packageName, null), generation);
+        } else {
+            mCachedCallingIdentity.remove(uid);
         }
     };
 
     /**
      * Map from UID to cached {@link LocalCallingIdentity}. Values are only
      * maintained in this map until there's any change in the appops needed or packages
-     * used in the {@link LocalCallingIdentity}.
+     * used in the {@link LocalCallingIdentity}. Lookups don't lock, since every
+     * FUSE thread goes through this map.
      */
-    @GuardedBy("mCachedCallingIdentityForFuse")
-    private final SparseArray<LocalCallingIdentity> mCachedCallingIdentityForFuse =
-            new SparseArray<>();
+    private final CopyOnWriteSparseArray<LocalCallingIdentity> mCachedCallingIdentityForFuse =
+            new CopyOnWriteSparseArray<>();
 
-    private OnOpChangedListener mModeListener =
-            (op, packageName) -> invalidateLocalCallingIdentityCache(packageName, "op " + op);
+    private OnOpChangedListener mModeListener = (op, packageName) -> {
+        invalidateLocalCallingIdentityCache(packageName, "op " + op);
+        prefetchCachedCallingIdentity(packageName);
+    };
 
     /**
      * Retrieves a cached calling identity or creates a new one. Also, always sets the app-op
      * description for the calling identity.
      */
     private LocalCallingIdentity getCachedCallingIdentityForFuse(int uid) {
-        synchronized (mCachedCallingIdentityForFuse) {
-            PermissionUtils.setOpDescription("via FUSE");
-            LocalCallingIdentity identity = mCachedCallingIdentityForFuse.get(uid);
-            if (identity == null) {
-               identity = LocalCallingIdentity.fromExternal(getContext(), mUserCache, uid);
-               if (uidToUserId(uid) == sUserId) {
-                   mCachedCallingIdentityForFuse.put(uid, identity);
-               } else {
-                   // In some app cloning designs, MediaProvider user 0 may
-                   // serve requests for apps running as a "clone" user; in
-                   // those cases, don't keep a cache for the clone user, since
-                   // we don't get any invalidation events for these users.
-               }
+        PermissionUtils.setOpDescription("via FUSE");
+        LocalCallingIdentity identity = mCachedCallingIdentityForFuse.get(uid);
+        if (identity == null) {
+            identity = createCachedCallingIdentityForFuse(uid);
+            if (uidToUserId(uid) == sUserId) {
+                // Resolve the permissions that the following accesses are
+                // likely to check while this thread serves the current one
+                final LocalCallingIdentity created = identity;
+                BackgroundThread.getExecutor().execute(() -> {
+                    PermissionUtils.setOpDescription("via FUSE");
+                    try {
+                        created.resolveCommonPermissions();
+                    } finally {
+                        PermissionUtils.clearOpDescription();
+                    }
+                });
             }
-            return identity;
         }
+        return identity;
+    }
+
+    private LocalCallingIdentity createCachedCallingIdentityForFuse(int uid) {
+        // Build the identity without blocking other FUSE threads, and only
+        // cache it if it wasn't invalidated in the meantime. Threads racing to
+        // build the same identity all use the one cached first
+        final long generation = mCachedCallingIdentityForFuse.getGeneration();
+        final LocalCallingIdentity identity =
+                LocalCallingIdentity.fromExternal(getContext(), mUserCache, uid);
+        if (uidToUserId(uid) == sUserId) {
+            return mCachedCallingIdentityForFuse.putIfAbsent(uid, identity, generation);
+        } else {
+            // In some app cloning designs, MediaProvider user 0 may
+            // serve requests for apps running as a "clone" user; in
+            // those cases, don't keep a cache for the clone user, since
+            // we don't get any invalidation events for these users.
+        }
+        return identity;
+    }
+
+    /**
+     * Drop any cached {@link LocalCallingIdentity} of the given UID, so that
+     * it's rebuilt on its next use.
+     */
+    private void invalidateCachedCallingIdentity(int uid) {
+        mCachedCallingIdentityForFuse.remove(uid);
+    }
+
+    /**
+     * Rebuild the cached {@link LocalCallingIdentity} of the given package in
+     * the background if it's in the foreground, since it's then likely to
+     * access files again soon and shouldn't stall on resolving permissions.
+     */
+    private void prefetchCachedCallingIdentity(@NonNull String packageName) {
+        BackgroundThread.getExecutor().execute(() -> {
+            final int uid;
+            try {
+                uid = getContext().getPackageManager().getPackageUid(packageName, 0);
+            } catch (NameNotFoundException e) {
+                return;
+            }
+            if (uidToUserId(uid) != sUserId
+                    || mCachedCallingIdentityForFuse.get(uid) != null
+                    || getContext().getSystemService(ActivityManager.class)
+                            .getUidImportance(uid) != IMPORTANCE_FOREGROUND) {
+                return;
+            }
+            PermissionUtils.setOpDescription("via FUSE");
+            try {
+                createCachedCallingIdentityForFuse(uid).resolveCommonPermissions();
+            } catch (IllegalArgumentException e) {
+                // The package was removed in the meantime
+            } finally {
+                PermissionUtils.clearOpDescription();
+            }
+        });
     }
 
     /**
@@ -567,12 +649,10 @@ public class MediaProvider extends ContentProvider {
     private final ThreadLocal<LocalCallingIdentity> mCallingIdentity = ThreadLocal
             .withInitial(() -> {
                 PermissionUtils.setOpDescription("via MediaProvider");
-                synchronized (mCachedCallingIdentity) {
-                    final LocalCallingIdentity cached = mCachedCallingIdentity
-                            .get(Binder.getCallingUid());
-                    return (cached != null) ? cached
-                            : LocalCallingIdentity.fromBinder(getContext(), this, mUserCache);
-                }
+                final LocalCallingIdentity cached = mCachedCallingIdentity
+                        .get(Binder.getCallingUid());
+                return (cached != null) ? cached
+                        : LocalCallingIdentity.fromBinder(getContext(), this, mUserCache);
             });
 
     /**
@@ -623,6 +703,8 @@ public class MediaProvider extends ContentProvider {
                         if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
                             mUserCache.invalidateWorkProfileOwnerApps(pkg);
                             mPickerSyncController.notifyPackageRemoval(pkg);
+                        } else {
+                            prefetchCachedCallingIdentity(pkg);
                         }
                     } else {
                         Log.w(TAG, "Failed to retrieve package from intent: " + intent.getAction());
@@ -659,44 +741,85 @@ public class MediaProvider extends ContentProvider {
 
 
     private void invalidateLocalCallingIdentityCache(String packageName, String reason) {
-        synchronized (mCachedCallingIdentityForFuse) {
-            try {
-                Log.i(TAG, "Invalidating LocalCallingIdentity cache for package " + packageName
-                        + ". Reason: " + reason);
-                mCachedCallingIdentityForFuse.remove(
-                        getContext().getPackageManager().getPackageUid(packageName, 0));
-            } catch (NameNotFoundException ignored) {
-            }
+        try {
+            Log.i(TAG, "Invalidating LocalCallingIdentity cache for package " + packageName
+                    + ". Reason: " + reason);
+            invalidateCachedCallingIdentity(
+                    getContext().getPackageManager().getPackageUid(packageName, 0));
+        } catch (NameNotFoundException ignored) {
         }
     }
 
-    private final void updateQuotaTypeForUri(@NonNull Uri uri, int mediaType) {
-        Trace.beginSection("updateQuotaTypeForUri");
-        File file;
+    /**
+     * Update the quota type and {@link XAttrUtils#FILE_ACCESS_XATTR_KEY} of the
+     * files backing the given rows, resolving all their paths with a query per
+     * {@link #QUOTA_BATCH_SIZE} rows.
+     *
+     * @param mediaTypes map from row ID to the media type to attribute
+     * @param fileAccessSeqs map from row ID to the sequence of its pending
+     *            xattr write, see {@link #invalidateFileAccessXAttr}. Rows
+     *            without one keep their xattr as is.
+     */
+    private void updateFilesForIds(@NonNull DatabaseHelper helper,
+            @NonNull LongSparseArray<Integer> mediaTypes,
+            @NonNull LongSparseArray<Long> fileAccessSeqs) {
+        Trace.beginSection("updateFilesForIds");
         try {
-            file = queryForDataFile(uri, null);
-            if (!file.exists()) {
-                // This can happen if an item is inserted in MediaStore before it is created
-                return;
-            }
+            for (int start = 0; start < mediaTypes.size(); start += QUOTA_BATCH_SIZE) {
+                final int end = Math.min(start + QUOTA_BATCH_SIZE, mediaTypes.size());
+                final Long[] ids = new Long[end - start];
+                for (int i = start; i < end; i++) {
+                    ids[i - start] = mediaTypes.keyAt(i);
+                }
+
+                final ArrayList<String> paths = new ArrayList<>();
+                final ArrayList<FileAccessAttributes> attrs = new ArrayList<>();
+                helper.runWithoutTransaction((db) -> {
+                    try (Cursor c = db.query("files", FILE_ACCESS_XATTR_PROJECTION,
+                            FileColumns._ID + " IN " + bindList((Object[]) ids),
+                            null, null, null, null)) {
+                        while (c.moveToNext()) {
+                            final String data = c.getString(5);
+                            if (!TextUtils.isEmpty(data)) {
+                                paths.add(data);
+                                attrs.add(FileAccessAttributes.fromCursor(c));
+                            }
+                        }
+                    }
+                    return null;
+                });
 
-            if (mediaType == FileColumns.MEDIA_TYPE_NONE) {
-                // This might be because the file is hidden; but we still want to
-                // attribute its quota to the correct type, so get the type from
-                // the extension instead.
-                mediaType = MimeUtils.resolveMediaType(MimeUtils.resolveMimeType(file));
+                for (int i = 0; i < paths.size(); i++) {
+                    final String path = paths.get(i);
+                    final long id = attrs.get(i).getId();
+                    updateQuotaTypeForFile(new File(path), mediaTypes.get(id));
+                    final Long seq = fileAccessSeqs.get(id);
+                    if (seq != null) {
+                        writeFileAccessXAttr(path, attrs.get(i), seq);
+                    }
+                }
             }
-
-            updateQuotaTypeForFileInternal(file, mediaType);
-        } catch (FileNotFoundException | IllegalArgumentException e) {
-            // Ignore
-            Log.w(TAG, "Failed to update quota for uri: " + uri, e);
-            return;
         } finally {
             Trace.endSection();
         }
     }
 
+    private void updateQuotaTypeForFile(@NonNull File file, int mediaType) {
+        if (!file.exists()) {
+            // This can happen if an item is inserted in MediaStore before it is created
+            return;
+        }
+
+        if (mediaType == FileColumns.MEDIA_TYPE_NONE) {
+            // This might be because the file is hidden; but we still want to
+            // attribute its quota to the correct type, so get the type from
+            // the extension instead.
+            mediaType = MimeUtils.resolveMediaType(MimeUtils.resolveMimeType(file));
+        }
+
+        updateQuotaTypeForFileInternal(file, mediaType);
+    }
+
     private final void updateQuotaTypeForFileInternal(File file, int mediaType) {
         try {
             switch (mediaType) {
@@ -722,11 +845,292 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Side-effects of {@link #mFilesListener} collected over a single
+     * transaction, so that bulk operations are processed as one task on
+     * {@link BackgroundThread} rather than one task per affected row.
+     */
+    private final class FilesChangeBatch implements Runnable {
+        private final DatabaseHelper mHelper;
+
+        /** Map from row ID to the media type its quota should be attributed to. */
+        private final LongSparseArray<Integer> mQuotaTypes = new LongSparseArray<>();
+        /** Map from row ID to the sequence of its pending file access xattr write. */
+        private final LongSparseArray<Long> mFileAccessSeqs = new LongSparseArray<>();
+        private final ArrayList<FileRow> mInsertedRows = new ArrayList<>();
+        private final ArrayList<Pair<FileRow, FileRow>> mUpdatedRows = new ArrayList<>();
+        private final ArrayList<FileRow> mDeletedRows = new ArrayList<>();
+        private final ArrayList<Uri> mInvalidatedThumbnails = new ArrayList<>();
+
+        FilesChangeBatch(@NonNull DatabaseHelper helper) {
+            mHelper = helper;
+        }
+
+        @Override
+        public void run() {
+            Trace.beginSection("FilesChangeBatch");
+            // A failure for one row mustn't skip the rows of every other
+            // transaction batched with it, so it's only thrown once they all
+            // ran
+            RuntimeException failure = null;
+            try {
+                if (mHelper.isExternal()) {
+                    // Update the quota type and access metadata on the filesystem
+                    try {
+                        updateFilesForIds(mHelper, mQuotaTypes, mFileAccessSeqs);
+                    } catch (RuntimeException e) {
+                        failure = addFailure(failure, e);
+                    }
+                }
+                releaseFileAccessXAttrs(mFileAccessSeqs);
+
+                boolean notifyPicker = false;
+                for (int i = 0; i < mInsertedRows.size(); i++) {
+                    final FileRow row = mInsertedRows.get(i);
+                    try {
+                        // Tell our SAF provider so it knows when views are no longer empty
+                        MediaDocumentsProvider.onMediaStoreInsert(getContext(),
+                                row.getVolumeName(), row.getMediaType(), row.getId());
+
+                        notifyPicker |= mExternalDbFacade.onFileInserted(row.getMediaType(),
+                                row.isPending());
+                    } catch (RuntimeException e) {
+                        failure = addFailure(failure, e);
+                    }
+                }
+
+                for (int i = 0; i < mUpdatedRows.size(); i++) {
+                    final FileRow oldRow = mUpdatedRows.get(i).first;
+                    final FileRow newRow = mUpdatedRows.get(i).second;
+                    try {
+                        notifyPicker |= mExternalDbFacade.onFileUpdated(oldRow.getId(),
+                                oldRow.getMediaType(), newRow.getMediaType(),
+                                oldRow.isTrashed(), newRow.isTrashed(),
+                                oldRow.isPending(), newRow.isPending(),
+                                oldRow.isFavorite(), newRow.isFavorite(),
+                                oldRow.getSpecialFormat(), newRow.getSpecialFormat());
+                    } catch (RuntimeException e) {
+                        failure = addFailure(failure, e);
+                    }
+                }
+
+                for (int i = 0; i < mDeletedRows.size(); i++) {
+                    try {
+                        notifyPicker |= processDeletedRow(mDeletedRows.get(i));
+                    } catch (RuntimeException e) {
+                        failure = addFailure(failure, e);
+                    }
+                }
+
+                for (int i = 0; i < mInvalidatedThumbnails.size(); i++) {
+                    try {
+                        invalidateThumbnails(mInvalidatedThumbnails.get(i));
+                    } catch (RuntimeException e) {
+                        failure = addFailure(failure, e);
+                    }
+                }
+
+                if (notifyPicker) {
+                    mPickerSyncController.notifyMediaEvent();
+                }
+            } finally {
+                Trace.endSection();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private @NonNull RuntimeException addFailure(@Nullable RuntimeException failure,
+                @NonNull RuntimeException e) {
+            if (failure == null) {
+                return e;
+            }
+            failure.addSuppressed(e);
+            return failure;
+        }
+
+        private boolean processDeletedRow(@NonNull FileRow deletedRow) {
+            // Item no longer exists, so revoke all access to it
+            Trace.beginSection("revokeUriPermission");
+            try {
+                acceptWithExpansion((uri) -> {
+                    getContext().revokeUriPermission(uri, ~0);
+                },
+                        deletedRow.getVolumeName(), deletedRow.getId(),
+                        deletedRow.getMediaType(), deletedRow.isDownload());
+            } finally {
+                Trace.endSection();
+            }
+
+            switch (deletedRow.getMediaType()) {
+                case FileColumns.MEDIA_TYPE_PLAYLIST:
+                case FileColumns.MEDIA_TYPE_AUDIO:
+                    if (mHelper.isExternal()) {
+                        removePlaylistMembers(deletedRow.getMediaType(), deletedRow.getId());
+                    }
+            }
+
+            // Invalidate any thumbnails now that media is gone
+            invalidateThumbnails(MediaStore.Files.getContentUri(deletedRow.getVolumeName(),
+                    deletedRow.getId()));
+
+            // Tell our SAF provider so it can revoke too
+            MediaDocumentsProvider.onMediaStoreDelete(getContext(), deletedRow.getVolumeName(),
+                    deletedRow.getMediaType(), deletedRow.getId());
+
+            return mExternalDbFacade.onFileDeleted(deletedRow.getId(),
+                    deletedRow.getMediaType());
+        }
+    }
+
+    /**
+     * Columns of {@link FileAccessAttributes#fromCursor} followed by the path.
+     */
+    private static final String[] FILE_ACCESS_XATTR_PROJECTION = new String[] {
+            MediaColumns._ID,
+            MediaColumns.OWNER_PACKAGE_NAME,
+            MediaColumns.IS_PENDING,
+            FileColumns.MEDIA_TYPE,
+            MediaColumns.IS_TRASHED,
+            MediaColumns.DATA,
+    };
+
+    private static boolean isFileAccessChanged(@NonNull FileRow oldRow, @NonNull FileRow newRow) {
+        return oldRow.getId() != newRow.getId()
+                || oldRow.getMediaType() != newRow.getMediaType()
+                || oldRow.isPending() != newRow.isPending()
+                || oldRow.isTrashed() != newRow.isTrashed()
+                || !Objects.equals(oldRow.getOwnerPackageName(), newRow.getOwnerPackageName());
+    }
+
+    private final Object mFileAccessXAttrLock = new Object();
+
+    /**
+     * Map from row ID to the sequence of the latest change to its file access
+     * metadata that no {@link FilesChangeBatch} has written yet. Batches run
+     * after their transaction commits, so a batch of an earlier transaction
+     * may read a row before a later transaction commits; only the batch
+     * holding the latest sequence may write the xattr.
+     */
+    @GuardedBy("mFileAccessXAttrLock")
+    private final LongSparseArray<Long> mPendingFileAccessXAttrs = new LongSparseArray<>();
+    @GuardedBy("mFileAccessXAttrLock")
+    private long mFileAccessXAttrSeq;
+
+    /**
+     * Remove the {@link XAttrUtils#FILE_ACCESS_XATTR_KEY} of the given row, if
+     * any, so that FUSE falls back to the database until the batch of the
+     * current transaction writes the new value.
+     *
+     * @return the sequence the batch must pass to {@link #writeFileAccessXAttr},
+     *         or {@code -1} if the xattr isn't used.
+     */
+    private long invalidateFileAccessXAttr(long id, @Nullable String path) {
+        if (!XAttrUtils.ENABLE_XATTR_METADATA_FOR_FUSE) {
+            return -1;
+        }
+        synchronized (mFileAccessXAttrLock) {
+            final long seq = ++mFileAccessXAttrSeq;
+            mPendingFileAccessXAttrs.put(id, seq);
+            if (path != null) {
+                XAttrUtils.removeFileAttributesFromXAttr(path, XAttrUtils.FILE_ACCESS_XATTR_KEY);
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * Rename {@code oldPath} to {@code newPath} in the lower file system.
+     * The {@link XAttrUtils#FILE_ACCESS_XATTR_KEY} moves with the inode, but
+     * the row update that follows may change the access metadata, e.g. when
+     * trashing, and the listener only knows the old path by then. So remove
+     * the xattr on both sides of the rename, the second time in case a batch
+     * wrote it at the old path in between, and let FUSE fall back to the
+     * database until a batch or the idle backfill writes it again.
+     */
+    private void renameDroppingFileAccessXAttr(@NonNull String oldPath,
+            @NonNull String newPath) throws ErrnoException {
+        if (!XAttrUtils.ENABLE_XATTR_METADATA_FOR_FUSE) {
+            Os.rename(oldPath, newPath);
+            return;
+        }
+        synchronized (mFileAccessXAttrLock) {
+            XAttrUtils.removeFileAttributesFromXAttr(oldPath, XAttrUtils.FILE_ACCESS_XATTR_KEY);
+        }
+        Os.rename(oldPath, newPath);
+        synchronized (mFileAccessXAttrLock) {
+            XAttrUtils.removeFileAttributesFromXAttr(newPath, XAttrUtils.FILE_ACCESS_XATTR_KEY);
+        }
+    }
+
+    /**
+     * Write the committed file access metadata of a row, unless the row
+     * changed again after the given sequence was obtained.
+     */
+    private void writeFileAccessXAttr(@NonNull String path, @NonNull FileAccessAttributes attrs,
+            long seq) {
+        synchronized (mFileAccessXAttrLock) {
+            final Long pending = mPendingFileAccessXAttrs.get(attrs.getId());
+            if (pending != null && pending == seq) {
+                XAttrUtils.setFileAttributesInXAttr(path, XAttrUtils.FILE_ACCESS_XATTR_KEY,
+                        attrs);
+            }
+        }
+    }
+
+    private long getFileAccessXAttrSeq() {
+        synchronized (mFileAccessXAttrLock) {
+            return mFileAccessXAttrSeq;
+        }
+    }
+
+    /**
+     * Write the file access metadata of a row read outside of any
+     * {@link FilesChangeBatch}, unless any row changed its access metadata
+     * since the given value of {@link #getFileAccessXAttrSeq()} was obtained.
+     *
+     * @return {@code true} if the xattr was written.
+     */
+    private boolean writeFileAccessXAttrIfUnchanged(@NonNull String path,
+            @NonNull FileAccessAttributes attrs, long seq) {
+        synchronized (mFileAccessXAttrLock) {
+            return mFileAccessXAttrSeq == seq
+                    && XAttrUtils.setFileAttributesInXAttr(path,
+                            XAttrUtils.FILE_ACCESS_XATTR_KEY, attrs);
+        }
+    }
+
+    /**
+     * Forget the given pending xattr writes, unless a later change replaced them.
+     */
+    private void releaseFileAccessXAttrs(@NonNull LongSparseArray<Long> fileAccessSeqs) {
+        if (fileAccessSeqs.size() == 0) {
+            return;
+        }
+        synchronized (mFileAccessXAttrLock) {
+            for (int i = 0; i < fileAccessSeqs.size(); i++) {
+                final long id = fileAccessSeqs.keyAt(i);
+                final Long pending = mPendingFileAccessXAttrs.get(id);
+                if (pending != null && pending.equals(fileAccessSeqs.valueAt(i))) {
+                    mPendingFileAccessXAttrs.remove(id);
+                }
+            }
+        }
+    }
+
+    private void postFilesChange(@NonNull DatabaseHelper helper,
+            @NonNull Consumer<FilesChangeBatch> op) {
+        helper.postBackgroundBatched(FilesChangeBatch.class,
+                () -> new FilesChangeBatch(helper), op);
+    }
+
     /**
      * Since these operations are in the critical path of apps working with
      * media, we only collect the {@link Uri} that need to be notified, and all
-     * other side-effect operations are delegated to {@link BackgroundThread} so
-     * that we return as quickly as possible.
+     * other side-effect operations are collected into a {@link FilesChangeBatch}
+     * that is processed on {@link BackgroundThread} so that we return as
+     * quickly as possible.
      */
     private final OnFilesChangeListener mFilesListener = new OnFilesChangeListener() {
         @Override
@@ -735,21 +1139,13 @@ public class MediaProvider extends ContentProvider {
             acceptWithExpansion(helper::notifyInsert, insertedRow.getVolumeName(),
                     insertedRow.getId(), insertedRow.getMediaType(), insertedRow.isDownload());
             updateNextRowIdXattr(helper, insertedRow.getId());
-            helper.postBackground(() -> {
-                if (helper.isExternal()) {
-                    // Update the quota type on the filesystem
-                    Uri fileUri = MediaStore.Files.getContentUri(insertedRow.getVolumeName(),
-                            insertedRow.getId());
-                    updateQuotaTypeForUri(fileUri, insertedRow.getMediaType());
-                }
-
-                // Tell our SAF provider so it knows when views are no longer empty
-                MediaDocumentsProvider.onMediaStoreInsert(getContext(), insertedRow.getVolumeName(),
-                        insertedRow.getMediaType(), insertedRow.getId());
-
-                if (mExternalDbFacade.onFileInserted(insertedRow.getMediaType(),
-                        insertedRow.isPending())) {
-                    mPickerSyncController.notifyMediaEvent();
+            final long xattrSeq = helper.isExternal()
+                    ? invalidateFileAccessXAttr(insertedRow.getId(), /* path */ null) : -1;
+            postFilesChange(helper, (batch) -> {
+                batch.mQuotaTypes.put(insertedRow.getId(), insertedRow.getMediaType());
+                batch.mInsertedRows.add(insertedRow);
+                if (xattrSeq >= 0) {
+                    batch.mFileAccessSeqs.put(insertedRow.getId(), xattrSeq);
                 }
             });
         }
@@ -758,8 +1154,6 @@ public class MediaProvider extends ContentProvider {
         public void onUpdate(@NonNull DatabaseHelper helper, @NonNull FileRow oldRow,
                 @NonNull FileRow newRow) {
             final boolean isDownload = oldRow.isDownload() || newRow.isDownload();
-            final Uri fileUri = MediaStore.Files.getContentUri(oldRow.getVolumeName(),
-                    oldRow.getId());
             handleUpdatedRowForFuse(oldRow.getPath(), oldRow.getOwnerPackageName(), oldRow.getId(),
                     newRow.getId());
             handleOwnerPackageNameChange(oldRow.getPath(), oldRow.getOwnerPackageName(),
@@ -767,31 +1161,36 @@ public class MediaProvider extends ContentProvider {
             acceptWithExpansion(helper::notifyUpdate, oldRow.getVolumeName(), oldRow.getId(),
                     oldRow.getMediaType(), isDownload);
             updateNextRowIdXattr(helper, newRow.getId());
-            helper.postBackground(() -> {
-                if (helper.isExternal()) {
-                    // Update the quota type on the filesystem
-                    updateQuotaTypeForUri(fileUri, newRow.getMediaType());
-                }
-
-                if (mExternalDbFacade.onFileUpdated(oldRow.getId(),
-                        oldRow.getMediaType(), newRow.getMediaType(),
-                        oldRow.isTrashed(), newRow.isTrashed(),
-                        oldRow.isPending(), newRow.isPending(),
-                        oldRow.isFavorite(), newRow.isFavorite(),
-                        oldRow.getSpecialFormat(), newRow.getSpecialFormat())) {
-                    mPickerSyncController.notifyMediaEvent();
-                }
-            });
-
-            if (newRow.getMediaType() != oldRow.getMediaType()) {
+            invalidateRedactionCache(oldRow.getPath());
+            // Unchanged access metadata keeps its xattr, otherwise make FUSE
+            // fall back to the database until the batch below writes it
+            final long xattrSeq = helper.isExternal() && isFileAccessChanged(oldRow, newRow)
+                    ? invalidateFileAccessXAttr(newRow.getId(), oldRow.getPath()) : -1;
+            final long oldXattrSeq = xattrSeq >= 0 && oldRow.getId() != newRow.getId()
+                    ? invalidateFileAccessXAttr(oldRow.getId(), /* path */ null) : -1;
+
+            final boolean mediaTypeChanged = newRow.getMediaType() != oldRow.getMediaType();
+            if (mediaTypeChanged) {
                 acceptWithExpansion(helper::notifyUpdate, oldRow.getVolumeName(), oldRow.getId(),
                         newRow.getMediaType(), isDownload);
+            }
 
-                helper.postBackground(() -> {
+            postFilesChange(helper, (batch) -> {
+                // Repeated updates to the same row only need the final quota type
+                batch.mQuotaTypes.put(oldRow.getId(), newRow.getMediaType());
+                batch.mUpdatedRows.add(Pair.create(oldRow, newRow));
+                if (xattrSeq >= 0) {
+                    batch.mFileAccessSeqs.put(newRow.getId(), xattrSeq);
+                }
+                if (oldXattrSeq >= 0) {
+                    batch.mFileAccessSeqs.put(oldRow.getId(), oldXattrSeq);
+                }
+                if (mediaTypeChanged) {
                     // Invalidate any thumbnails when the media type changes
-                    invalidateThumbnails(fileUri);
-                });
-            }
+                    batch.mInvalidatedThumbnails.add(MediaStore.Files.getContentUri(
+                            oldRow.getVolumeName(), oldRow.getId()));
+                }
+            });
         }
 
         @Override
@@ -802,39 +1201,17 @@ public class MediaProvider extends ContentProvider {
                     deletedRow.getId(), deletedRow.getMediaType(), deletedRow.isDownload());
             // Remove cached transcoded file if any
             mTranscodeHelper.deleteCachedTranscodeFile(deletedRow.getId());
-
-            helper.postBackground(() -> {
-                // Item no longer exists, so revoke all access to it
-                Trace.beginSection("revokeUriPermission");
-                try {
-                    acceptWithExpansion((uri) -> {
-                        getContext().revokeUriPermission(uri, ~0);
-                    },
-                            deletedRow.getVolumeName(), deletedRow.getId(),
-                            deletedRow.getMediaType(), deletedRow.isDownload());
-                } finally {
-                    Trace.endSection();
-                }
-
-                switch (deletedRow.getMediaType()) {
-                    case FileColumns.MEDIA_TYPE_PLAYLIST:
-                    case FileColumns.MEDIA_TYPE_AUDIO:
-                        if (helper.isExternal()) {
-                            removePlaylistMembers(deletedRow.getMediaType(), deletedRow.getId());
-                        }
-                }
-
-                // Invalidate any thumbnails now that media is gone
-                invalidateThumbnails(MediaStore.Files.getContentUri(deletedRow.getVolumeName(),
-                        deletedRow.getId()));
-
-                // Tell our SAF provider so it can revoke too
-                MediaDocumentsProvider.onMediaStoreDelete(getContext(), deletedRow.getVolumeName(),
-                        deletedRow.getMediaType(), deletedRow.getId());
-
-                if (mExternalDbFacade.onFileDeleted(deletedRow.getId(),
-                        deletedRow.getMediaType())) {
-                    mPickerSyncController.notifyMediaEvent();
+            final long xattrSeq = helper.isExternal()
+                    ? invalidateFileAccessXAttr(deletedRow.getId(), deletedRow.getPath()) : -1;
+            invalidateRedactionCache(deletedRow.getPath());
+
+            postFilesChange(helper, (batch) -> {
+                // No need to update quota for an item that no longer exists
+                batch.mQuotaTypes.remove(deletedRow.getId());
+                batch.mDeletedRows.add(deletedRow);
+                if (xattrSeq >= 0) {
+                    // Nothing to write, but the pending entry must be released
+                    batch.mFileAccessSeqs.put(deletedRow.getId(), xattrSeq);
                 }
             });
         }
@@ -1059,7 +1436,9 @@ public class MediaProvider extends ContentProvider {
         final int thumbSize = Math.min(metrics.widthPixels, metrics.heightPixels) / 2;
         mThumbSize = new Size(thumbSize, thumbSize);
 
-        mMediaScanner = new ModernMediaScanner(context);
+        final int scanThreadCount = getIntDeviceConfig(ModernMediaScanner.SCAN_THREAD_COUNT_KEY,
+                ModernMediaScanner.DEFAULT_SCAN_THREAD_COUNT);
+        mMediaScanner = new ModernMediaScanner(context, scanThreadCount);
 
         mInternalDatabase = new DatabaseHelper(context, INTERNAL_DATABASE_NAME, false, false,
                 Column.class, ExportedSince.class, Metrics::logSchemaChange, mFilesListener,
@@ -1067,6 +1446,14 @@ public class MediaProvider extends ContentProvider {
         mExternalDatabase = new DatabaseHelper(context, EXTERNAL_DATABASE_NAME, false, false,
                 Column.class, ExportedSince.class, Metrics::logSchemaChange, mFilesListener,
                 MIGRATION_LISTENER, mIdGenerator, true);
+        final int notifyCollapseThreshold = getIntDeviceConfig(
+                DatabaseHelper.NOTIFY_COLLAPSE_THRESHOLD_KEY, /* default */ 0);
+        mInternalDatabase.setNotifyCoalescing(getIntDeviceConfig(
+                DatabaseHelper.NOTIFY_COALESCE_WINDOW_MS_INTERNAL_KEY, /* default */ 0),
+                notifyCollapseThreshold);
+        mExternalDatabase.setNotifyCoalescing(getIntDeviceConfig(
+                DatabaseHelper.NOTIFY_COALESCE_WINDOW_MS_EXTERNAL_KEY, /* default */ 0),
+                notifyCollapseThreshold);
         mExternalDbFacade = new ExternalDbFacade(getContext(), mExternalDatabase, mVolumeCache);
         mPickerDbFacade = new PickerDbFacade(context);
 
@@ -1076,10 +1463,13 @@ public class MediaProvider extends ContentProvider {
                         /* default */ "");
         final int pickerSyncDelayMs = getIntDeviceConfig(PickerSyncController.SYNC_DELAY_MS,
                 /* default */ 5000);
+        final boolean pickerSyncInBackground = getBooleanDeviceConfig(
+                PickerDataLayer.SYNC_IN_BACKGROUND_KEY, /* default */ false);
 
         mPickerSyncController = new PickerSyncController(context, mPickerDbFacade,
                 localPickerProvider, allowedCloudProviders, pickerSyncDelayMs);
-        mPickerDataLayer = new PickerDataLayer(context, mPickerDbFacade, mPickerSyncController);
+        mPickerDataLayer = new PickerDataLayer(context, mPickerDbFacade, mPickerSyncController,
+                pickerSyncInBackground);
         mPickerUriResolver = new PickerUriResolver(context, mPickerDbFacade);
 
         if (SdkLevel.isAtLeastS()) {
@@ -1292,6 +1682,11 @@ public class MediaProvider extends ContentProvider {
         // Populate _SPECIAL_FORMAT column for files which have column value as NULL
         detectSpecialFormat(signal);
 
+        // Backfill and verify file access metadata used by FUSE opens
+        if (XAttrUtils.ENABLE_XATTR_METADATA_FOR_FUSE) {
+            verifyFileAccessXAttrs(signal);
+        }
+
         final long durationMillis = (SystemClock.elapsedRealtime() - startTime);
         Metrics.logIdleMaintenance(MediaStore.VOLUME_EXTERNAL, itemCount,
                 durationMillis, staleThumbnails, deletedExpiredMedia);
@@ -1392,6 +1787,77 @@ public class MediaProvider extends ContentProvider {
         mPickerUriResolver = resolver;
     }
 
+    /**
+     * Write {@link XAttrUtils#FILE_ACCESS_XATTR_KEY} on any file of the primary
+     * emulated volume where it's missing, such as files that predate it, or
+     * doesn't match the database.
+     *
+     * @return the number of missing and mismatched xattrs that were written.
+     */
+    @VisibleForTesting
+    int[] verifyFileAccessXAttrs(@NonNull CancellationSignal signal) {
+        int missing = 0;
+        int mismatched = 0;
+        long lastId = -1;
+        final ArrayList<String> paths = new ArrayList<>();
+        final ArrayList<FileAccessAttributes> attrs = new ArrayList<>();
+        while (!signal.isCanceled()) {
+            paths.clear();
+            attrs.clear();
+            final long seq = getFileAccessXAttrSeq();
+            final String[] selectionArgs = new String[] {
+                    MediaStore.VOLUME_EXTERNAL_PRIMARY, String.valueOf(lastId) };
+            mExternalDatabase.runWithoutTransaction((db) -> {
+                try (Cursor c = db.query(false, "files", FILE_ACCESS_XATTR_PROJECTION,
+                        FileColumns.VOLUME_NAME + "=? AND " + FileColumns._ID + ">?",
+                        selectionArgs, null, null, FileColumns._ID,
+                        String.valueOf(IDLE_MAINTENANCE_ROWS_LIMIT), signal)) {
+                    while (c.moveToNext()) {
+                        paths.add(c.getString(5));
+                        attrs.add(FileAccessAttributes.fromCursor(c));
+                    }
+                }
+                return null;
+            });
+            if (attrs.isEmpty()) {
+                break;
+            }
+            lastId = attrs.get(attrs.size() - 1).getId();
+
+            for (int i = 0; i < paths.size() && !signal.isCanceled(); i++) {
+                final String path = paths.get(i);
+                if (TextUtils.isEmpty(path) || XAttrUtils.getDataMediaPath(path) == null) {
+                    continue;
+                }
+                final FileAccessAttributes expected = attrs.get(i);
+                final Optional<FileAccessAttributes> actual =
+                        XAttrUtils.getFileAttributesFromXAttr(path,
+                                XAttrUtils.FILE_ACCESS_XATTR_KEY);
+                if (actual.isPresent() && isSameFileAccess(expected, actual.get())) {
+                    continue;
+                }
+                if (writeFileAccessXAttrIfUnchanged(path, expected, seq)) {
+                    if (actual.isPresent()) {
+                        mismatched++;
+                    } else {
+                        missing++;
+                    }
+                }
+            }
+        }
+        Log.d(TAG, "Wrote file access xattr for " + missing + " missing and " + mismatched
+                + " mismatched items");
+        return new int[] { missing, mismatched };
+    }
+
+    private static boolean isSameFileAccess(@NonNull FileAccessAttributes a,
+            @NonNull FileAccessAttributes b) {
+        return a.getId() == b.getId()
+                && a.getMediaType() == b.getMediaType()
+                && a.isPending() == b.isPending()
+                && a.isTrashed() == b.isTrashed();
+    }
+
     @VisibleForTesting
     void detectSpecialFormat(@NonNull CancellationSignal signal) {
         mExternalDatabase.runWithTransaction((db) -> {
@@ -1604,7 +2070,7 @@ public class MediaProvider extends ContentProvider {
     private boolean renameInLowerFsAndInvalidateFuseDentry(@NonNull String originalPath,
             @NonNull String newPath) {
         try {
-            Os.rename(originalPath, newPath);
+            renameDroppingFileAccessXAttr(originalPath, newPath);
             invalidateFuseDentry(originalPath);
             invalidateFuseDentry(newPath);
             return true;
@@ -1716,6 +2182,9 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public void onFileCreatedForFuse(String path) {
+        FileUtils.invalidateNoMediaCache(new File(path));
+        invalidateRedactionCache(path);
+
         // Make sure we update the quota type of the file
         BackgroundThread.getExecutor().execute(() -> {
             File file = new File(path);
@@ -1835,6 +2304,7 @@ public class MediaProvider extends ContentProvider {
         if ((transforms & FLAG_TRANSFORM_TRANSCODING) != 0) {
             if (mTranscodeHelper.isTranscodeFileCached(src, dst)) {
                 Log.d(TAG, "Using transcode cache for " + src);
+                mTranscodeHelper.onTranscodeFileUsed(dst);
                 return true;
             }
 
@@ -2824,7 +3294,16 @@ public class MediaProvider extends ContentProvider {
 
     private int renameInLowerFs(String oldPath, String newPath) {
         try {
-            Os.rename(oldPath, newPath);
+            renameDroppingFileAccessXAttr(oldPath, newPath);
+            if (new File(newPath).isDirectory()) {
+                FileUtils.invalidateNoMediaCacheForDirectory(new File(oldPath));
+                FileUtils.invalidateNoMediaCacheForDirectory(new File(newPath));
+            } else {
+                FileUtils.invalidateNoMediaCache(new File(oldPath));
+                FileUtils.invalidateNoMediaCache(new File(newPath));
+            }
+            invalidateRedactionCache(oldPath);
+            invalidateRedactionCache(newPath);
             return 0;
         } catch (ErrnoException e) {
             final String errorMessage = "Rename " + oldPath + " to " + newPath + " failed.";
@@ -4971,6 +5450,7 @@ public class MediaProvider extends ContentProvider {
         mCallingIdentity.get().setOwned(rowId, true);
 
         if (path != null && path.toLowerCase(Locale.ROOT).endsWith("/.nomedia")) {
+            FileUtils.invalidateNoMediaCache(new File(path));
             scanFileAsMediaProvider(new File(path).getParentFile(), REASON_DEMAND);
         }
 
@@ -6625,7 +7105,7 @@ public class MediaProvider extends ContentProvider {
         int prunedCount = 0;
 
         // Determine all known media items
-        final LongArray knownIds = new LongArray();
+        final LongBitmap knownIds = new LongBitmap();
         try (Cursor c = db.query(true, "files", new String[] { BaseColumns._ID },
                 null, null, null, null, null, null, signal)) {
             while (c.moveToNext()) {
@@ -6633,9 +7113,6 @@ public class MediaProvider extends ContentProvider {
             }
         }
 
-        final long[] knownIdsRaw = knownIds.toArray();
-        Arrays.sort(knownIdsRaw);
-
         for (MediaVolume volume : mVolumeCache.getExternalVolumes()) {
             final List<File> thumbDirs;
             try {
@@ -6656,7 +7133,7 @@ public class MediaProvider extends ContentProvider {
                     final String name = FileUtils.extractFileName(thumbFile.getName());
                     try {
                         final long id = Long.parseLong(name);
-                        if (Arrays.binarySearch(knownIdsRaw, id) >= 0) {
+                        if (knownIds.contains(id)) {
                             // Thumbnail belongs to known media, keep it
                             continue;
                         }
@@ -6682,6 +7159,13 @@ public class MediaProvider extends ContentProvider {
     abstract class Thumbnailer {
         final String directoryName;
 
+        /**
+         * Thumbnails currently being generated, keyed by the file they're
+         * written to, which is unique for each volume and ID.
+         */
+        @GuardedBy("mPendingThumbnails")
+        private final ArrayMap<File, PendingThumbnail> mPendingThumbnails = new ArrayMap<>();
+
         public Thumbnailer(String directoryName) {
             this.directoryName = directoryName;
         }
@@ -6698,24 +7182,116 @@ public class MediaProvider extends ContentProvider {
 
         public ParcelFileDescriptor ensureThumbnail(Uri uri, CancellationSignal signal)
                 throws IOException {
-            // First attempt to fast-path by opening the thumbnail; if it
-            // doesn't exist we fall through to create it below
             final File thumbFile = getThumbnailFile(uri);
+            while (true) {
+                // First attempt to fast-path by opening the thumbnail; if it
+                // doesn't exist we fall through to create it below
+                try {
+                    return FileUtils.openSafely(thumbFile,
+                            ParcelFileDescriptor.MODE_READ_ONLY);
+                } catch (FileNotFoundException ignored) {
+                }
+
+                // Join any generation of this thumbnail that's already in
+                // progress, so that we don't decode the same source twice
+                final PendingThumbnail pending;
+                final boolean generate;
+                synchronized (mPendingThumbnails) {
+                    final PendingThumbnail existing = mPendingThumbnails.get(thumbFile);
+                    generate = (existing == null || existing.result.isDone());
+                    if (generate) {
+                        pending = new PendingThumbnail(thumbFile);
+                        mPendingThumbnails.put(thumbFile, pending);
+                    } else {
+                        pending = existing;
+                    }
+                    pending.waiters++;
+                }
+
+                final AtomicBoolean released = new AtomicBoolean();
+                final Runnable release = () -> {
+                    if (released.compareAndSet(false, true)) {
+                        pending.release();
+                    }
+                };
+                final CompletableFuture<Void> result = pending.result.thenRun(() -> {});
+                if (signal != null) {
+                    signal.setOnCancelListener(() -> {
+                        release.run();
+                        result.cancel(false);
+                    });
+                }
+                try {
+                    if (generate) {
+                        return generateThumbnail(uri, thumbFile, pending, signal);
+                    }
+                    awaitThumbnail(result);
+                } finally {
+                    if (signal != null) {
+                        signal.setOnCancelListener(null);
+                    }
+                    release.run();
+                }
+                // The thumbnail we waited for is now in place, so loop around
+                // to open it
+            }
+        }
+
+        private ParcelFileDescriptor generateThumbnail(Uri uri, File thumbFile,
+                PendingThumbnail pending, CancellationSignal signal) throws IOException {
+            final ParcelFileDescriptor pfd;
             try {
-                return FileUtils.openSafely(thumbFile,
-                        ParcelFileDescriptor.MODE_READ_ONLY);
-            } catch (FileNotFoundException ignored) {
+                pfd = generateThumbnail(uri, thumbFile, pending.signal);
+                pending.result.complete(null);
+            } catch (Throwable t) {
+                pending.result.completeExceptionally(t);
+                throw t;
+            } finally {
+                synchronized (mPendingThumbnails) {
+                    if (mPendingThumbnails.get(thumbFile) == pending) {
+                        mPendingThumbnails.remove(thumbFile);
+                    }
+                }
+            }
+
+            // Generation carries on while anyone else is waiting for it, even
+            // when our own caller has gone away
+            if (signal != null && signal.isCanceled()) {
+                FileUtils.closeQuietly(pfd);
+                throw new OperationCanceledException();
             }
+            return pfd;
+        }
 
+        private void awaitThumbnail(CompletableFuture<Void> result) throws IOException {
+            try {
+                result.get();
+            } catch (CancellationException e) {
+                throw new OperationCanceledException();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        private ParcelFileDescriptor generateThumbnail(Uri uri, File thumbFile,
+                CancellationSignal signal) throws IOException {
             final File thumbDir = thumbFile.getParentFile();
             thumbDir.mkdirs();
 
-            // When multiple threads race for the same thumbnail, the second
-            // thread could return a file with a thumbnail still in
-            // progress. We could add heavy per-ID locking to mitigate this
-            // rare race condition, but it's simpler to have both threads
-            // generate the same thumbnail using temporary files and rename
-            // them into place once finished.
+            // Concurrent callers share a single generation, but it can still
+            // race with a new one started after it was abandoned, so write to
+            // a temporary file and rename it into place once finished.
             final File thumbTempFile = File.createTempFile("thumb", null, thumbDir);
 
             ParcelFileDescriptor thumbWrite = null;
@@ -6754,6 +7330,35 @@ public class MediaProvider extends ContentProvider {
             }
         }
 
+        /**
+         * Generation of a thumbnail that's in progress, shared by every caller
+         * that asked for it in the meantime, and cancelled once all of them
+         * have gone away.
+         */
+        private class PendingThumbnail {
+            final File thumbFile;
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            final CancellationSignal signal = new CancellationSignal();
+            @GuardedBy("mPendingThumbnails")
+            int waiters;
+
+            PendingThumbnail(File thumbFile) {
+                this.thumbFile = thumbFile;
+            }
+
+            void release() {
+                synchronized (mPendingThumbnails) {
+                    if (--waiters > 0 || result.isDone()) {
+                        return;
+                    }
+                    if (mPendingThumbnails.get(thumbFile) == this) {
+                        mPendingThumbnails.remove(thumbFile);
+                    }
+                }
+                signal.cancel();
+            }
+        }
+
         public void invalidateThumbnail(Uri uri) throws IOException {
             deleteAndInvalidate(getThumbnailFile(uri));
         }
@@ -7206,7 +7811,7 @@ public class MediaProvider extends ContentProvider {
 
                 Log.d(TAG, "Moving " + beforePath + " to " + afterPath);
                 try {
-                    Os.rename(beforePath, afterPath);
+                    renameDroppingFileAccessXAttr(beforePath, afterPath);
                     invalidateFuseDentry(beforePath);
                     invalidateFuseDentry(afterPath);
                 } catch (ErrnoException e) {
@@ -8282,7 +8887,7 @@ public class MediaProvider extends ContentProvider {
                 (redactedUri != null) || (!callerIsOwner && isRedactionNeeded(uri));
         final RedactionInfo redactionInfo;
         try {
-            redactionInfo = redactionNeeded ? getRedactionRanges(file)
+            redactionInfo = redactionNeeded ? getCachedRedactionRanges(file)
                     : new RedactionInfo(new long[0], new long[0]);
         } catch (IOException e) {
             throw new IllegalStateException(e);
@@ -8631,6 +9236,47 @@ public class MediaProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Redaction ranges of a file, along with the identity of the file
+     * contents they were calculated from.
+     */
+    private static final class CachedRedactionInfo {
+        public final long inode;
+        public final long mtimeSec;
+        public final long mtimeNsec;
+        public final long size;
+        public final RedactionInfo info;
+
+        public CachedRedactionInfo(StructStat stat, RedactionInfo info) {
+            this.inode = stat.st_ino;
+            this.mtimeSec = stat.st_mtim.tv_sec;
+            this.mtimeNsec = stat.st_mtim.tv_nsec;
+            this.size = stat.st_size;
+            this.info = info;
+        }
+
+        public boolean matches(StructStat stat) {
+            return inode == stat.st_ino && mtimeSec == stat.st_mtim.tv_sec
+                    && mtimeNsec == stat.st_mtim.tv_nsec && size == stat.st_size;
+        }
+    }
+
+    /**
+     * Cache of redaction ranges by path, so that apps repeatedly opening the
+     * same files don't parse their metadata on every open. Entries are checked
+     * against the inode, modification time and size of the file, so rewritten
+     * files are never served stale ranges; explicit invalidation only releases
+     * entries early.
+     */
+    private static final LruCache<String, CachedRedactionInfo> sRedactionCache =
+            new LruCache<>(REDACTION_CACHE_SIZE);
+
+    private static void invalidateRedactionCache(@Nullable String path) {
+        if (path != null) {
+            sRedactionCache.remove(path);
+        }
+    }
+
     private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
         private final int mMaxSize;
 
@@ -8682,7 +9328,7 @@ public class MediaProvider extends ContentProvider {
         final File file = new File(ioPath);
 
         if (forceRedaction) {
-            return getRedactionRanges(file).redactionRanges;
+            return getCachedRedactionRanges(file).redactionRanges;
         }
 
         // When calculating redaction ranges initiated from MediaProvider, the redaction policy
@@ -8696,7 +9342,7 @@ public class MediaProvider extends ContentProvider {
             if (info != null && info.uid == original_uid) {
                 boolean shouldRedact = info.shouldRedact;
                 if (shouldRedact) {
-                    return getRedactionRanges(file).redactionRanges;
+                    return getCachedRedactionRanges(file).redactionRanges;
                 } else {
                     return new long[0];
                 }
@@ -8759,12 +9405,38 @@ public class MediaProvider extends ContentProvider {
                 return new long[0];
             }
 
-            return getRedactionRanges(file).redactionRanges;
+            return getCachedRedactionRanges(file).redactionRanges;
         } finally {
             restoreLocalCallingIdentity(token);
         }
     }
 
+    /**
+     * Returns {@link #getRedactionRanges(File)} of the given file, reusing the ranges computed
+     * earlier as long as the file's size, inode and modification time are unchanged.
+     */
+    private static RedactionInfo getCachedRedactionRanges(File file) throws IOException {
+        final String path = file.getPath();
+        final StructStat stat;
+        try {
+            stat = Os.stat(path);
+        } catch (ErrnoException e) {
+            // Let the uncached path deal with missing or unreadable files
+            return getRedactionRanges(file);
+        }
+
+        final CachedRedactionInfo cached = sRedactionCache.get(path);
+        if (cached != null && cached.matches(stat)) {
+            return cached.info;
+        }
+
+        // We stat before parsing, so that concurrent writes result in an
+        // entry that no longer matches the file
+        final RedactionInfo info = getRedactionRanges(file);
+        sRedactionCache.put(path, new CachedRedactionInfo(stat, info));
+        return info;
+    }
+
     /**
      * Calculates the ranges containing sensitive metadata that should be redacted if the caller
      * doesn't have the required permissions.
@@ -9001,7 +9673,11 @@ public class MediaProvider extends ContentProvider {
                 Optional<FileAccessAttributes> fileAttributesThroughXattr =
                         XAttrUtils.getFileAttributesFromXAttr(path,
                                 XAttrUtils.FILE_ACCESS_XATTR_KEY);
-                if (fileAttributesThroughXattr.isPresent()) {
+                // The xattr doesn't hold the owner package, so items that
+                // need an ownership check always go through the database
+                if (fileAttributesThroughXattr.isPresent()
+                        && !fileAttributesThroughXattr.get().isPending()
+                        && !fileAttributesThroughXattr.get().isTrashed()) {
                     fileAttributes = fileAttributesThroughXattr.get();
                 }
             }
@@ -9399,6 +10075,8 @@ public class MediaProvider extends ContentProvider {
             Log.e(TAG, "File deletion not allowed", e);
             return OsConstants.EPERM;
         } finally {
+            FileUtils.invalidateNoMediaCache(new File(path));
+            invalidateRedactionCache(path);
             restoreLocalCallingIdentity(token);
         }
     }
@@ -41,6 +41,8 @@ public interface TranscodeHelper {
 
     public boolean isTranscodeFileCached(String path, String transcodePath);
 
+    public void onTranscodeFileUsed(String transcodePath);
+
     public boolean deleteCachedTranscodeFile(long rowId);
 
     public void dump(PrintWriter writer);
@@ -343,18 +343,46 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         return matcher.matches();
     }
 
+    /**
+     * Minimum time between refreshes of the last modified time of a cached transcode file in
+     * {@link #onTranscodeFileUsed(String)}; {@link #freeCache(long)} only needs a coarse order.
+     */
+    private static final long TRANSCODE_FILE_USED_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
     public void freeCache(long bytes) {
-        File[] files = mTranscodeDirectory.listFiles();
+        freeCache(mTranscodeDirectory, bytes);
+    }
+
+    /**
+     * Deletes cached transcode files in {@code dir} until at least {@code bytes} have been freed,
+     * evicting the least recently used ones first. Each file's last modified time records when it
+     * was last used, see {@link #onTranscodeFileUsed(String)}.
+     */
+    @VisibleForTesting
+    static void freeCache(@NonNull File dir, long bytes) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Snapshot the times up front, since they may change while we sort
+        final List<Pair<File, Long>> entries = new ArrayList<>(files.length);
         for (File file : files) {
+            if (file.isFile()) {
+                entries.add(Pair.create(file, file.lastModified()));
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a.second, b.second));
+
+        for (Pair<File, Long> entry : entries) {
             if (bytes <= 0) {
                 return;
             }
-            if (file.exists() && file.isFile()) {
-                long size = file.length();
-                boolean deleted = file.delete();
-                if (deleted) {
-                    bytes -= size;
-                }
+            final File file = entry.first;
+            long size = file.length();
+            boolean deleted = file.delete();
+            if (deleted) {
+                bytes -= size;
             }
         }
     }
@@ -1157,6 +1185,20 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         return false;
     }
 
+    /**
+     * Marks the cached transcode file as recently used for {@link #freeCache(long)}, which evicts
+     * in LRU order. Only refreshes times older than {@link #TRANSCODE_FILE_USED_INTERVAL_MS}, so
+     * that repeated opens of the same file don't each write to the lower file system.
+     */
+    public void onTranscodeFileUsed(String transcodePath) {
+        final File file = new File(transcodePath);
+        final long now = System.currentTimeMillis();
+        if (now - file.lastModified() >= TRANSCODE_FILE_USED_INTERVAL_MS) {
+            // Failing only makes the file an earlier candidate for eviction
+            file.setLastModified(now);
+        }
+    }
+
     @Nullable
     private MediaFormat getVideoTrackFormat(String path) {
         String[] resolverInfoProjection = new String[]{
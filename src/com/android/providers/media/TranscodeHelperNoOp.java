@@ -55,6 +55,8 @@ public class TranscodeHelperNoOp implements TranscodeHelper {
         return false;
     }
 
+    public void onTranscodeFileUsed(String transcodePath) {}
+
     public boolean deleteCachedTranscodeFile(long rowId) {
         return false;
     }
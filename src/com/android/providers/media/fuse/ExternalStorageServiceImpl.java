@@ -36,6 +36,7 @@ import com.android.modules.utils.build.SdkLevel;
 import com.android.providers.media.MediaProvider;
 import com.android.providers.media.MediaService;
 import com.android.providers.media.MediaVolume;
+import com.android.providers.media.util.FileUtils;
 
 import com.android.modules.utils.BackgroundThread;
 
@@ -92,6 +93,8 @@ public final class ExternalStorageServiceImpl extends ExternalStorageService {
                 FuseDaemon daemon = new FuseDaemon(mediaProvider, this, deviceFd, sessionId,
                         upperFileSystemPath.getPath(), uncachedMode,
                         supportedTranscodingRelativePaths, supportedUncachedRelativePaths);
+                // All changes to .nomedia files now flow through us
+                FileUtils.setNoMediaCacheEnabled(true);
                 daemon.start();
                 sFuseDaemons.put(sessionId, daemon);
             }
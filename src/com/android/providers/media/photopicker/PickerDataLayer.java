@@ -32,6 +32,7 @@ import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.providers.media.PickerUriResolver;
 import com.android.providers.media.photopicker.data.CloudProviderQueryExtras;
 import com.android.providers.media.photopicker.data.PickerDbFacade;
 
@@ -44,17 +45,36 @@ import java.util.List;
 public class PickerDataLayer {
     private static final String TAG = "PickerDataLayer";
 
+    public static final String SYNC_IN_BACKGROUND_KEY = "picker_sync_in_background";
+
+    private static final Uri MEDIA_URI = PickerUriResolver.PICKER_INTERNAL_URI.buildUpon()
+            .appendPath(PickerUriResolver.MEDIA_PATH).build();
+    private static final Uri ALBUMS_URI = PickerUriResolver.PICKER_INTERNAL_URI.buildUpon()
+            .appendPath(PickerUriResolver.ALBUM_PATH).build();
+
     private final Context mContext;
     private final PickerDbFacade mDbFacade;
     private final PickerSyncController mSyncController;
     private final String mLocalProvider;
+    private final boolean mSyncInBackground;
 
     public PickerDataLayer(Context context, PickerDbFacade dbFacade,
             PickerSyncController syncController) {
+        this(context, dbFacade, syncController, /* syncInBackground */ false);
+    }
+
+    /**
+     * @param syncInBackground if {@code true}, queries against the 'media' table return whatever
+     * it currently holds while it's refreshed in the background, and the returned cursors are
+     * notified once that completes. Otherwise queries block until the refresh is done.
+     */
+    public PickerDataLayer(Context context, PickerDbFacade dbFacade,
+            PickerSyncController syncController, boolean syncInBackground) {
         mContext = context;
         mDbFacade = dbFacade;
         mSyncController = syncController;
         mLocalProvider = dbFacade.getLocalProvider();
+        mSyncInBackground = syncInBackground;
     }
 
     public Cursor fetchMedia(Bundle queryArgs) {
@@ -65,24 +85,36 @@ public class PickerDataLayer {
         // Use media table for all media except albums. Merged categories like,
         // favorites and video are tagged in the media table and are not a part of
         // album_media.
+        // Only refresh the tables for the first page, later pages continue where it ended
+        final boolean isNextPage = queryExtras.isNextPage();
         if (TextUtils.isEmpty(albumId) || isMergedAlbum(queryExtras)) {
-            // Refresh the 'media' table
-            mSyncController.syncAllMedia();
-
-            if (TextUtils.isEmpty(albumId)) {
-                // Notify that the picker is launched in case there's any pending UI notification
-                mSyncController.notifyPickerLaunch();
+            if (!isNextPage) {
+                // Refresh the 'media' table
+                syncAllMedia();
+
+                if (TextUtils.isEmpty(albumId)) {
+                    // Notify that the picker is launched in case there's any pending UI
+                    // notification
+                    mSyncController.notifyPickerLaunch();
+                }
             }
 
             // Fetch all merged and deduped cloud and local media from 'media' table
             // This also matches 'merged' albums like Favorites because |authority| will
             // be null, hence we have to fetch the data from the picker db
-            return mDbFacade.queryMediaForUi(queryExtras.toQueryFilter());
+            final Cursor cursor = mDbFacade.queryMediaForUi(queryExtras.toQueryFilter());
+            if (mSyncInBackground) {
+                cursor.setNotificationUri(mContext.getContentResolver(), MEDIA_URI);
+            }
+            return cursor;
         } else {
             // The album type here can only be local or cloud because merged categories like,
             // Favorites and Videos would hit the first condition.
-            // Refresh the 'album_media' table
-            mSyncController.syncAlbumMedia(albumId, isLocal(authority));
+            // Refresh the 'album_media' table. Since that resets the album, doing so between
+            // pages would also invalidate the ids they're keyed on.
+            if (!isNextPage) {
+                mSyncController.syncAlbumMedia(albumId, isLocal(authority));
+            }
 
             // Fetch album specific media for local or cloud from 'album_media' table
             return mDbFacade.queryAlbumMediaForUi(queryExtras.toQueryFilter(), authority);
@@ -101,7 +133,7 @@ public class PickerDataLayer {
 
     public Cursor fetchAlbums(Bundle queryArgs) {
         // Refresh the 'media' table so that 'merged' albums (Favorites and Videos) are up to date
-        mSyncController.syncAllMedia();
+        syncAllMedia();
 
         final String cloudProvider = mDbFacade.getCloudProvider();
         final CloudProviderQueryExtras queryExtras
@@ -133,9 +165,20 @@ public class PickerDataLayer {
 
         MergeCursor mergeCursor = new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
         mergeCursor.setExtras(cursorExtra);
+        if (mSyncInBackground) {
+            mergeCursor.setNotificationUri(mContext.getContentResolver(), ALBUMS_URI);
+        }
         return mergeCursor;
     }
 
+    private void syncAllMedia() {
+        if (mSyncInBackground) {
+            mSyncController.syncAllMediaAsync();
+        } else {
+            mSyncController.syncAllMedia();
+        }
+    }
+
     public AccountInfo fetchCloudAccountInfo() {
         final String cloudProvider = mDbFacade.getCloudProvider();
         if (cloudProvider == null) {
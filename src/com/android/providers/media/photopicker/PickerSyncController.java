@@ -49,10 +49,12 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.modules.utils.BackgroundThread;
 import com.android.modules.utils.build.SdkLevel;
+import com.android.providers.media.PickerUriResolver;
 import com.android.providers.media.R;
 import com.android.providers.media.photopicker.data.PickerDbFacade;
 import com.android.providers.media.util.ForegroundThread;
@@ -65,6 +67,11 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances on the device
@@ -79,6 +86,10 @@ public class PickerSyncController {
     private static final String PREFS_KEY_CLOUD_PROVIDER_AUTHORITY = "cloud_provider_authority";
     private static final String PREFS_KEY_CLOUD_PROVIDER_PENDING_NOTIFICATTION =
             "cloud_provider_pending_notification";
+    private static final String PREFS_KEY_RESUME_MEDIA_COLLECTION_ID =
+            "resume_media_collection_id";
+    private static final String PREFS_KEY_RESUME_PAGE_TOKEN = "resume_page_token";
+    private static final String PREFS_KEY_RESUME_SYNC_GENERATION = "resume_sync_generation";
     private static final String PREFS_KEY_CLOUD_PREFIX = "cloud_provider:";
     private static final String PREFS_KEY_LOCAL_PREFIX = "local_provider:";
 
@@ -87,6 +98,25 @@ public class PickerSyncController {
     public static final String LOCAL_PICKER_PROVIDER_AUTHORITY =
             "com.android.providers.media.photopicker";
 
+    /**
+     * Number of pages of a media sync written per transaction, so that the picker can show the
+     * media synced so far. A failed media sync resets all media of the provider anyway, so
+     * committing part of it is safe.
+     */
+    @VisibleForTesting
+    static final int SYNC_PAGES_PER_TRANSACTION = 10;
+
+    /**
+     * Runs the provider queries of paged syncs, which mustn't share a thread with the syncs
+     * themselves, since those wait for the pages.
+     */
+    private static final Executor sPageFetchExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Runs the syncs requested through {@link #syncAllMediaAsync()}.
+     */
+    private static final Executor sSyncExecutor = Executors.newSingleThreadExecutor();
+
     private static final int SYNC_TYPE_NONE = 0;
     private static final int SYNC_TYPE_MEDIA_INCREMENTAL = 1;
     private static final int SYNC_TYPE_MEDIA_FULL = 2;
@@ -102,6 +132,8 @@ public class PickerSyncController {
     private @interface SyncType {}
 
     private final Object mLock = new Object();
+    // Separate from mLock, which is held for the whole cloud sync
+    private final Object mSyncAllMediaFutureLock = new Object();
     private final PickerDbFacade mDbFacade;
     private final Context mContext;
     private final SharedPreferences mSyncPrefs;
@@ -113,6 +145,8 @@ public class PickerSyncController {
 
     @GuardedBy("mLock")
     private CloudProviderInfo mCloudProviderInfo;
+    @GuardedBy("mSyncAllMediaFutureLock")
+    private CompletableFuture<Void> mSyncAllMediaFuture;
 
     public PickerSyncController(Context context, PickerDbFacade dbFacade,
             String localProvider, String allowedCloudProviders, long syncDelayMs) {
@@ -145,6 +179,29 @@ public class PickerSyncController {
         Log.d(TAG, "Initialized cloud provider to: " + mCloudProviderInfo.authority);
     }
 
+    /**
+     * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances in the
+     * background, sharing any such sync that's already running rather than starting another.
+     * Observers of {@link PickerUriResolver#PICKER_INTERNAL_URI} are notified as the synced
+     * media is committed, and once the sync completes.
+     *
+     * @return a future that completes when the sync does
+     */
+    public CompletableFuture<Void> syncAllMediaAsync() {
+        synchronized (mSyncAllMediaFutureLock) {
+            if (mSyncAllMediaFuture == null || mSyncAllMediaFuture.isDone()) {
+                mSyncAllMediaFuture = CompletableFuture.runAsync(() -> {
+                    try {
+                        syncAllMedia();
+                    } finally {
+                        notifyPickerMediaChanged();
+                    }
+                }, sSyncExecutor);
+            }
+            return mSyncAllMediaFuture;
+        }
+    }
+
     /**
      * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances
      */
@@ -178,6 +235,11 @@ public class PickerSyncController {
         }
     }
 
+    private void notifyPickerMediaChanged() {
+        mContext.getContentResolver().notifyChange(PickerUriResolver.PICKER_INTERNAL_URI,
+                /* observer */ null);
+    }
+
     private void resetAlbumMedia() {
         executeSyncAlbumReset(mLocalProvider, /* albumId */ null);
 
@@ -437,6 +499,8 @@ public class PickerSyncController {
     }
 
     private void syncAllMediaFromProvider(String authority, boolean retryOnFailure) {
+        boolean isFullSync = false;
+        String resumePageToken = null;
         try {
             final SyncRequestParams params = getSyncRequestParams(authority);
 
@@ -446,23 +510,48 @@ public class PickerSyncController {
                     resetAllMedia(authority);
                     break;
                 case SYNC_TYPE_MEDIA_FULL:
-                    resetAllMedia(authority);
-
-                    // Pass a mutable empty bundle intentionally because it might be populated with
+                    // Pass a mutable bundle intentionally because it might be populated with
                     // the next page token as part of a query to a cloud provider supporting
                     // pagination
+                    final Bundle fullSyncArgs = new Bundle();
+                    isFullSync = true;
+                    resumePageToken = getResumePageToken(authority,
+                            params.getMediaCollectionId());
+                    final long fullSyncGeneration;
+                    if (resumePageToken == null) {
+                        resetAllMedia(authority);
+                        fullSyncGeneration = params.latestMediaCollectionInfo.getLong(
+                                MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION);
+                    } else {
+                        // Keep the media committed by an interrupted full sync of the same
+                        // collection, and continue after it. Media changed since that sync
+                        // started might be missing from the pages it already committed, so
+                        // the sync position stays where it started and the next incremental
+                        // sync picks those changes up
+                        Log.i(TAG, "Resuming full sync. Authority: " + authority
+                                + ". Page token: " + resumePageToken);
+                        fullSyncArgs.putString(EXTRA_PAGE_TOKEN, resumePageToken);
+                        fullSyncGeneration = getResumeSyncGeneration(authority);
+                    }
+
                     executeSyncAdd(authority, params.getMediaCollectionId(),
-                            /* isIncrementalSync */ false, /* queryArgs */ new Bundle());
+                            /* isIncrementalSync */ false, fullSyncArgs, fullSyncGeneration);
 
                     // Commit sync position
-                    cacheMediaCollectionInfo(authority, params.latestMediaCollectionInfo);
+                    final Bundle fullSyncInfo = new Bundle();
+                    fullSyncInfo.putString(MediaCollectionInfo.MEDIA_COLLECTION_ID,
+                            params.getMediaCollectionId());
+                    fullSyncInfo.putLong(MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION,
+                            fullSyncGeneration);
+                    cacheMediaCollectionInfo(authority, fullSyncInfo);
                     break;
                 case SYNC_TYPE_MEDIA_INCREMENTAL:
                     final Bundle queryArgs = new Bundle();
                     queryArgs.putLong(EXTRA_SYNC_GENERATION, params.syncGeneration);
 
                     executeSyncAdd(authority, params.getMediaCollectionId(),
-                            /* isIncrementalSync */ true, queryArgs);
+                            /* isIncrementalSync */ true, queryArgs,
+                            /* fullSyncGeneration */ -1);
                     executeSyncRemove(authority, params.getMediaCollectionId(), queryArgs);
 
                     // Commit sync position
@@ -474,6 +563,21 @@ public class PickerSyncController {
                     throw new IllegalArgumentException("Unexpected sync type: " + params.syncType);
             }
         } catch (RuntimeException e) {
+            final String checkpointPageToken = getResumePageToken(authority);
+            if (isFullSync && checkpointPageToken != null
+                    && !checkpointPageToken.equals(resumePageToken)) {
+                // A full sync committed some pages before failing, so keep them and let the
+                // retry resume from its last checkpoint. Resuming only continues while it
+                // makes progress, since a resumed sync that fails before its first checkpoint
+                // resets all media below
+                Log.e(TAG, "Failed to sync all media. Resume from checkpoint and retry: "
+                        + retryOnFailure, e);
+                if (retryOnFailure) {
+                    syncAllMediaFromProvider(authority, /* retryOnFailure */ false);
+                }
+                return;
+            }
+
             // Reset all media for the cloud provider in case it never succeeds
             resetAllMedia(authority);
 
@@ -513,18 +617,24 @@ public class PickerSyncController {
     }
 
     private void executeSyncAdd(String authority, String expectedMediaCollectionId,
-            boolean isIncrementalSync, Bundle queryArgs) {
+            boolean isIncrementalSync, Bundle queryArgs, long fullSyncGeneration) {
         final Uri uri = getMediaUri(authority);
         final List<String> expectedHonoredArgs = new ArrayList<>();
         if (isIncrementalSync) {
             expectedHonoredArgs.add(EXTRA_SYNC_GENERATION);
         }
 
+        // Only full syncs can resume from a checkpoint, since an incremental sync also needs
+        // to remove media afterwards
+        final Consumer<String> onCheckpoint = isIncrementalSync ? null
+                : pageToken -> cacheResumePageToken(authority, expectedMediaCollectionId,
+                        fullSyncGeneration, pageToken);
+
         Log.i(TAG, "Executing SyncAdd. authority: " + authority);
         try (PickerDbFacade.DbWriteOperation operation =
                      mDbFacade.beginAddMediaOperation(authority)) {
             executePagedSync(uri, expectedMediaCollectionId, expectedHonoredArgs, queryArgs,
-                    operation);
+                    operation, /* isCheckpointed */ true, onCheckpoint);
         }
     }
 
@@ -538,7 +648,7 @@ public class PickerSyncController {
             // We don't need to validate the mediaCollectionId for album_media sync since it's
             // always a full sync
             executePagedSync(uri, /* mediaCollectionId */ null, Arrays.asList(EXTRA_ALBUM_ID),
-                    queryArgs, operation);
+                    queryArgs, operation, /* isCheckpointed */ false, /* onCheckpoint */ null);
         }
     }
 
@@ -549,7 +659,7 @@ public class PickerSyncController {
         try (PickerDbFacade.DbWriteOperation operation =
                      mDbFacade.beginRemoveMediaOperation(authority)) {
             executePagedSync(uri, mediaCollectionId, Arrays.asList(EXTRA_SYNC_GENERATION),
-                    queryArgs, operation);
+                    queryArgs, operation, /* isCheckpointed */ true, /* onCheckpoint */ null);
         }
     }
 
@@ -593,6 +703,11 @@ public class PickerSyncController {
 
         final SharedPreferences.Editor editor = mSyncPrefs.edit();
 
+        // The sync either completed or is starting over, so it won't resume
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_MEDIA_COLLECTION_ID));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_PAGE_TOKEN));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION));
+
         if (bundle == null) {
             editor.remove(getPrefsKey(authority, MediaCollectionInfo.MEDIA_COLLECTION_ID));
             editor.remove(getPrefsKey(authority, MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION));
@@ -614,6 +729,54 @@ public class PickerSyncController {
         cacheMediaCollectionInfo(authority, /* bundle */ null);
     }
 
+    /**
+     * Records the page token that an interrupted full sync of {@code mediaCollectionId} should
+     * resume from, since all pages before it are committed, along with the sync generation
+     * that sync started from.
+     */
+    private void cacheResumePageToken(String authority, String mediaCollectionId,
+            long syncGeneration, String pageToken) {
+        mSyncPrefs.edit()
+                .putString(getPrefsKey(authority, PREFS_KEY_RESUME_MEDIA_COLLECTION_ID),
+                        mediaCollectionId)
+                .putString(getPrefsKey(authority, PREFS_KEY_RESUME_PAGE_TOKEN), pageToken)
+                .putLong(getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION),
+                        syncGeneration)
+                .apply();
+    }
+
+    /**
+     * Returns the sync generation the interrupted full sync started from, which a resumed sync
+     * commits once it completes.
+     */
+    private long getResumeSyncGeneration(String authority) {
+        return mSyncPrefs.getLong(getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION),
+                /* default */ -1);
+    }
+
+    @Nullable
+    private String getResumePageToken(String authority) {
+        if (authority == null) {
+            return null;
+        }
+        return mSyncPrefs.getString(getPrefsKey(authority, PREFS_KEY_RESUME_PAGE_TOKEN),
+                /* default */ null);
+    }
+
+    /**
+     * Returns the page token to resume a full sync of {@code mediaCollectionId} from, or
+     * {@code null} if it has to start from scratch.
+     */
+    @Nullable
+    private String getResumePageToken(String authority, String mediaCollectionId) {
+        final String resumeCollectionId = mSyncPrefs.getString(
+                getPrefsKey(authority, PREFS_KEY_RESUME_MEDIA_COLLECTION_ID), /* default */ null);
+        final boolean hasSyncGeneration = mSyncPrefs.contains(
+                getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION));
+        return hasSyncGeneration && Objects.equals(resumeCollectionId, mediaCollectionId)
+                ? getResumePageToken(authority) : null;
+    }
+
     private Bundle getCachedMediaCollectionInfo(String authority) {
         final Bundle bundle = new Bundle();
 
@@ -696,34 +859,125 @@ public class PickerSyncController {
 
     private void executePagedSync(Uri uri, String expectedMediaCollectionId,
             List<String> expectedHonoredArgs, Bundle queryArgs,
-            PickerDbFacade.DbWriteOperation dbWriteOperation) {
+            PickerDbFacade.DbWriteOperation dbWriteOperation, boolean isCheckpointed,
+            @Nullable Consumer<String> onCheckpoint) {
         int cursorCount = 0;
         int totalRowcount = 0;
-        // Set to check the uniqueness of tokens across pages.
-        Set<String> tokens = new ArraySet<>();
+        int pageCount = 0;
+        final PageFetcher fetcher = new PageFetcher(uri, expectedMediaCollectionId,
+                expectedHonoredArgs, queryArgs);
 
-        String nextPageToken = null;
-        do {
-            if (nextPageToken != null) {
-                queryArgs.putString(EXTRA_PAGE_TOKEN, nextPageToken);
+        // Fetch each page from the provider while the previous one is written to the db, which
+        // bounds the pages held in memory to two
+        CompletableFuture<Page> nextPage = fetcher.fetch(/* pageToken */ null);
+        try {
+            while (nextPage != null) {
+                try (Page page = Page.await(nextPage)) {
+                    nextPage = (page.nextPageToken != null)
+                            ? fetcher.fetch(page.nextPageToken) : null;
+
+                    int writeCount = dbWriteOperation.execute(page.cursor);
+
+                    totalRowcount += writeCount;
+                    cursorCount += page.cursor.getCount();
+
+                    if (isCheckpointed && ++pageCount % SYNC_PAGES_PER_TRANSACTION == 0
+                            && page.nextPageToken != null) {
+                        dbWriteOperation.checkpoint();
+                        // Only record the position once the pages before it are committed
+                        if (onCheckpoint != null) {
+                            onCheckpoint.accept(page.nextPageToken);
+                        }
+                        // Let the picker show the media committed so far
+                        notifyPickerMediaChanged();
+                    }
+                }
             }
-
-            try (Cursor cursor = query(uri, queryArgs)) {
-                nextPageToken = validateCursor(cursor, expectedMediaCollectionId,
-                        expectedHonoredArgs, tokens);
-
-                int writeCount = dbWriteOperation.execute(cursor);
-
-                totalRowcount += writeCount;
-                cursorCount += cursor.getCount();
+        } finally {
+            if (nextPage != null) {
+                // The sync failed, so release the page that's still being fetched
+                nextPage.whenComplete((page, e) -> {
+                    if (page != null) {
+                        page.close();
+                    }
+                });
             }
-        } while (nextPageToken != null);
+        }
 
         dbWriteOperation.setSuccess();
         Log.i(TAG, "Paged sync successful. QueryArgs: " + queryArgs + ". Result count: "
                 + totalRowcount + ". Cursor count: " + cursorCount);
     }
 
+    /**
+     * Fetches and validates the pages of a paged sync on {@link #sPageFetchExecutor}, one at a
+     * time, since each page determines the token of the next one.
+     */
+    private class PageFetcher {
+        private final Uri mUri;
+        private final String mExpectedMediaCollectionId;
+        private final List<String> mExpectedHonoredArgs;
+        private final Bundle mQueryArgs;
+        // Set to check the uniqueness of tokens across pages.
+        private final Set<String> mTokens = new ArraySet<>();
+
+        PageFetcher(Uri uri, String expectedMediaCollectionId,
+                List<String> expectedHonoredArgs, Bundle queryArgs) {
+            mUri = uri;
+            mExpectedMediaCollectionId = expectedMediaCollectionId;
+            mExpectedHonoredArgs = expectedHonoredArgs;
+            mQueryArgs = queryArgs;
+        }
+
+        CompletableFuture<Page> fetch(@Nullable String pageToken) {
+            return CompletableFuture.supplyAsync(() -> {
+                if (pageToken != null) {
+                    mQueryArgs.putString(EXTRA_PAGE_TOKEN, pageToken);
+                }
+
+                final Cursor cursor = query(mUri, mQueryArgs);
+                try {
+                    return new Page(cursor, validateCursor(cursor, mExpectedMediaCollectionId,
+                            mExpectedHonoredArgs, mTokens));
+                } catch (RuntimeException e) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    throw e;
+                }
+            }, sPageFetchExecutor);
+        }
+    }
+
+    private static class Page implements AutoCloseable {
+        private final Cursor cursor;
+        private final String nextPageToken;
+
+        Page(Cursor cursor, String nextPageToken) {
+            this.cursor = cursor;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * Waits for the given page, rethrowing any failure to fetch it as is.
+         */
+        static Page await(CompletableFuture<Page> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
     private CloudProviderInfo getDefaultCloudProviderInfo(String cachedProvider) {
         final List<CloudProviderInfo> infos =
                 getSupportedCloudProviders(/* ignoreAllowList */ false);
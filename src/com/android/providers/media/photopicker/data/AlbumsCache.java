@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.photopicker.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.CloudMediaProviderContract.AlbumColumns;
+import android.util.ArrayMap;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Holds the album summaries (count, cover id and latest date taken) computed by a db facade, so
+ * that opening the albums tab repeatedly doesn't scan the media table for every album each time.
+ * <p>
+ * Summaries are keyed by whatever filters the facade applies, e.g. the mime type, and rows are
+ * stored in the {@link AlbumColumns#ALL_PROJECTION} order. The facade must call
+ * {@link #invalidate()} once media changes are committed, or commit through
+ * {@link #invalidate(Runnable)}; each invalidation advances a generation so that summaries
+ * computed concurrently with a change are never stored, see {@link #put(Object, List, long)}.
+ */
+final class AlbumsCache<K> {
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<K, List<String[]>> mAlbums = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    /**
+     * Returns the current generation, which must be obtained before computing the summaries
+     * passed to {@link #put(Object, List, long)}.
+     */
+    long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Returns a new {@link Cursor} over the album summaries stored for {@code key}, or
+     * {@code null} if they need to be computed.
+     */
+    @Nullable
+    Cursor get(K key) {
+        final List<String[]> rows;
+        synchronized (mLock) {
+            rows = mAlbums.get(key);
+        }
+        return rows == null ? null : toCursor(rows);
+    }
+
+    /**
+     * Stores the album summaries for {@code key}, unless media changed since {@code generation}
+     * was obtained from {@link #getGeneration()}.
+     */
+    void put(K key, @NonNull List<String[]> rows, long generation) {
+        put(key, rows, generation, /* persist */ null);
+    }
+
+    /**
+     * Same as {@link #put(Object, List, long)}, but also runs {@code persist} if the summaries
+     * are stored, before any commit made through {@link #invalidate(Runnable)} can drop them.
+     */
+    void put(K key, @NonNull List<String[]> rows, long generation, @Nullable Runnable persist) {
+        synchronized (mLock) {
+            if (mGeneration == generation) {
+                if (persist != null) {
+                    persist.run();
+                }
+                mAlbums.put(key, rows);
+            }
+        }
+    }
+
+    /**
+     * Drops all album summaries, so that they are rebuilt from the media table on next query.
+     */
+    void invalidate() {
+        invalidate(/* commit */ null);
+    }
+
+    /**
+     * Runs {@code commit}, which commits media changes, and drops all album summaries in one
+     * step, so that summaries computed before the commit can't be stored after it.
+     */
+    void invalidate(@Nullable Runnable commit) {
+        synchronized (mLock) {
+            if (commit != null) {
+                commit.run();
+            }
+            mGeneration++;
+            mAlbums.clear();
+        }
+    }
+
+    /**
+     * Returns a new {@link Cursor} with {@link AlbumColumns#ALL_PROJECTION} over {@code rows}.
+     */
+    @NonNull
+    static Cursor toCursor(@NonNull List<String[]> rows) {
+        final MatrixCursor c = new MatrixCursor(AlbumColumns.ALL_PROJECTION, rows.size());
+        for (String[] row : rows) {
+            c.addRow(row);
+        }
+        return c;
+    }
+}
@@ -29,12 +29,22 @@ import android.provider.MediaStore;
  * Represents the {@link CloudMediaProviderContract} extra filters from a {@link Bundle}.
  */
 public class CloudProviderQueryExtras {
+    /**
+     * Picker-internal query args to fetch the page of items after the one that ended with the
+     * item with the given date taken and {@link PickerDbFacade#PICKER_ID}.
+     */
+    public static final String QUERY_ARG_DATE_TAKEN_BEFORE_MS =
+            "android:query-arg-date-taken-before-ms";
+    public static final String QUERY_ARG_PICKER_ID = "android:query-arg-picker-id";
+
     private final String mAlbumId;
     private final String mAlbumAuthority;
     private final String mMimeType;
     private final long mSizeBytes;
     private final long mGeneration;
     private final int mLimit;
+    private final long mDateTakenBeforeMs;
+    private final long mPickerId;
     private final boolean mIsFavorite;
     private final boolean mIsVideo;
 
@@ -45,18 +55,23 @@ public class CloudProviderQueryExtras {
         mSizeBytes = LONG_DEFAULT;
         mGeneration = LONG_DEFAULT;
         mLimit = LIMIT_DEFAULT;
+        mDateTakenBeforeMs = LONG_DEFAULT;
+        mPickerId = LONG_DEFAULT;
         mIsFavorite = BOOLEAN_DEFAULT;
         mIsVideo = BOOLEAN_DEFAULT;
     }
 
     private CloudProviderQueryExtras (String albumId, String albumAuthority, String mimeType,
-            long sizeBytes, long generation, int limit, boolean isFavorite, boolean isVideo) {
+            long sizeBytes, long generation, int limit, long dateTakenBeforeMs, long pickerId,
+            boolean isFavorite, boolean isVideo) {
         mAlbumId = albumId;
         mAlbumAuthority = albumAuthority;
         mMimeType = mimeType;
         mSizeBytes = sizeBytes;
         mGeneration = generation;
         mLimit = limit;
+        mDateTakenBeforeMs = dateTakenBeforeMs;
+        mPickerId = pickerId;
         mIsFavorite = isFavorite;
         mIsVideo = isVideo;
     }
@@ -75,6 +90,9 @@ public class CloudProviderQueryExtras {
         final long sizeBytes = bundle.getLong(MediaStore.QUERY_ARG_SIZE_BYTES, LONG_DEFAULT);
         final long generation = LONG_DEFAULT;
         final int limit = bundle.getInt(MediaStore.QUERY_ARG_LIMIT, LIMIT_DEFAULT);
+        final long dateTakenBeforeMs = bundle.getLong(QUERY_ARG_DATE_TAKEN_BEFORE_MS,
+                LONG_DEFAULT);
+        final long pickerId = bundle.getLong(QUERY_ARG_PICKER_ID, LONG_DEFAULT);
 
         final boolean isFavorite = localProvider.equals(albumAuthority)
                 && AlbumColumns.ALBUM_ID_FAVORITES.equals(albumId);
@@ -82,7 +100,7 @@ public class CloudProviderQueryExtras {
                 && AlbumColumns.ALBUM_ID_VIDEOS.equals(albumId);
 
         return new CloudProviderQueryExtras(albumId, albumAuthority, mimeType, sizeBytes,
-                generation, limit, isFavorite, isVideo);
+                generation, limit, dateTakenBeforeMs, pickerId, isFavorite, isVideo);
     }
 
     public static CloudProviderQueryExtras fromCloudMediaBundle(Bundle bundle) {
@@ -100,12 +118,14 @@ public class CloudProviderQueryExtras {
         final long generation = bundle.getLong(CloudMediaProviderContract.EXTRA_SYNC_GENERATION,
                 LONG_DEFAULT);
         final int limit = LIMIT_DEFAULT;
+        final long dateTakenBeforeMs = LONG_DEFAULT;
+        final long pickerId = LONG_DEFAULT;
 
         final boolean isFavorite = BOOLEAN_DEFAULT;
         final boolean isVideo = BOOLEAN_DEFAULT;
 
         return new CloudProviderQueryExtras(albumId, albumAuthority, mimeType, sizeBytes,
-                generation, limit, isFavorite, isVideo);
+                generation, limit, dateTakenBeforeMs, pickerId, isFavorite, isVideo);
     }
 
     public PickerDbFacade.QueryFilter toQueryFilter() {
@@ -115,6 +135,8 @@ public class CloudProviderQueryExtras {
         qfb.setIsFavorite(mIsFavorite);
         qfb.setIsVideo(mIsVideo);
         qfb.setAlbumId(mAlbumId);
+        qfb.setDateTakenBeforeMs(mDateTakenBeforeMs);
+        qfb.setId(mPickerId);
         return qfb.build();
     }
 
@@ -147,6 +169,13 @@ public class CloudProviderQueryExtras {
         return mGeneration;
     }
 
+    /**
+     * Returns {@code true} if these extras ask for a page of items following an earlier one.
+     */
+    public boolean isNextPage() {
+        return mPickerId >= 0;
+    }
+
     public boolean isFavorite() {
         return mIsFavorite;
     }
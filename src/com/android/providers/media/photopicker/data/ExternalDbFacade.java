@@ -47,6 +47,7 @@ import android.provider.MediaStore.Files.FileColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 
 import androidx.annotation.VisibleForTesting;
 
@@ -133,6 +134,8 @@ public class ExternalDbFacade {
     private final Context mContext;
     private final DatabaseHelper mDatabaseHelper;
     private final VolumeCache mVolumeCache;
+    // Keyed by the mime type filter and the external volumes queried
+    private final AlbumsCache<Pair<String, String>> mAlbumsCache = new AlbumsCache<>();
 
     public ExternalDbFacade(Context context, DatabaseHelper databaseHelper,
             VolumeCache volumeCache) {
@@ -150,7 +153,12 @@ public class ExternalDbFacade {
             return false;
         }
 
-        return !isPending && MimeUtils.isImageOrVideoMediaType(mediaType);
+        final boolean isMedia = MimeUtils.isImageOrVideoMediaType(mediaType);
+        if (isMedia && !isPending) {
+            // Pending media is left out of the albums until it's published by an update
+            mAlbumsCache.invalidate();
+        }
+        return !isPending && isMedia;
     }
 
     /**
@@ -170,6 +178,11 @@ public class ExternalDbFacade {
         final boolean oldIsMedia= MimeUtils.isImageOrVideoMediaType(oldMediaType);
         final boolean newIsMedia = MimeUtils.isImageOrVideoMediaType(newMediaType);
 
+        if (oldIsMedia || newIsMedia) {
+            // Any update, e.g. a move or a new date taken, may change the album summaries
+            mAlbumsCache.invalidate();
+        }
+
         final boolean oldIsVisible = !oldIsTrashed && !oldIsPending;
         final boolean newIsVisible = !newIsTrashed && !newIsPending;
 
@@ -209,10 +222,20 @@ public class ExternalDbFacade {
             return false;
         }
 
+        mAlbumsCache.invalidate();
         addDeletedMedia(id);
         return true;
     }
 
+    /**
+     * Drops the album summaries returned by {@link #queryAlbums(String)}, so that they are
+     * rebuilt from the files table on next query. Only needed when media is changed without going
+     * through {@link #onFileInserted}, {@link #onFileUpdated} or {@link #onFileDeleted}.
+     */
+    public void invalidateAlbums() {
+        mAlbumsCache.invalidate();
+    }
+
     /**
      * Adds media with row id {@code oldId} to the deleted_media table. Returns {@code true} if
      * if it was successfully added, {@code false} otherwise.
@@ -373,10 +396,19 @@ public class ExternalDbFacade {
      * Returns the media item categories from the files table.
      * Categories are determined with the {@link #LOCAL_ALBUM_IDS}.
      * If there are no media items under an albumId, the album is skipped from the results.
+     *
+     * The album summaries are computed once and then served from memory until media changes.
      */
     public Cursor queryAlbums(String mimeType) {
-        final MatrixCursor c = new MatrixCursor(AlbumColumns.ALL_PROJECTION);
+        final Pair<String, String> key = Pair.create(mimeType,
+                TextUtils.join(":", getVolumeList()));
+        final Cursor cached = mAlbumsCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
 
+        final long generation = mAlbumsCache.getGeneration();
+        final List<String[]> rows = new ArrayList<>();
         for (String albumId: LOCAL_ALBUM_IDS) {
             Cursor cursor = mDatabaseHelper.runWithTransaction(db -> {
                 final SQLiteQueryBuilder qb = createMediaQueryBuilder();
@@ -406,10 +438,11 @@ public class ExternalDbFacade {
                 PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY
             };
 
-            c.addRow(projectionValue);
+            rows.add(projectionValue);
         }
 
-        return c;
+        mAlbumsCache.put(key, rows, generation);
+        return AlbumsCache.toCursor(rows);
     }
 
     private static Cursor query(SQLiteQueryBuilder qb, SQLiteDatabase db, String[] projection,
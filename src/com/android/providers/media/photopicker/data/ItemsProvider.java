@@ -79,11 +79,31 @@ public class ItemsProvider {
     public Cursor getItems(Category category, int offset,
             int limit, @Nullable String mimeType, @Nullable UserId userId) throws
             IllegalArgumentException {
+        return getItems(category, /* dateTakenBeforeMs */ -1, /* pickerId */ -1, limit, mimeType,
+                userId);
+    }
+
+    /**
+     * Like {@link #getItems(Category, int, int, String, UserId)}, but returns the page of items
+     * following the one that ended with the item with the given {@code dateTakenBeforeMs} and
+     * {@code pickerId}, as found in its
+     * {@link CloudMediaProviderContract.MediaColumns#DATE_TAKEN_MILLIS} and
+     * {@link PickerDbFacade#PICKER_ID} columns.
+     *
+     * @param dateTakenBeforeMs the date taken of the last item of the previous page, or -1 to
+     *                          return the first page.
+     * @param pickerId the picker id of the last item of the previous page, or -1 to return the
+     *                 first page.
+     */
+    @Nullable
+    public Cursor getItems(Category category, long dateTakenBeforeMs, long pickerId,
+            int limit, @Nullable String mimeType, @Nullable UserId userId) throws
+            IllegalArgumentException {
         if (userId == null) {
             userId = UserId.CURRENT_USER;
         }
 
-        return queryMedia(limit, mimeType, category, userId);
+        return queryMedia(dateTakenBeforeMs, pickerId, limit, mimeType, category, userId);
     }
 
     /**
@@ -115,8 +135,8 @@ public class ItemsProvider {
         return queryAlbums(mimeType, userId);
     }
 
-    private Cursor queryMedia(int limit, @Nullable String mimeType,
-            @NonNull Category category, @NonNull UserId userId)
+    private Cursor queryMedia(long dateTakenBeforeMs, long pickerId, int limit,
+            @Nullable String mimeType, @NonNull Category category, @NonNull UserId userId)
             throws IllegalStateException {
         final Bundle extras = new Bundle();
         try (ContentProviderClient client = userId.getContentResolver(mContext)
@@ -127,6 +147,11 @@ public class ItemsProvider {
                 return null;
             }
             extras.putInt(MediaStore.QUERY_ARG_LIMIT, limit);
+            if (pickerId >= 0) {
+                extras.putLong(CloudProviderQueryExtras.QUERY_ARG_DATE_TAKEN_BEFORE_MS,
+                        dateTakenBeforeMs);
+                extras.putLong(CloudProviderQueryExtras.QUERY_ARG_PICKER_ID, pickerId);
+            }
             extras.putString(MediaStore.QUERY_ARG_MIME_TYPE, mimeType);
             extras.putString(MediaStore.QUERY_ARG_ALBUM_ID, category.getId());
             extras.putString(MediaStore.QUERY_ARG_ALBUM_AUTHORITY, category.getAuthority());
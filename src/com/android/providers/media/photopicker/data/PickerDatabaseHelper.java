@@ -37,7 +37,7 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
     @VisibleForTesting
     static final String PICKER_DATABASE_NAME = "picker.db";
 
-    private static final int VERSION_T = 7;
+    private static final int VERSION_T = 8;
     private static final int VERSION_LATEST = VERSION_T;
 
     final Context mContext;
@@ -139,6 +139,15 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
                 + "OR (local_id IS NOT NULL AND cloud_id IS NULL)),"
                 + "UNIQUE(local_id,  album_id),"
                 + "UNIQUE(cloud_id, album_id))");
+
+        // Merged album summaries per mime type filter, cleared whenever media changes
+        db.execSQL("CREATE TABLE album_summary (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "mime_type_filter TEXT NOT NULL,"
+                + "album_id TEXT NOT NULL,"
+                + "date_taken_ms INTEGER,"
+                + "media_cover_id TEXT,"
+                + "media_count INTEGER NOT NULL CHECK(media_count >= 0),"
+                + "UNIQUE(mime_type_filter, album_id))");
     }
 
     private static void createLatestIndexes(SQLiteDatabase db) {
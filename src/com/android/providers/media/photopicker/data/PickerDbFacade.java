@@ -32,10 +32,10 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.SystemProperties;
 import android.provider.DeviceConfig;
@@ -51,6 +51,8 @@ import androidx.annotation.VisibleForTesting;
 import com.android.providers.media.photopicker.PickerSyncController;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -66,6 +68,9 @@ public class PickerDbFacade {
     private final Context mContext;
     private final SQLiteDatabase mDatabase;
     private final String mLocalProvider;
+    // Keyed by the mime type filter of merged album queries, and backed by the album_summary
+    // table so that summaries outlive the process
+    private final AlbumsCache<String> mAlbumsCache = new AlbumsCache<>();
     private String mCloudProvider;
 
     public PickerDbFacade(Context context) {
@@ -96,6 +101,8 @@ public class PickerDbFacade {
     // not required for picker paths sent across users
     private static final String PICKER_PATH = "/sdcard/" + getPickerRelativePath();
     private static final String TABLE_ALBUM_MEDIA = "album_media";
+    @VisibleForTesting
+    static final String TABLE_ALBUM_SUMMARY = "album_summary";
 
     @VisibleForTesting
     public static final String KEY_ID = "_id";
@@ -121,6 +128,16 @@ public class PickerDbFacade {
     public static final String KEY_IS_FAVORITE = "is_favorite";
     @VisibleForTesting
     public static final String KEY_ALBUM_ID = "album_id";
+    private static final String KEY_MIME_TYPE_FILTER = "mime_type_filter";
+    private static final String KEY_MEDIA_COVER_ID = "media_cover_id";
+    private static final String KEY_MEDIA_COUNT = "media_count";
+
+    /**
+     * Column in cursors returned for the picker UI holding the picker db row id of each item.
+     * Together with the date taken, it identifies where a page of items ended, see
+     * {@link QueryFilterBuilder#setId(long)}.
+     */
+    public static final String PICKER_ID = "picker_id";
 
     @VisibleForTesting
     public static final String IMAGE_FILE_EXTENSION = ".jpg";
@@ -144,6 +161,7 @@ public class PickerDbFacade {
             String.format("%s < ? OR (%s = ? AND %s < ?)",
                     KEY_DATE_TAKEN_MS, KEY_DATE_TAKEN_MS, KEY_ID);
     private static final String WHERE_ALBUM_ID = KEY_ALBUM_ID  + " = ?";
+    private static final String WHERE_MIME_TYPE_FILTER = KEY_MIME_TYPE_FILTER + " = ?";
 
     private static final String[] PROJECTION_ALBUM_DB = new String[] {
         "COUNT(" + KEY_ID + ") AS " + CloudMediaProviderContract.AlbumColumns.MEDIA_COUNT,
@@ -153,8 +171,6 @@ public class PickerDbFacade {
                 KEY_LOCAL_ID, CloudMediaProviderContract.AlbumColumns.MEDIA_COVER_ID)
     };
 
-    // Matches all media including cloud+local, cloud-only and local-only
-    private static final SQLiteQueryBuilder QB_MATCH_ALL = createMediaQueryBuilder();
     // Matches media with id
     private static final SQLiteQueryBuilder QB_MATCH_ID = createIdMediaQueryBuilder();
     // Matches media with local_id including cloud+local and local-only
@@ -163,19 +179,14 @@ public class PickerDbFacade {
     private static final SQLiteQueryBuilder QB_MATCH_CLOUD = createCloudMediaQueryBuilder();
     // Matches all visible media including cloud+local, cloud-only and local-only
     private static final SQLiteQueryBuilder QB_MATCH_VISIBLE = createVisibleMediaQueryBuilder();
-    // Matches visible media with local_id including cloud+local and local-only
-    private static final SQLiteQueryBuilder QB_MATCH_VISIBLE_LOCAL =
-            createVisibleLocalMediaQueryBuilder();
     // Matches stricly local-only media
     private static final SQLiteQueryBuilder QB_MATCH_LOCAL_ONLY =
             createLocalOnlyMediaQueryBuilder();
 
     private static final ContentValues CONTENT_VALUE_VISIBLE = new ContentValues();
-    private static final ContentValues CONTENT_VALUE_HIDDEN = new ContentValues();
 
     static {
         CONTENT_VALUE_VISIBLE.put(KEY_IS_VISIBLE, 1);
-        CONTENT_VALUE_HIDDEN.putNull(KEY_IS_VISIBLE);
     }
 
     /**
@@ -207,7 +218,7 @@ public class PickerDbFacade {
      * db.
      */
     public DbWriteOperation beginAddMediaOperation(String authority) {
-        return new AddMediaOperation(mDatabase, isLocal(authority));
+        return new AddMediaOperation(mDatabase, isLocal(authority), mAlbumsCache);
     }
 
     /**
@@ -223,7 +234,7 @@ public class PickerDbFacade {
      * picker db.
      */
     public DbWriteOperation beginRemoveMediaOperation(String authority) {
-        return new RemoveMediaOperation(mDatabase, isLocal(authority));
+        return new RemoveMediaOperation(mDatabase, isLocal(authority), mAlbumsCache);
     }
 
     /**
@@ -233,7 +244,7 @@ public class PickerDbFacade {
      * @param authority to determine whether local or cloud media should be cleared
      */
     public DbWriteOperation beginResetMediaOperation(String authority) {
-        return new ResetMediaOperation(mDatabase, isLocal(authority));
+        return new ResetMediaOperation(mDatabase, isLocal(authority), mAlbumsCache);
     }
 
     /**
@@ -256,19 +267,31 @@ public class PickerDbFacade {
         private final SQLiteDatabase mDatabase;
         private final boolean mIsLocal;
         private final String mAlbumId;
+        // Invalidated on commit along with the summaries stored in the picker db, since media
+        // writes change the merged album summaries
+        @Nullable
+        private final AlbumsCache<?> mAlbumsCache;
 
         private boolean mIsSuccess = false;
+        // Whether media was written since the albums were last invalidated
+        private boolean mHasWrites = false;
 
-        // Needed for Album Media Write operations.
-        private DbWriteOperation(SQLiteDatabase database, boolean isLocal) {
-            this(database, isLocal, "");
+        private DbWriteOperation(SQLiteDatabase database, boolean isLocal,
+                AlbumsCache<?> albumsCache) {
+            this(database, isLocal, "", albumsCache);
         }
 
         // Needed for Album Media Write operations.
         private DbWriteOperation(SQLiteDatabase database, boolean isLocal, String albumId) {
+            this(database, isLocal, albumId, /* albumsCache */ null);
+        }
+
+        private DbWriteOperation(SQLiteDatabase database, boolean isLocal, String albumId,
+                @Nullable AlbumsCache<?> albumsCache) {
             mDatabase = database;
             mIsLocal = isLocal;
             mAlbumId = albumId;
+            mAlbumsCache = albumsCache;
             mDatabase.beginTransaction();
         }
 
@@ -284,22 +307,40 @@ public class PickerDbFacade {
             if (!mDatabase.inTransaction()) {
                 throw new IllegalStateException("No ongoing DB transaction.");
             }
-            return executeInternal(cursor);
+            final int count = executeInternal(cursor);
+            if (count > 0) {
+                mHasWrites = true;
+            }
+            return count;
         }
 
         public void setSuccess() {
             mIsSuccess = true;
         }
 
+        /**
+         * Commits the writes executed so far and continues in a new transaction, so that
+         * readers see them before the whole operation completes.
+         *
+         * @throws {@link IllegalStateException} if no DB transaction is active
+         */
+        public void checkpoint() {
+            if (!mDatabase.inTransaction()) {
+                throw new IllegalStateException("No ongoing DB transaction.");
+            }
+            commit();
+            mDatabase.beginTransaction();
+        }
+
         @Override
         public void close() {
             if (mDatabase.inTransaction()) {
                 if (mIsSuccess) {
-                    mDatabase.setTransactionSuccessful();
+                    commit();
                 } else {
                     Log.w(TAG, "DB write transaction failed.");
+                    mDatabase.endTransaction();
                 }
-                mDatabase.endTransaction();
             } else {
                 throw new IllegalStateException("close() has already been called previously.");
             }
@@ -307,6 +348,21 @@ public class PickerDbFacade {
 
         abstract int executeInternal(@Nullable Cursor cursor);
 
+        private void commit() {
+            if (mAlbumsCache != null && mHasWrites) {
+                mDatabase.delete(TABLE_ALBUM_SUMMARY, /* whereClause */ null, /* whereArgs */ null);
+                mAlbumsCache.invalidate(this::endSuccessfulTransaction);
+                mHasWrites = false;
+            } else {
+                endSuccessfulTransaction();
+            }
+        }
+
+        private void endSuccessfulTransaction() {
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+        }
+
         SQLiteDatabase getDatabase() {
             return mDatabase;
         }
@@ -349,95 +405,151 @@ public class PickerDbFacade {
     }
 
     private static final class AddMediaOperation extends DbWriteOperation {
+        /**
+         * Maximum number of local ids bound to a single demotion statement, well below the
+         * default bind arg limit of older SQLite versions.
+         */
+        private static final int DEMOTE_CLOUD_MEDIA_BATCH_SIZE = 500;
 
-        private AddMediaOperation(SQLiteDatabase database, boolean isLocal) {
-            super(database, isLocal);
+        private AddMediaOperation(SQLiteDatabase database, boolean isLocal,
+                AlbumsCache<?> albumsCache) {
+            super(database, isLocal, albumsCache);
         }
 
         @Override
         int executeInternal(@Nullable Cursor cursor) {
             final boolean isLocal = isLocal();
-            final SQLiteQueryBuilder qb = isLocal ? QB_MATCH_LOCAL_ONLY : QB_MATCH_CLOUD;
-            int counter = 0;
-
-            while (cursor.moveToNext()) {
-                ContentValues values = cursorToContentValue(cursor, isLocal);
-
-                String[] upsertArgs = {values.getAsString(isLocal ?
-                        KEY_LOCAL_ID : KEY_CLOUD_ID)};
-                if (upsertMedia(qb, values, upsertArgs) == SUCCESS) {
-                    counter++;
-                    continue;
+            final String[] cursorColumns = cursor.getColumnNames();
+
+            // Map cursor columns to bind args once per page, rather than building ContentValues
+            // for every row
+            final List<String> columns = new ArrayList<>();
+            final List<Integer> cursorIndexes = new ArrayList<>();
+            for (int index = 0; index < cursorColumns.length; index++) {
+                final String column = getMediaColumn(cursorColumns[index], isLocal);
+                if (column == null) {
+                    Log.w(TAG, "Unexpected cursor key: " + cursorColumns[index]);
+                } else if (!columns.contains(column)) {
+                    columns.add(column);
+                    cursorIndexes.add(index);
                 }
+            }
+            final int idPosition = columns.indexOf(isLocal ? KEY_LOCAL_ID : KEY_CLOUD_ID);
+            if (idPosition < 0) {
+                Log.w(TAG, "Missing media id in cursor with columns: "
+                        + Arrays.toString(cursorColumns));
+                return 0;
+            }
+            final int idIndex = cursorIndexes.get(idPosition);
 
-                // Because we want to prioritize visible local media over visible cloud media,
-                // we do the following if the upsert above failed
-                if (isLocal) {
-                    // For local syncs, we attempt hiding the visible cloud media
-                    String cloudId = getVisibleCloudIdFromDb(values.getAsString(KEY_LOCAL_ID));
-                    demoteCloudMediaToHidden(cloudId);
-                } else {
-                    // For cloud syncs, we prepare an upsert as hidden cloud media
-                    values.putNull(KEY_IS_VISIBLE);
-                }
+            if (isLocal) {
+                demoteCloudMedia(cursor, idIndex);
+            }
 
-                // Now attempt upsert again, this should succeed
-                if (upsertMedia(qb, values, upsertArgs) == SUCCESS) {
-                    counter++;
+            int counter = 0;
+            try (SQLiteStatement upsert = getDatabase().compileStatement(
+                    buildUpsertSql(columns, isLocal))) {
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    upsert.clearBindings();
+                    for (int i = 0; i < columns.size(); i++) {
+                        bindMediaColumn(upsert, i + 1, cursor, cursorIndexes.get(i));
+                    }
+
+                    try {
+                        if (upsert.executeUpdateDelete() > 0) {
+                            counter++;
+                        }
+                    } catch (SQLiteConstraintException e) {
+                        Log.d(TAG, "Failed to upsert picker db media. Id: "
+                                + cursor.getString(idIndex), e);
+                    }
                 }
             }
             return counter;
         }
 
-        private int insertMedia(ContentValues values) {
-            try {
-                if (QB_MATCH_ALL.insert(getDatabase(), values) > 0) {
-                    return SUCCESS;
-                } else {
-                    Log.d(TAG, "Failed to insert picker db media. ContentValues: " + values);
-                    return FAIL;
+        /**
+         * Hides the visible cloud media matching any local id in {@code cursor}, since visible
+         * local media takes priority over visible cloud media. Runs a single statement per
+         * {@link #DEMOTE_CLOUD_MEDIA_BATCH_SIZE} ids rather than one per row.
+         */
+        private void demoteCloudMedia(Cursor cursor, int idIndex) {
+            final List<String> localIds = new ArrayList<>(cursor.getCount());
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                final String localId = cursor.getString(idIndex);
+                if (localId != null) {
+                    localIds.add(localId);
                 }
-            } catch (SQLiteConstraintException e) {
-                Log.d(TAG, "Failed to insert picker db media. ContentValues: " + values, e);
-                return RETRY;
             }
-        }
 
-        private int upsertMedia(SQLiteQueryBuilder qb,
-                ContentValues values, String[] selectionArgs) {
-            int res = insertMedia(values);
-            if (res == RETRY) {
-                // Attempt equivalent of CONFLICT_REPLACE resolution
-                Log.d(TAG, "Retrying failed insert as update. ContentValues: " + values);
-                res = updateMedia(qb, values, selectionArgs);
+            for (int start = 0; start < localIds.size();
+                    start += DEMOTE_CLOUD_MEDIA_BATCH_SIZE) {
+                final List<String> batch = localIds.subList(start,
+                        Math.min(start + DEMOTE_CLOUD_MEDIA_BATCH_SIZE, localIds.size()));
+                final String sql = "UPDATE " + TABLE_MEDIA + " SET " + KEY_IS_VISIBLE
+                        + " = NULL WHERE " + KEY_LOCAL_ID + " IN ("
+                        + TextUtils.join(", ", Collections.nCopies(batch.size(), "?"))
+                        + ") AND " + WHERE_IS_VISIBLE + " AND " + WHERE_NOT_NULL_CLOUD_ID;
+                getDatabase().execSQL(sql, batch.toArray());
             }
-
-            return res;
         }
 
-        private void demoteCloudMediaToHidden(@Nullable String cloudId) {
-            if (cloudId == null) {
-                return;
+        /**
+         * Returns an {@code INSERT ... ON CONFLICT DO UPDATE} statement binding the given
+         * {@code columns} as numbered args, which decides the visibility of each row in SQL:
+         * local media is always visible, and cloud media is only visible when no other visible
+         * media has the same local id.
+         */
+        private static String buildUpsertSql(List<String> columns, boolean isLocal) {
+            final StringBuilder insertColumns = new StringBuilder();
+            final StringBuilder insertValues = new StringBuilder();
+            final StringBuilder updates = new StringBuilder();
+            for (int i = 0; i < columns.size(); i++) {
+                final String column = columns.get(i);
+                insertColumns.append(column).append(", ");
+                insertValues.append('?').append(i + 1).append(", ");
+                if (!column.equals(isLocal ? KEY_LOCAL_ID : KEY_CLOUD_ID)) {
+                    updates.append(column).append(" = excluded.").append(column).append(", ");
+                }
             }
 
-            final String[] updateArgs = new String[] {cloudId};
-            if (updateMedia(QB_MATCH_CLOUD, CONTENT_VALUE_HIDDEN, updateArgs) == SUCCESS) {
-                Log.d(TAG, "Demoted picker db media item to hidden. CloudId: " + cloudId);
+            final String conflictTarget;
+            final String insertVisible;
+            final String updateVisible;
+            if (isLocal) {
+                conflictTarget = KEY_LOCAL_ID + ", " + KEY_IS_VISIBLE;
+                insertVisible = "1";
+                updateVisible = "1";
+            } else {
+                final int localIdArg = columns.indexOf(KEY_LOCAL_ID) + 1;
+                conflictTarget = KEY_CLOUD_ID;
+                insertVisible = (localIdArg == 0) ? "1" : "CASE WHEN EXISTS (SELECT 1 FROM "
+                        + TABLE_MEDIA + " WHERE " + KEY_LOCAL_ID + " = ?" + localIdArg
+                        + " AND " + WHERE_IS_VISIBLE + ") THEN NULL ELSE 1 END";
+                // Evaluated against the existing row, so compare with the local id it's about
+                // to have, and ignore the row itself
+                final String localId = (localIdArg == 0)
+                        ? TABLE_MEDIA + "." + KEY_LOCAL_ID : "excluded." + KEY_LOCAL_ID;
+                updateVisible = "CASE WHEN EXISTS (SELECT 1 FROM " + TABLE_MEDIA
+                        + " AS other WHERE other." + KEY_LOCAL_ID + " = " + localId
+                        + " AND other." + KEY_IS_VISIBLE + " = 1 AND other." + KEY_ID + " != "
+                        + TABLE_MEDIA + "." + KEY_ID + ") THEN NULL ELSE 1 END";
             }
-        }
 
-        private String getVisibleCloudIdFromDb(String localId) {
-            final String[] cloudIdProjection = new String[] {KEY_CLOUD_ID};
-            final String[] queryArgs = new String[] {localId};
-            return querySingleMedia(QB_MATCH_VISIBLE_LOCAL, cloudIdProjection, queryArgs,
-                    /* columnIndex */ 0);
+            return "INSERT INTO " + TABLE_MEDIA + " (" + insertColumns + KEY_IS_VISIBLE
+                    + ") VALUES (" + insertValues + insertVisible + ") ON CONFLICT ("
+                    + conflictTarget + ") DO UPDATE SET " + updates + KEY_IS_VISIBLE + " = "
+                    + updateVisible;
         }
     }
 
     private static final class RemoveMediaOperation extends DbWriteOperation {
 
-        private RemoveMediaOperation(SQLiteDatabase database, boolean isLocal) {
-            super(database, isLocal);
+        private RemoveMediaOperation(SQLiteDatabase database, boolean isLocal,
+                AlbumsCache<?> albumsCache) {
+            super(database, isLocal, albumsCache);
         }
 
         @Override
@@ -507,8 +619,9 @@ public class PickerDbFacade {
 
     private static final class ResetMediaOperation extends DbWriteOperation {
 
-        private ResetMediaOperation(SQLiteDatabase database, boolean isLocal) {
-            super(database, isLocal);
+        private ResetMediaOperation(SQLiteDatabase database, boolean isLocal,
+                AlbumsCache<?> albumsCache) {
+            super(database, isLocal, albumsCache);
         }
 
         @Override
@@ -724,9 +837,25 @@ public class PickerDbFacade {
     /**
      * Returns empty {@link Cursor} if there are no items matching merged album constraints {@code
      * query}
+     *
+     * The album summaries are computed once per mime type filter and stored in the picker db
+     * until media changes, see {@link #invalidateAlbums()}.
      */
     public Cursor getMergedAlbums(QueryFilter query) {
-        final MatrixCursor c = new MatrixCursor(AlbumColumns.ALL_PROJECTION);
+        final Cursor cached = mAlbumsCache.get(query.mMimeType);
+        if (cached != null) {
+            return cached;
+        }
+
+        final long generation = mAlbumsCache.getGeneration();
+        final List<String[]> stored = queryAlbumSummaries(query.mMimeType);
+        if (stored != null) {
+            final List<String[]> rows = getNonEmptyAlbums(stored);
+            mAlbumsCache.put(query.mMimeType, rows, generation);
+            return AlbumsCache.toCursor(rows);
+        }
+
+        final List<String[]> summaries = new ArrayList<>();
         List<String> mergedAlbums = List.of(ALBUM_ID_FAVORITES, ALBUM_ID_VIDEOS);
         for (String albumId : mergedAlbums) {
             List<String> selectionArgs = new ArrayList<>();
@@ -742,30 +871,120 @@ public class PickerDbFacade {
                 selectionArgs.add(query.mMimeType.replace('*', '%'));
             }
 
-            Cursor cursor = qb.query(mDatabase, PROJECTION_ALBUM_DB, /* selection */ null,
+            try (Cursor cursor = qb.query(mDatabase, PROJECTION_ALBUM_DB, /* selection */ null,
                     selectionArgs.toArray(new String[0]), /* groupBy */ null, /* having */ null,
-                    /* orderBy */ null, /* limit */ null);
+                    /* orderBy */ null, /* limit */ null)) {
+                // Empty albums are stored too, so that they aren't recomputed either
+                final boolean hasRow = cursor != null && cursor.moveToFirst();
+                final String[] projectionValue = new String[]{
+                        /* albumId */ albumId,
+                        hasRow ? getCursorString(cursor, AlbumColumns.DATE_TAKEN_MILLIS) : null,
+                        /* displayName */ albumId,
+                        hasRow ? getCursorString(cursor, AlbumColumns.MEDIA_COVER_ID) : null,
+                        hasRow ? String.valueOf(
+                                getCursorLong(cursor, AlbumColumns.MEDIA_COUNT)) : "0",
+                        mLocalProvider,
+                };
+                summaries.add(projectionValue);
+            }
+        }
+
+        final List<String[]> rows = getNonEmptyAlbums(summaries);
+        mDatabase.beginTransaction();
+        try {
+            mAlbumsCache.put(query.mMimeType, rows, generation,
+                    () -> insertAlbumSummaries(query.mMimeType, summaries));
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return AlbumsCache.toCursor(rows);
+    }
+
+    /**
+     * Drops the album summaries returned by {@link #getMergedAlbums(QueryFilter)}, including the
+     * ones stored in the picker db, so that they are rebuilt from the media table on next query.
+     * Only needed when the picker db is changed without going through a
+     * {@link DbWriteOperation}, or to recover from inconsistent summaries.
+     */
+    public void invalidateAlbums() {
+        // Like DbWriteOperation, enter the transaction before the cache lock that queries
+        // storing summaries take inside their transaction
+        mDatabase.beginTransaction();
+        boolean ended = false;
+        try {
+            mDatabase.delete(TABLE_ALBUM_SUMMARY, /* whereClause */ null, /* whereArgs */ null);
+            mDatabase.setTransactionSuccessful();
+            mAlbumsCache.invalidate(mDatabase::endTransaction);
+            ended = true;
+        } finally {
+            if (!ended) {
+                mDatabase.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Returns the album summaries stored for {@code mimeType}, including empty albums, or
+     * {@code null} if they need to be computed.
+     */
+    @Nullable
+    private List<String[]> queryAlbumSummaries(@Nullable String mimeType) {
+        final String[] projection = new String[] {KEY_ALBUM_ID, KEY_DATE_TAKEN_MS,
+                KEY_MEDIA_COVER_ID, KEY_MEDIA_COUNT};
+        final String[] selectionArgs = new String[] {getMimeTypeFilterKey(mimeType)};
+        try (Cursor cursor = mDatabase.query(TABLE_ALBUM_SUMMARY, projection,
+                WHERE_MIME_TYPE_FILTER, selectionArgs, /* groupBy */ null, /* having */ null,
+                /* orderBy */ KEY_ID)) {
+            if (cursor.getCount() == 0) {
+                return null;
+            }
 
-            if (cursor == null || !cursor.moveToFirst()) {
-                continue;
+            final List<String[]> rows = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                final String albumId = cursor.getString(0);
+                rows.add(new String[] {
+                        /* albumId */ albumId,
+                        cursor.getString(1),
+                        /* displayName */ albumId,
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        mLocalProvider,
+                });
             }
+            return rows;
+        }
+    }
 
-            long count = getCursorLong(cursor, CloudMediaProviderContract.AlbumColumns.MEDIA_COUNT);
-            if (count == 0) {
-                continue;
+    private void insertAlbumSummaries(@Nullable String mimeType, List<String[]> rows) {
+        final String mimeTypeFilter = getMimeTypeFilterKey(mimeType);
+        // Replace the summaries of a concurrent query computed from the same media
+        mDatabase.delete(TABLE_ALBUM_SUMMARY, WHERE_MIME_TYPE_FILTER,
+                new String[] {mimeTypeFilter});
+        for (String[] row : rows) {
+            final ContentValues values = new ContentValues();
+            values.put(KEY_MIME_TYPE_FILTER, mimeTypeFilter);
+            values.put(KEY_ALBUM_ID, row[0]);
+            values.put(KEY_DATE_TAKEN_MS, row[1]);
+            values.put(KEY_MEDIA_COVER_ID, row[3]);
+            values.put(KEY_MEDIA_COUNT, row[4]);
+            mDatabase.insert(TABLE_ALBUM_SUMMARY, /* nullColumnHack */ null, values);
+        }
+    }
+
+    private static List<String[]> getNonEmptyAlbums(List<String[]> summaries) {
+        final List<String[]> rows = new ArrayList<>(summaries.size());
+        for (String[] row : summaries) {
+            if (!"0".equals(row[4])) {
+                rows.add(row);
             }
+        }
+        return rows;
+    }
 
-            final String[] projectionValue = new String[]{
-                    /* albumId */ albumId,
-                    getCursorString(cursor, AlbumColumns.DATE_TAKEN_MILLIS),
-                    /* displayName */ albumId,
-                    getCursorString(cursor, AlbumColumns.MEDIA_COVER_ID),
-                    String.valueOf(count),
-                    mLocalProvider,
-            };
-            c.addRow(projectionValue);
-        }
-        return c;
+    private static String getMimeTypeFilterKey(@Nullable String mimeType) {
+        // The filter column isn't nullable so that it can be matched with WHERE_MIME_TYPE_FILTER
+        return mimeType == null ? "" : mimeType;
     }
 
     private boolean isLocal(String authority) {
@@ -809,6 +1028,7 @@ public class PickerDbFacade {
             getProjectionSimple(KEY_MIME_TYPE, MediaColumns.MIME_TYPE),
             getProjectionSimple(KEY_STANDARD_MIME_TYPE_EXTENSION,
                     MediaColumns.STANDARD_MIME_TYPE_EXTENSION),
+            getProjectionSimple(KEY_ID, PICKER_ID),
         };
     }
 
@@ -901,8 +1121,73 @@ public class PickerDbFacade {
         return mediaId + "||" + fileExtension;
     }
 
-    private static ContentValues cursorToContentValue(Cursor cursor, boolean isLocal) {
-        return cursorToContentValue(cursor, isLocal, "");
+    /**
+     * Returns the {@link #TABLE_MEDIA} column that values of the given cloud media cursor column
+     * are stored in, or {@code null} if they aren't stored.
+     */
+    @Nullable
+    private static String getMediaColumn(String cursorColumn, boolean isLocal) {
+        switch (cursorColumn) {
+            case CloudMediaProviderContract.MediaColumns.ID:
+                return isLocal ? KEY_LOCAL_ID : KEY_CLOUD_ID;
+            case CloudMediaProviderContract.MediaColumns.MEDIA_STORE_URI:
+                // Local media already has its local id as media id
+                return isLocal ? null : KEY_LOCAL_ID;
+            case CloudMediaProviderContract.MediaColumns.DATE_TAKEN_MILLIS:
+                return KEY_DATE_TAKEN_MS;
+            case CloudMediaProviderContract.MediaColumns.SYNC_GENERATION:
+                return KEY_SYNC_GENERATION;
+            case CloudMediaProviderContract.MediaColumns.SIZE_BYTES:
+                return KEY_SIZE_BYTES;
+            case CloudMediaProviderContract.MediaColumns.MIME_TYPE:
+                return KEY_MIME_TYPE;
+            case CloudMediaProviderContract.MediaColumns.STANDARD_MIME_TYPE_EXTENSION:
+                return KEY_STANDARD_MIME_TYPE_EXTENSION;
+            case CloudMediaProviderContract.MediaColumns.DURATION_MILLIS:
+                return KEY_DURATION_MS;
+            case CloudMediaProviderContract.MediaColumns.IS_FAVORITE:
+                return KEY_IS_FAVORITE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Binds the value of the given cloud media cursor column to {@code arg} of
+     * {@code statement}, converted the same way as {@link #cursorToContentValue}.
+     */
+    private static void bindMediaColumn(SQLiteStatement statement, int arg, Cursor cursor,
+            int index) {
+        switch (cursor.getColumnName(index)) {
+            case CloudMediaProviderContract.MediaColumns.ID:
+            case CloudMediaProviderContract.MediaColumns.MIME_TYPE:
+                bindStringOrNull(statement, arg, cursor.getString(index));
+                break;
+            case CloudMediaProviderContract.MediaColumns.MEDIA_STORE_URI:
+                final String uriString = cursor.getString(index);
+                bindStringOrNull(statement, arg, (uriString == null) ? null
+                        : String.valueOf(ContentUris.parseId(Uri.parse(uriString))));
+                break;
+            case CloudMediaProviderContract.MediaColumns.STANDARD_MIME_TYPE_EXTENSION:
+                final int standardMimeTypeExtension = cursor.getInt(index);
+                if (!isValidStandardMimeTypeExtension(standardMimeTypeExtension)) {
+                    throw new IllegalArgumentException("Invalid standard mime type extension");
+                }
+                statement.bindLong(arg, standardMimeTypeExtension);
+                break;
+            default:
+                statement.bindLong(arg, cursor.getLong(index));
+                break;
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int arg,
+            @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(arg);
+        } else {
+            statement.bindString(arg, value);
+        }
     }
 
     private static ContentValues cursorToContentValue(Cursor cursor, boolean isLocal,
@@ -1080,13 +1365,6 @@ public class PickerDbFacade {
         return qb;
     }
 
-    private static SQLiteQueryBuilder createVisibleLocalMediaQueryBuilder() {
-        SQLiteQueryBuilder qb = createVisibleMediaQueryBuilder();
-        qb.appendWhereStandalone(WHERE_LOCAL_ID);
-
-        return qb;
-    }
-
     private static final class ResetAlbumOperation extends DbWriteOperation {
         /**
          * Resets the given cloud or local album_media identified by {@code isLocal} and
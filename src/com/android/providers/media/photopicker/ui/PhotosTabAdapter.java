@@ -21,6 +21,7 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
@@ -42,11 +43,23 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
 
     public static final int COLUMN_COUNT = 3;
 
+    /**
+     * Number of items from the end of the list at which binding one asks for more items.
+     */
+    private static final int LOAD_MORE_THRESHOLD = COLUMN_COUNT * 30;
+
     private List<Item> mItemList = new ArrayList<>();
+    /**
+     * Number of items of {@link #mItemList} the RecyclerView was notified about, since the list
+     * may grow before this adapter is updated.
+     */
+    private int mItemCount;
     private final ImageLoader mImageLoader;
     private final View.OnClickListener mOnClickListener;
     private final View.OnLongClickListener mOnLongClickListener;
     private final Selection mSelection;
+    @Nullable
+    private Runnable mOnLoadMoreListener;
 
     public PhotosTabAdapter(@NonNull Selection selection, @NonNull ImageLoader imageLoader,
             @NonNull View.OnClickListener onClickListener,
@@ -67,8 +80,20 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
                 mSelection.canSelectMultiple());
     }
 
+    /**
+     * Sets a listener to be run when items close to the end of the list are bound, so that the
+     * next page of items can be loaded before the user scrolls to it.
+     */
+    public void setOnLoadMoreListener(@Nullable Runnable onLoadMoreListener) {
+        mOnLoadMoreListener = onLoadMoreListener;
+    }
+
     @Override
     public void onBindViewHolder(@NonNull BaseViewHolder itemHolder, int position) {
+        if (mOnLoadMoreListener != null && position >= getItemCount() - LOAD_MORE_THRESHOLD) {
+            mOnLoadMoreListener.run();
+        }
+
         final Item item = getItem(position);
         itemHolder.itemView.setTag(item);
 
@@ -95,7 +120,7 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
 
     @Override
     public int getItemCount() {
-        return mItemList.size();
+        return mItemCount;
     }
 
     @Override
@@ -111,7 +136,17 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
         return mItemList.get(position);
     }
 
+    /**
+     * Updates the items shown. Passing the same list again after pages were appended to it only
+     * inserts the new items, rather than rebinding all of them.
+     */
     public void updateItemList(@NonNull List<Item> itemList) {
+        final int previousCount = mItemCount;
+        mItemCount = itemList.size();
+        if (itemList == mItemList && mItemCount >= previousCount) {
+            notifyItemRangeInserted(previousCount, mItemCount - previousCount);
+            return;
+        }
         mItemList = itemList;
         notifyDataSetChanged();
     }
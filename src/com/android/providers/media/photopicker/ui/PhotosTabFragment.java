@@ -74,6 +74,7 @@ public class PhotosTabFragment extends TabFragment {
         if (mCategory.isDefault()) {
             // Set the pane title for A11y
             view.setAccessibilityPaneTitle(getString(R.string.picker_photos));
+            adapter.setOnLoadMoreListener(mPickerViewModel::loadMoreItems);
             mPickerViewModel.getItems().observe(this, itemList -> {
                 adapter.updateItemList(itemList);
                 // Handle emptyView's visibility
@@ -82,6 +83,7 @@ public class PhotosTabFragment extends TabFragment {
         } else {
             // Set the pane title for A11y
             view.setAccessibilityPaneTitle(mCategory.getDisplayName(getContext()));
+            adapter.setOnLoadMoreListener(mPickerViewModel::loadMoreCategoryItems);
             mPickerViewModel.getCategoryItems(mCategory).observe(this, itemList -> {
                 // If the item count of the albums is zero, albums are not shown on the Albums tab.
                 // The user can't launch the album items page when the album has zero items. So, we
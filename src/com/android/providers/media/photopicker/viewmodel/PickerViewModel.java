@@ -20,10 +20,16 @@ import static com.android.providers.media.util.MimeUtils.isImageMimeType;
 import static com.android.providers.media.util.MimeUtils.isVideoMimeType;
 
 import android.app.Application;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -31,6 +37,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.arch.core.executor.ArchTaskExecutor;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -39,6 +46,7 @@ import com.android.internal.logging.InstanceId;
 import com.android.internal.logging.InstanceIdSequence;
 import com.android.providers.media.photopicker.data.ItemsProvider;
 import com.android.providers.media.photopicker.data.MuteStatus;
+import com.android.providers.media.photopicker.data.PickerDbFacade;
 import com.android.providers.media.photopicker.data.Selection;
 import com.android.providers.media.photopicker.data.UserIdManager;
 import com.android.providers.media.photopicker.data.model.Category;
@@ -50,6 +58,7 @@ import com.android.providers.media.util.ForegroundThread;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * PickerViewModel to store and handle data for PhotoPickerActivity.
@@ -59,8 +68,12 @@ public class PickerViewModel extends AndroidViewModel {
 
     private static final int RECENT_MINIMUM_COUNT = 12;
 
+    @VisibleForTesting
+    static final int ITEMS_PAGE_SIZE = 500;
+
     private static final int INSTANCE_ID_MAX = 1 << 15;
 
+    private final Context mContext;
     private final Selection mSelection;
     private final MuteStatus mMuteStatus;
 
@@ -68,8 +81,10 @@ public class PickerViewModel extends AndroidViewModel {
     // data set to reduce memories.
     // The list of Items with all photos and videos
     private MutableLiveData<List<Item>> mItemList;
+    private ItemsPager mItemsPager;
     // The list of Items with all photos and videos in category
     private MutableLiveData<List<Item>> mCategoryItemList;
+    private ItemsPager mCategoryItemsPager;
     // The list of categories.
     private MutableLiveData<List<Category>> mCategoryList;
 
@@ -84,9 +99,24 @@ public class PickerViewModel extends AndroidViewModel {
 
     private Category mCurrentCategory;
 
+    private final ReloadObserver mItemsObserver = new ReloadObserver(() -> {
+        if (mItemList != null) {
+            updateItems();
+        }
+        if (mCategoryItemList != null && mCurrentCategory != null) {
+            updateCategoryItems();
+        }
+    });
+    private final ReloadObserver mCategoriesObserver = new ReloadObserver(() -> {
+        if (mCategoryList != null) {
+            updateCategories();
+        }
+    });
+
     public PickerViewModel(@NonNull Application application) {
         super(application);
         final Context context = application.getApplicationContext();
+        mContext = context;
         mItemsProvider = new ItemsProvider(context);
         mSelection = new Selection();
         mUserIdManager = UserIdManager.create(context);
@@ -95,6 +125,12 @@ public class PickerViewModel extends AndroidViewModel {
         mLogger = new PhotoPickerUiEventLogger();
     }
 
+    @Override
+    protected void onCleared() {
+        mItemsObserver.unregister();
+        mCategoriesObserver.unregister();
+    }
+
     @VisibleForTesting
     public void setItemsProvider(@NonNull ItemsProvider itemsProvider) {
         mItemsProvider = itemsProvider;
@@ -150,60 +186,13 @@ public class PickerViewModel extends AndroidViewModel {
         return mItemList;
     }
 
-    private List<Item> loadItems(Category category, UserId userId) {
-        final List<Item> items = new ArrayList<>();
-
-        try (Cursor cursor = mItemsProvider.getItems(category, /* offset */ 0,
-                /* limit */ -1, mMimeTypeFilter, userId)) {
-            if (cursor == null || cursor.getCount() == 0) {
-                Log.d(TAG, "Didn't receive any items for " + category
-                        + ", either cursor is null or cursor count is zero");
-                return items;
-            }
-
-            // We only add the RECENT header on the PhotosTabFragment with CATEGORY_DEFAULT. In this
-            // case, we call this method {loadItems} with null category. When the category is not
-            // empty, we don't show the RECENT header.
-            final boolean showRecent = category.isDefault();
-
-            int recentSize = 0;
-            long currentDateTaken = 0;
-
-            if (showRecent) {
-                // add Recent date header
-                items.add(Item.createDateItem(0));
-            }
-            while (cursor.moveToNext()) {
-                // TODO(b/188394433): Return userId in the cursor so that we do not need to pass it
-                // here again.
-                final Item item = Item.fromCursor(cursor, userId);
-                final long dateTaken = item.getDateTaken();
-                // the minimum count of items in recent is not reached
-                if (showRecent && recentSize < RECENT_MINIMUM_COUNT) {
-                    recentSize++;
-                    currentDateTaken = dateTaken;
-                }
-
-                // The date taken of these two images are not on the
-                // same day, add the new date header.
-                if (!DateTimeUtils.isSameDate(currentDateTaken, dateTaken)) {
-                    items.add(Item.createDateItem(dateTaken));
-                    currentDateTaken = dateTaken;
-                }
-                items.add(item);
-            }
-        }
-
-        Log.d(TAG, "Loaded " + items.size() + " items in " + category + " for user "
-                + userId.toString());
-        return items;
-    }
-
     private void loadItemsAsync() {
         final UserId userId = mUserIdManager.getCurrentUserProfileId();
-        ForegroundThread.getExecutor().execute(() -> {
-                    mItemList.postValue(loadItems(Category.DEFAULT, userId));
-        });
+        if (mItemsPager != null) {
+            mItemsPager.cancel();
+        }
+        mItemsPager = new ItemsPager(mItemList, Category.DEFAULT, userId);
+        mItemsPager.loadNextPage();
     }
 
     /**
@@ -216,6 +205,15 @@ public class PickerViewModel extends AndroidViewModel {
         loadItemsAsync();
     }
 
+    /**
+     * Load the next page of {@link #mItemList}, if there is one and it isn't already loading
+     */
+    public void loadMoreItems() {
+        if (mItemsPager != null) {
+            mItemsPager.loadNextPage();
+        }
+    }
+
     /**
      * Get the list of all photos and videos with the specific {@code category} on the device.
      *
@@ -239,9 +237,11 @@ public class PickerViewModel extends AndroidViewModel {
 
     private void loadCategoryItemsAsync() {
         final UserId userId = mUserIdManager.getCurrentUserProfileId();
-        ForegroundThread.getExecutor().execute(() -> {
-            mCategoryItemList.postValue(loadItems(mCurrentCategory, userId));
-        });
+        if (mCategoryItemsPager != null) {
+            mCategoryItemsPager.cancel();
+        }
+        mCategoryItemsPager = new ItemsPager(mCategoryItemList, mCurrentCategory, userId);
+        mCategoryItemsPager.loadNextPage();
     }
 
     /**
@@ -259,6 +259,16 @@ public class PickerViewModel extends AndroidViewModel {
         loadCategoryItemsAsync();
     }
 
+    /**
+     * Load the next page of {@link #mCategoryItemList}, if there is one and it isn't already
+     * loading
+     */
+    public void loadMoreCategoryItems() {
+        if (mCategoryItemsPager != null) {
+            mCategoryItemsPager.loadNextPage();
+        }
+    }
+
     /**
      * @return the list of Categories {@link #mCategoryList}
      */
@@ -272,6 +282,9 @@ public class PickerViewModel extends AndroidViewModel {
     private List<Category> loadCategories(UserId userId) {
         final List<Category> categoryList = new ArrayList<>();
         try (final Cursor cursor = mItemsProvider.getCategories(mMimeTypeFilter, userId)) {
+            if (cursor != null) {
+                mCategoriesObserver.registerFor(cursor, userId);
+            }
             if (cursor == null || cursor.getCount() == 0) {
                 Log.d(TAG, "Didn't receive any categories, either cursor is null or"
                         + " cursor count is zero");
@@ -360,4 +373,173 @@ public class PickerViewModel extends AndroidViewModel {
     public void setInstanceId(InstanceId parcelable) {
         mInstanceId = parcelable;
     }
+
+    /**
+     * Reloads the first page of some data when the provider notifies that it changed, which it
+     * only does while it syncs the picker media in the background. Registered on the
+     * notification uri of the first cursor that carries one, and kept until the view model is
+     * cleared.
+     */
+    private class ReloadObserver extends ContentObserver {
+        private final Runnable mReload;
+        private final AtomicBoolean mIsRegistered = new AtomicBoolean();
+        private volatile ContentResolver mResolver;
+
+        ReloadObserver(@NonNull Runnable reload) {
+            super(new Handler(Looper.getMainLooper()));
+            mReload = reload;
+        }
+
+        void registerFor(@NonNull Cursor cursor, @NonNull UserId userId) {
+            final Uri uri = cursor.getNotificationUri();
+            if (uri == null || !mIsRegistered.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                final ContentResolver resolver = userId.getContentResolver(mContext);
+                resolver.registerContentObserver(uri, /* notifyForDescendants */ false, this);
+                mResolver = resolver;
+            } catch (NameNotFoundException e) {
+                Log.w(TAG, "Failed to observe " + uri + " for user " + userId, e);
+                mIsRegistered.set(false);
+            }
+        }
+
+        void unregister() {
+            final ContentResolver resolver = mResolver;
+            if (resolver != null) {
+                resolver.unregisterContentObserver(this);
+            }
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mReload.run();
+        }
+    }
+
+    /**
+     * Loads the items of a category a page at a time on the {@link ForegroundThread}. Each page
+     * is appended on the main thread to a single list, which is posted to a {@link LiveData}
+     * again, so observers can tell a new page from a new list by its identity. Pages are keyed
+     * on the date taken and picker id of the last item loaded, so each one costs the same no
+     * matter how many items precede it.
+     */
+    private class ItemsPager {
+        private final MutableLiveData<List<Item>> mLiveData;
+        private final Category mCategory;
+        private final UserId mUserId;
+        private final AtomicBoolean mIsLoading = new AtomicBoolean();
+        private volatile boolean mHasMore = true;
+        private volatile boolean mIsCancelled;
+
+        // The following are only accessed on the main thread
+        private final List<Item> mItems = new ArrayList<>();
+
+        // The following are only accessed on the ForegroundThread
+        private int mItemCount;
+        private long mDateTakenBeforeMs = -1;
+        private long mPickerId = -1;
+        private int mRecentSize;
+        private long mCurrentDateTaken;
+
+        ItemsPager(MutableLiveData<List<Item>> liveData, Category category, UserId userId) {
+            mLiveData = liveData;
+            mCategory = category;
+            mUserId = userId;
+        }
+
+        void loadNextPage() {
+            if (!mHasMore || !mIsLoading.compareAndSet(false, true)) {
+                return;
+            }
+            ForegroundThread.getExecutor().execute(() -> {
+                try {
+                    loadNextPageInternal();
+                } finally {
+                    mIsLoading.set(false);
+                }
+            });
+        }
+
+        /**
+         * Stops posting pages, since a new pager replaced this one.
+         */
+        void cancel() {
+            mIsCancelled = true;
+            mHasMore = false;
+        }
+
+        private void loadNextPageInternal() {
+            final List<Item> page = new ArrayList<>();
+            final boolean isFirstPage = (mItemCount == 0);
+            try (Cursor cursor = mItemsProvider.getItems(mCategory, mDateTakenBeforeMs,
+                    mPickerId, ITEMS_PAGE_SIZE, mMimeTypeFilter, mUserId)) {
+                if (cursor != null) {
+                    mItemsObserver.registerFor(cursor, mUserId);
+                }
+                if (cursor == null || cursor.getCount() == 0) {
+                    mHasMore = false;
+                    if (isFirstPage) {
+                        Log.d(TAG, "Didn't receive any items for " + mCategory
+                                + ", either cursor is null or cursor count is zero");
+                        publishPage(page);
+                    }
+                    return;
+                }
+
+                // Without picker ids there's nothing to key the next page on
+                final int pickerIdIndex = cursor.getColumnIndex(PickerDbFacade.PICKER_ID);
+                mHasMore = (pickerIdIndex >= 0 && cursor.getCount() >= ITEMS_PAGE_SIZE);
+
+                // We only add the RECENT header on the PhotosTabFragment with CATEGORY_DEFAULT.
+                // When the category is not empty, we don't show the RECENT header.
+                final boolean showRecent = mCategory.isDefault();
+
+                if (showRecent && isFirstPage) {
+                    // add Recent date header
+                    page.add(Item.createDateItem(0));
+                }
+                while (cursor.moveToNext()) {
+                    // TODO(b/188394433): Return userId in the cursor so that we do not need to
+                    // pass it here again.
+                    final Item item = Item.fromCursor(cursor, mUserId);
+                    final long dateTaken = item.getDateTaken();
+                    // the minimum count of items in recent is not reached
+                    if (showRecent && mRecentSize < RECENT_MINIMUM_COUNT) {
+                        mRecentSize++;
+                        mCurrentDateTaken = dateTaken;
+                    }
+
+                    // The date taken of these two images are not on the
+                    // same day, add the new date header.
+                    if (!DateTimeUtils.isSameDate(mCurrentDateTaken, dateTaken)) {
+                        page.add(Item.createDateItem(dateTaken));
+                        mCurrentDateTaken = dateTaken;
+                    }
+                    page.add(item);
+
+                    mDateTakenBeforeMs = dateTaken;
+                    if (pickerIdIndex >= 0) {
+                        mPickerId = cursor.getLong(pickerIdIndex);
+                    }
+                }
+            }
+
+            mItemCount += page.size();
+            Log.d(TAG, "Loaded " + mItemCount + " items in " + mCategory + " for user "
+                    + mUserId.toString());
+            publishPage(page);
+        }
+
+        private void publishPage(List<Item> page) {
+            ArchTaskExecutor.getInstance().postToMainThread(() -> {
+                if (mIsCancelled) {
+                    return;
+                }
+                mItems.addAll(page);
+                mLiveData.setValue(mItems);
+            });
+        }
+    }
 }
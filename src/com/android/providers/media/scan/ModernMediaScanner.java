@@ -94,11 +94,11 @@ import androidx.annotation.VisibleForTesting;
 
 import com.android.modules.utils.build.SdkLevel;
 import com.android.providers.media.MediaVolume;
-import com.android.providers.media.util.DatabaseUtils;
 import com.android.providers.media.util.ExifUtils;
 import com.android.providers.media.util.FileUtils;
 import com.android.providers.media.util.IsoInterface;
 import com.android.providers.media.util.LongArray;
+import com.android.providers.media.util.LongBitmap;
 import com.android.providers.media.util.Metrics;
 import com.android.providers.media.util.MimeUtils;
 import com.android.providers.media.util.SpecialFormatDetector;
@@ -115,6 +115,7 @@ import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -125,6 +126,16 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
@@ -168,13 +179,36 @@ public class ModernMediaScanner implements MediaScanner {
         S_DATE_FORMAT_WITH_MILLIS.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
-    private static final int BATCH_SIZE = 32;
-    private static final int MAX_XMP_SIZE_BYTES = 1024 * 1024;
-    // |excludeDirs * 2| < 1000 which is the max SQL expression size
-    // Because we add |excludeDir| and |excludeDir/| in the SQL expression to match dir and subdirs
-    // See SQLITE_MAX_EXPR_DEPTH in sqlite3.c
+    /**
+     * Batch size used for the first transaction of each scan, and the
+     * smallest batch size we'll ever shrink to.
+     */
+    @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+    static final int MIN_BATCH_SIZE = 32;
+    @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+    static final int MAX_BATCH_SIZE = 1024;
+    /**
+     * Target duration of a single {@link #applyPending} transaction; batches
+     * are sized so that other writers, such as FUSE, aren't blocked on the
+     * database for longer than this.
+     */
     @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
-    static final int MAX_EXCLUDE_DIRS = 450;
+    static final long TARGET_BATCH_MILLIS = 50;
+
+    /**
+     * Device config key for the number of threads used to extract metadata
+     * from scanned items in parallel. Values of 1 or less scan inline on the
+     * thread walking the file tree.
+     */
+    public static final String SCAN_THREAD_COUNT_KEY = "scan_thread_count";
+    public static final int DEFAULT_SCAN_THREAD_COUNT = 1;
+
+    /**
+     * Number of outstanding metadata extraction jobs allowed per worker
+     * thread before the walking thread waits for them to be committed.
+     */
+    private static final int SCAN_JOBS_PER_THREAD = 4;
+    private static final int MAX_XMP_SIZE_BYTES = 1024 * 1024;
 
     private static final Pattern PATTERN_YEAR = Pattern.compile("([1-9][0-9][0-9][0-9])");
 
@@ -183,6 +217,12 @@ public class ModernMediaScanner implements MediaScanner {
 
     private final Context mContext;
     private final DrmManagerClient mDrmClient;
+    /**
+     * Pool used to extract metadata in parallel, or {@code null} when items
+     * are scanned inline.
+     */
+    private final @Nullable ExecutorService mScanExecutor;
+    private final int mMaxScanJobs;
     @GuardedBy("mPendingCleanDirectories")
     private final Set<String> mPendingCleanDirectories = new ArraySet<>();
 
@@ -217,9 +257,32 @@ public class ModernMediaScanner implements MediaScanner {
     private final Set<String> mDrmMimeTypes = new ArraySet<>();
 
     public ModernMediaScanner(Context context) {
+        this(context, DEFAULT_SCAN_THREAD_COUNT);
+    }
+
+    public ModernMediaScanner(Context context, int scanThreadCount) {
         mContext = context;
         mDrmClient = new DrmManagerClient(context);
 
+        if (scanThreadCount > 1) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(scanThreadCount,
+                    scanThreadCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            mScanExecutor = executor;
+            mMaxScanJobs = scanThreadCount * SCAN_JOBS_PER_THREAD;
+        } else {
+            mScanExecutor = null;
+            mMaxScanJobs = 0;
+        }
+
         // Dynamically collect the set of MIME types that should be considered
         // to be DRM, as this can vary between devices
         for (DrmSupportInfo info : mDrmClient.getAvailableDrmSupportInfo()) {
@@ -289,6 +352,7 @@ public class ModernMediaScanner implements MediaScanner {
     public void onDirectoryDirty(File dir) {
         synchronized (mPendingCleanDirectories) {
             mPendingCleanDirectories.remove(dir.getPath());
+            FileUtils.invalidateNoMediaCacheForDirectory(dir);
             FileUtils.setDirectoryDirty(dir, /*isDirty*/ true);
         }
     }
@@ -324,12 +388,27 @@ public class ModernMediaScanner implements MediaScanner {
         private final List<String> mExcludeDirs;
 
         private final long mStartGeneration;
+        /**
+         * Version and UUID of the database being scanned into, which every
+         * directory fingerprint is tied to.
+         */
+        private final String mDatabaseVersion;
         private final boolean mSingleFile;
         private final Set<Path> mAcquiredDirectoryLocks = new ArraySet<>();
         private final ArrayList<ContentProviderOperation> mPending = new ArrayList<>();
-        private LongArray mScannedIds = new LongArray();
+        /**
+         * Metadata extraction jobs submitted to {@link #mScanExecutor}, in the
+         * order the items were visited.
+         */
+        private final ArrayDeque<Future<ContentProviderOperation>> mScanJobs = new ArrayDeque<>();
+        private final LongBitmap mScannedIds = new LongBitmap();
         private LongArray mUnknownIds = new LongArray();
 
+        /**
+         * Stack of state for each directory currently being walked.
+         */
+        private final ArrayDeque<DirectoryState> mDirectories = new ArrayDeque<>();
+
         private long mFirstId = -1;
 
         private int mFileCount;
@@ -337,6 +416,16 @@ public class ModernMediaScanner implements MediaScanner {
         private int mUpdateCount;
         private int mDeleteCount;
 
+        /**
+         * Current batch size, adjusted after every transaction based on how
+         * long the previous one took.
+         */
+        private int mBatchSize = MIN_BATCH_SIZE;
+        private int mBatchCount;
+        private int mMaxBatchSize;
+        private long mBatchMillis;
+        private long mMaxBatchMillis;
+
         /**
          * Tracks hidden directory and hidden subdirectories in a directory tree. A positive count
          * indicates that one or more of the current file's parents is a hidden directory.
@@ -370,6 +459,7 @@ public class ModernMediaScanner implements MediaScanner {
             mSignal = new CancellationSignal();
 
             mStartGeneration = MediaStore.getGeneration(mResolver, mVolumeName);
+            mDatabaseVersion = MediaStore.getVersion(mContext, mVolumeName);
             mSingleFile = mRoot.isFile();
             mOwnerPackage = ownerPackage;
             mExcludeDirs = new ArrayList<>();
@@ -409,7 +499,8 @@ public class ModernMediaScanner implements MediaScanner {
             if (!mSingleFile) {
                 final long durationMillis = SystemClock.elapsedRealtime() - startTime;
                 Metrics.logScan(mVolumeName, mReason, mFileCount, durationMillis,
-                        mInsertCount, mUpdateCount, mDeleteCount);
+                        mInsertCount, mUpdateCount, mDeleteCount, mBatchCount, mMaxBatchSize,
+                        (mBatchCount > 0) ? (mBatchMillis / mBatchCount) : 0, mMaxBatchMillis);
             }
         }
 
@@ -431,6 +522,13 @@ public class ModernMediaScanner implements MediaScanner {
                 try {
                     Files.walkFileTree(mRoot.toPath(), this);
                     applyPending();
+                    if (mSingleFile) {
+                        // The contents of this file may have changed without
+                        // touching its directory, so idle scans can no longer
+                        // trust the directory fingerprint
+                        FileUtils.setDirectoryFingerprint(mRoot.getParentFile(),
+                                Optional.empty());
+                    }
                 } catch (IOException e) {
                     // This should never happen, so yell loudly
                     throw new IllegalStateException(e);
@@ -443,53 +541,27 @@ public class ModernMediaScanner implements MediaScanner {
             }
         }
 
-        private String buildExcludeDirClause(int count) {
-            if (count == 0) {
-                return "";
-            }
-            String notLikeClause = FileColumns.DATA + " NOT LIKE ? ESCAPE '\\'";
-            String andClause = " AND ";
-            StringBuilder sb = new StringBuilder();
-            sb.append("(");
-            for (int i = 0; i < count; i++) {
-                // Append twice because we want to match the path itself and the expanded path
-                // using the SQL % LIKE operator. For instance, to exclude /sdcard/foo and all
-                // subdirs, we need the following:
-                // "NOT LIKE '/sdcard/foo/%' AND "NOT LIKE '/sdcard/foo'"
-                // The first clause matches *just* subdirs, and the second clause matches the dir
-                // itself
-                sb.append(notLikeClause);
-                sb.append(andClause);
-                sb.append(notLikeClause);
-                if (i != count - 1) {
-                    sb.append(andClause);
-                }
-            }
-            sb.append(")");
-            return sb.toString();
-        }
-
-        private void addEscapedAndExpandedPath(String path, List<String> paths) {
-            String escapedPath = DatabaseUtils.escapeForLike(path);
-            paths.add(escapedPath + "/%");
-            paths.add(escapedPath);
+        /**
+         * Build the selection arguments for {@link #buildPathRangeClause()}
+         * matching {@link #mRoot} and everything beneath it.
+         */
+        private String[] buildPathRangeArgs() {
+            final String path = mRoot.getAbsolutePath();
+            return new String[] { path, path + "/", path + "0" };
         }
 
-        private String[] buildSqlSelectionArgs() {
-            List<String> escapedPaths = new ArrayList<>();
-
-            addEscapedAndExpandedPath(mRoot.getAbsolutePath(), escapedPaths);
-            for (String dir : mExcludeDirs) {
-                addEscapedAndExpandedPath(dir, escapedPaths);
-            }
-
-            return escapedPaths.toArray(new String[0]);
+        /**
+         * Build a clause matching a path and everything beneath it. Unlike a
+         * {@code LIKE} expression, this half-open range can be satisfied by
+         * {@code path_index}; since {@code '0'} is the character immediately
+         * following {@code '/'}, the range covers exactly the descendants.
+         */
+        private String buildPathRangeClause() {
+            return "(" + FileColumns.DATA + "=? OR (" + FileColumns.DATA + ">=? AND "
+                    + FileColumns.DATA + "<?))";
         }
 
         private void reconcileAndClean() {
-            final long[] scannedIds = mScannedIds.toArray();
-            Arrays.sort(scannedIds);
-
             // The query phase is split from the delete phase so that our query
             // remains stable if we need to paginate across multiple windows.
             mSignal.throwIfCanceled();
@@ -499,31 +571,34 @@ public class ModernMediaScanner implements MediaScanner {
             final String formatClause = "ifnull(" + FileColumns.FORMAT + ","
                     + MtpConstants.FORMAT_UNDEFINED + ") != "
                     + MtpConstants.FORMAT_ABSTRACT_AV_PLAYLIST;
-            final String dataClause = "(" + FileColumns.DATA + " LIKE ? ESCAPE '\\' OR "
-                    + FileColumns.DATA + " LIKE ? ESCAPE '\\')";
-            final String excludeDirClause = buildExcludeDirClause(mExcludeDirs.size());
+            final String dataClause = buildPathRangeClause();
             final String generationClause = FileColumns.GENERATION_ADDED + " <= "
                     + mStartGeneration;
             final String sqlSelection = formatClause + " AND " + dataClause + " AND "
-                    + generationClause
-                    + (excludeDirClause.isEmpty() ? "" : " AND " + excludeDirClause);
+                    + generationClause;
             final Bundle queryArgs = new Bundle();
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, sqlSelection);
             queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
-                    buildSqlSelectionArgs());
+                    buildPathRangeArgs());
             queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER,
                     FileColumns._ID + " DESC");
             queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
             queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
             queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_FAVORITE, MediaStore.MATCH_INCLUDE);
 
+            // Items beneath directories we skipped weren't visited, so they
+            // must not be cleaned; we filter them here rather than in SQL so
+            // that there's no limit on how many directories can be skipped
+            final ExcludedDirs excludedDirs = new ExcludedDirs(mExcludeDirs);
+
             final int[] countPerMediaType = new int[FileColumns.MEDIA_TYPE_COUNT];
             try (Cursor c = mResolver.query(mFilesUri,
                     new String[]{FileColumns._ID, FileColumns.MEDIA_TYPE, FileColumns.DATE_EXPIRES,
-                            FileColumns.IS_PENDING}, queryArgs, mSignal)) {
+                            FileColumns.IS_PENDING, FileColumns.DATA}, queryArgs, mSignal)) {
                 while (c.moveToNext()) {
                     final long id = c.getLong(0);
-                    if (Arrays.binarySearch(scannedIds, id) < 0) {
+                    if (!mScannedIds.contains(id)
+                            && !excludedDirs.contains(c.getString(4))) {
                         final long dateExpire = c.getLong(2);
                         final boolean isPending = c.getInt(3) == 1;
                         // Don't delete the pending item which is not expired.
@@ -636,6 +711,13 @@ public class ModernMediaScanner implements MediaScanner {
 
         @Override
         public void close() {
+            // Abandon any metadata extraction still in flight, typically when
+            // we were canceled or encountered an exception
+            for (Future<ContentProviderOperation> job : mScanJobs) {
+                job.cancel(/* mayInterruptIfRunning */ false);
+            }
+            mScanJobs.clear();
+
             // Release any locks we're still holding, typically when we
             // encountered an exception; we snapshot the original list so we're
             // not confused as it's mutated by release operations
@@ -652,6 +734,12 @@ public class ModernMediaScanner implements MediaScanner {
             // Possibly bail before digging into each directory
             mSignal.throwIfCanceled();
 
+            final DirectoryState parentState = mDirectories.peek();
+            if (parentState != null) {
+                parentState.childCount++;
+                parentState.hasSubdirectories = true;
+            }
+
             if (!shouldScanDirectory(dir.toFile())) {
                 return FileVisitResult.SKIP_SUBTREE;
             }
@@ -669,13 +757,18 @@ public class ModernMediaScanner implements MediaScanner {
                     mPendingCleanDirectories.add(dir.toFile().getPath());
                 } else {
                     Log.d(TAG, "Skipping preVisitDirectory " + dir.toFile());
-                    if (mExcludeDirs.size() <= MAX_EXCLUDE_DIRS) {
-                        mExcludeDirs.add(dir.toFile().getPath());
-                        return FileVisitResult.SKIP_SUBTREE;
-                    } else {
-                        Log.w(TAG, "ExcludeDir size exceeded, not skipping preVisitDirectory "
-                                + dir.toFile());
-                    }
+                    mExcludeDirs.add(dir.toFile().getPath());
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                if (mReason == REASON_IDLE && !mIsDirectoryTreeDirty
+                        && isDirectoryUnchanged(dir.toFile(), attrs)) {
+                    // Nothing was added, removed or renamed since we last
+                    // scanned this directory, so treat everything beneath it
+                    // as scanned without visiting it again
+                    if (LOGV) Log.v(TAG, "Skipping unchanged directory " + dir);
+                    mExcludeDirs.add(dir.toFile().getPath());
+                    return FileVisitResult.SKIP_SUBTREE;
                 }
             }
 
@@ -689,12 +782,128 @@ public class ModernMediaScanner implements MediaScanner {
 
             // Scan this directory as a normal file so that "parent" database
             // entries are created
-            return visitFile(dir, attrs);
+            final ExistingRow existing = findExistingRow(dir.toFile());
+            final FileVisitResult result = visitFile(dir, attrs, existing);
+
+            // Now that we own this directory, load everything we already know
+            // about its children in a single pass
+            final DirectoryState state = new DirectoryState(dir,
+                    attrs.lastModifiedTime().toMillis());
+            preloadDirectory(state, existing);
+            mDirectories.push(state);
+            return result;
         }
 
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                 throws IOException {
+            final DirectoryState state = mDirectories.peek();
+            if (state != null) {
+                state.childCount++;
+            }
+            return visitFile(file, attrs, findExistingRow(file.toFile()));
+        }
+
+        /**
+         * Return if the given directory has a fingerprint recorded by a
+         * previous scan into the current database, and it still matches
+         * what's on disk. Fingerprints are only recorded for directories
+         * without any subdirectories, since modifying a nested directory
+         * doesn't update the modified time of its ancestors.
+         * <p>
+         * A fingerprint can only tell that nothing was added, removed or
+         * renamed. Rewriting an existing file in place doesn't touch its
+         * directory, so such changes are only picked up by scans of that
+         * file, or by the next non-idle scan of the directory.
+         */
+        private boolean isDirectoryUnchanged(@NonNull File dir, BasicFileAttributes attrs) {
+            final Optional<String> fingerprint = FileUtils.getDirectoryFingerprint(dir);
+            if (!fingerprint.isPresent()) {
+                return false;
+            }
+            final String[] children = dir.list();
+            if (children == null) {
+                return false;
+            }
+            return fingerprint.get().equals(
+                    buildDirectoryFingerprint(mDatabaseVersion,
+                            attrs.lastModifiedTime().toMillis(), children.length));
+        }
+
+        /**
+         * Load all existing database rows that are direct children of the
+         * given directory, so that visiting each of them doesn't need to
+         * query the database individually.
+         */
+        private void preloadDirectory(@NonNull DirectoryState state,
+                @Nullable ExistingRow existing) {
+            if (mSingleFile || existing == null) {
+                // We don't know the ID of a newly inserted directory yet, so
+                // we fall back to querying each item directly
+                return;
+            }
+
+            Trace.beginSection("preloadDirectory");
+            final Map<String, ExistingRow> rows = new ArrayMap<>();
+            final Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                    FileColumns.PARENT + "=?");
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                    new String[] { String.valueOf(existing.id) });
+            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
+            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_FAVORITE, MediaStore.MATCH_INCLUDE);
+            try (Cursor c = mResolver.query(mFilesUri, ExistingRow.PROJECTION_WITH_DATA,
+                    queryArgs, mSignal)) {
+                while (c.moveToNext()) {
+                    rows.put(c.getString(ExistingRow.PROJECTION.length),
+                            ExistingRow.fromCursor(c));
+                }
+            } finally {
+                Trace.endSection();
+            }
+            state.rows = rows;
+        }
+
+        /**
+         * Find the existing database row for the given file, if any. Rows
+         * preloaded for the parent directory are consulted first; we always
+         * fall back to a direct query on a miss, since legacy rows may not
+         * have a valid {@link FileColumns#PARENT}.
+         */
+        private @Nullable ExistingRow findExistingRow(@NonNull File file) {
+            final String path = file.getAbsolutePath();
+            final DirectoryState state = mDirectories.peek();
+            if (state != null && state.rows != null
+                    && Objects.equals(state.dir.toFile(), file.getParentFile())) {
+                final ExistingRow existing = state.rows.get(path);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+
+            Trace.beginSection("findExistingRow");
+            final Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                    FileColumns.DATA + "=?");
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                    new String[] { path });
+            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
+            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_FAVORITE, MediaStore.MATCH_INCLUDE);
+            try (Cursor c = mResolver.query(mFilesUri, ExistingRow.PROJECTION, queryArgs,
+                    mSignal)) {
+                if (c.moveToFirst()) {
+                    return ExistingRow.fromCursor(c);
+                }
+                return null;
+            } finally {
+                Trace.endSection();
+            }
+        }
+
+        private FileVisitResult visitFile(Path file, BasicFileAttributes attrs,
+                @Nullable ExistingRow existing) {
             if (LOGV) Log.v(TAG, "Visiting " + file);
             mFileCount++;
 
@@ -722,29 +931,17 @@ public class ModernMediaScanner implements MediaScanner {
 
             Trace.beginSection("checkChanged");
 
-            final Bundle queryArgs = new Bundle();
-            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
-                    FileColumns.DATA + "=?");
-            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
-                    new String[] { realFile.getAbsolutePath() });
-            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
-            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_TRASHED, MediaStore.MATCH_INCLUDE);
-            queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_FAVORITE, MediaStore.MATCH_INCLUDE);
-            final String[] projection = new String[] {FileColumns._ID, FileColumns.DATE_MODIFIED,
-                    FileColumns.SIZE, FileColumns.MIME_TYPE, FileColumns.MEDIA_TYPE,
-                    FileColumns.IS_PENDING, FileColumns._MODIFIER};
-
             final Matcher matcher = FileUtils.PATTERN_EXPIRES_FILE.matcher(realFile.getName());
             // If IS_PENDING is set by FUSE, we should scan the file and update IS_PENDING to zero.
             // Pending files from FUSE will not be rewritten to contain expiry timestamp.
             boolean isPendingFromFuse = !matcher.matches();
 
-            try (Cursor c = mResolver.query(mFilesUri, projection, queryArgs, mSignal)) {
-                if (c.moveToFirst()) {
-                    existingId = c.getLong(0);
-                    final String mimeType = c.getString(3);
-                    final int mediaType = c.getInt(4);
-                    isPendingFromFuse &= c.getInt(5) != 0;
+            try {
+                if (existing != null) {
+                    existingId = existing.id;
+                    final String mimeType = existing.mimeType;
+                    final int mediaType = existing.mediaType;
+                    isPendingFromFuse &= existing.isPending != 0;
 
                     // Remember visiting this existing item, even if we skipped
                     // due to it being unchanged; this is needed so we don't
@@ -762,7 +959,7 @@ public class ModernMediaScanner implements MediaScanner {
                     }
 
                     final boolean sameMetadata =
-                            hasSameMetadata(attrs, realFile, isPendingFromFuse, c);
+                            hasSameMetadata(attrs, realFile, isPendingFromFuse, existing);
                     final boolean sameMediaType = actualMediaType == mediaType;
                     if (sameMetadata && sameMediaType) {
                         if (LOGV) Log.v(TAG, "Skipping unchanged " + file);
@@ -778,27 +975,40 @@ public class ModernMediaScanner implements MediaScanner {
                         return FileVisitResult.CONTINUE;
                     }
                 }
+            } finally {
+                Trace.endSection();
+            }
+
+            // Metadata extraction below is the expensive part of scanning, so
+            // it's handed to our worker pool when one is configured; results
+            // are always committed in the order they were visited
+            final long scanId = existingId;
+            final String mimeType = actualMimeType;
+            final int mediaType = actualMediaType;
+            final boolean isHidden = mHiddenDirCount > 0;
+            final Callable<ContentProviderOperation> scanJob = () -> {
+                mSignal.throwIfCanceled();
 
                 // Since we allow top-level mime type to be customised, we need to do this early
                 // on, so the file is later scanned as the appropriate type (otherwise, this
                 // audio filed would be scanned as video and it would be missing the correct
                 // metadata).
-                actualMimeType = updateM4aMimeType(realFile, actualMimeType);
-                actualMediaType =
-                        mediaTypeFromMimeType(realFile, actualMimeType, actualMediaType);
-            } finally {
-                Trace.endSection();
-            }
+                final String refinedMimeType = updateM4aMimeType(realFile, mimeType);
+                final int refinedMediaType = (refinedMimeType != null)
+                        ? resolveMediaTypeFromFilePath(realFile, refinedMimeType, isHidden)
+                        : mediaType;
 
-            final ContentProviderOperation.Builder op;
-            Trace.beginSection("scanItem");
-            try {
-                op = scanItem(existingId, realFile, attrs, actualMimeType, actualMediaType,
-                        mVolumeName);
-            } finally {
-                Trace.endSection();
-            }
-            if (op != null) {
+                final ContentProviderOperation.Builder op;
+                Trace.beginSection("scanItem");
+                try {
+                    op = scanItem(scanId, realFile, attrs, refinedMimeType, refinedMediaType,
+                            mVolumeName);
+                } finally {
+                    Trace.endSection();
+                }
+                if (op == null) {
+                    return null;
+                }
                 op.withValue(FileColumns._MODIFIER, FileColumns._MODIFIER_MEDIA_SCAN);
                 // Add owner package name to new insertions when package name is provided.
                 if (op.build().isInsert() && !attrs.isDirectory() && mOwnerPackage != null) {
@@ -809,12 +1019,62 @@ public class ModernMediaScanner implements MediaScanner {
                 if (isDrm) {
                     op.withValue(MediaColumns.IS_DRM, 1);
                 }
-                addPending(op.build());
-                maybeApplyPending();
+                return op.build();
+            };
+
+            if (mScanExecutor == null || attrs.isDirectory()) {
+                drainScanJobs(/* blocking */ true);
+                try {
+                    final ContentProviderOperation op = scanJob.call();
+                    if (op != null) {
+                        addPending(op);
+                    }
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                mScanJobs.add(mScanExecutor.submit(scanJob));
+                drainScanJobs(/* blocking */ mScanJobs.size() > mMaxScanJobs);
             }
+            maybeApplyPending();
             return FileVisitResult.CONTINUE;
         }
 
+        /**
+         * Move the results of completed scan jobs into {@link #mPending},
+         * preserving the order in which they were submitted. When blocking,
+         * waits for every outstanding job to finish.
+         */
+        private void drainScanJobs(boolean blocking) {
+            while (!mScanJobs.isEmpty()) {
+                final Future<ContentProviderOperation> job = mScanJobs.peek();
+                if (!blocking && !job.isDone()) {
+                    return;
+                }
+                mScanJobs.remove();
+
+                final ContentProviderOperation op;
+                try {
+                    op = job.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new OperationCanceledException();
+                } catch (CancellationException e) {
+                    throw new OperationCanceledException();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (op != null) {
+                    addPending(op);
+                }
+            }
+        }
+
         private int mediaTypeFromMimeType(
                 File file, String mimeType, int defaultMediaType) {
             if (mimeType != null) {
@@ -824,16 +1084,14 @@ public class ModernMediaScanner implements MediaScanner {
             return defaultMediaType;
         }
 
-        private boolean hasSameMetadata(
-                BasicFileAttributes attrs, File realFile, boolean isPendingFromFuse, Cursor c) {
-            final long dateModified = c.getLong(1);
-            final boolean sameTime = (lastModifiedTime(realFile, attrs) == dateModified);
+        private boolean hasSameMetadata(BasicFileAttributes attrs, File realFile,
+                boolean isPendingFromFuse, ExistingRow existing) {
+            final boolean sameTime = (lastModifiedTime(realFile, attrs) == existing.dateModified);
 
-            final long size = c.getLong(2);
-            final boolean sameSize = (attrs.size() == size);
+            final boolean sameSize = (attrs.size() == existing.size);
 
             final boolean isScanned =
-                    c.getInt(6) == FileColumns._MODIFIER_MEDIA_SCAN;
+                    existing.modifier == FileColumns._MODIFIER_MEDIA_SCAN;
 
             return sameTime && sameSize && !isPendingFromFuse && isScanned;
         }
@@ -864,6 +1122,11 @@ public class ModernMediaScanner implements MediaScanner {
         public FileVisitResult visitFileFailed(Path file, IOException exc)
                 throws IOException {
             Log.w(TAG, "Failed to visit " + file + ": " + exc);
+            final DirectoryState state = mDirectories.peek();
+            if (state != null) {
+                state.childCount++;
+                state.failed = true;
+            }
             return FileVisitResult.CONTINUE;
         }
 
@@ -873,6 +1136,15 @@ public class ModernMediaScanner implements MediaScanner {
             // We need to drain all pending changes related to this directory
             // before releasing our lock below
             applyPending();
+            final DirectoryState state = mDirectories.pop();
+
+            // Remember what this directory looked like, so that idle scans can
+            // skip it until something is added, removed or renamed
+            if (exc == null && !state.failed && !state.hasSubdirectories) {
+                FileUtils.setDirectoryFingerprint(dir.toFile(), Optional.of(
+                        buildDirectoryFingerprint(mDatabaseVersion, state.lastModified,
+                                state.childCount)));
+            }
 
             if (FileUtils.isDirectoryHidden(dir.toFile())) {
                 mHiddenDirCount--;
@@ -903,16 +1175,22 @@ public class ModernMediaScanner implements MediaScanner {
         }
 
         private void maybeApplyPending() {
-            if (mPending.size() > BATCH_SIZE) {
+            if (mPending.size() > mBatchSize) {
                 applyPending();
             }
         }
 
         private void applyPending() {
+            // Wait for any outstanding metadata extraction, since callers rely
+            // on everything visited so far being committed
+            drainScanJobs(/* blocking */ true);
+
             // Bail early when nothing pending
             if (mPending.isEmpty()) return;
 
             Trace.beginSection("applyPending");
+            final int count = mPending.size();
+            final long startTime = SystemClock.elapsedRealtimeNanos();
             try {
                 ContentProviderResult[] results = mResolver.applyBatch(AUTHORITY, mPending);
                 for (int index = 0; index < results.length; index++) {
@@ -921,6 +1199,7 @@ public class ModernMediaScanner implements MediaScanner {
 
                     if (result.exception != null) {
                         Log.w(TAG, "Failed to apply " + operation, result.exception);
+                        onBatchFailed();
                     }
 
                     Uri uri = result.uri;
@@ -934,12 +1213,38 @@ public class ModernMediaScanner implements MediaScanner {
                 }
             } catch (RemoteException | OperationApplicationException e) {
                 Log.w(TAG, "Failed to apply", e);
+                onBatchFailed();
             } finally {
                 mPending.clear();
+                onBatchApplied(count, SystemClock.elapsedRealtimeNanos() - startTime);
                 Trace.endSection();
             }
         }
 
+        /**
+         * Pending operations only ever belong to directories still being
+         * walked, so none of them may be fingerprinted as fully scanned.
+         */
+        private void onBatchFailed() {
+            for (DirectoryState state : mDirectories) {
+                state.failed = true;
+            }
+        }
+
+        private void onBatchApplied(int count, long durationNanos) {
+            final long durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+            mBatchCount++;
+            mMaxBatchSize = Math.max(mMaxBatchSize, count);
+            mBatchMillis += durationMillis;
+            mMaxBatchMillis = Math.max(mMaxBatchMillis, durationMillis);
+
+            mBatchSize = computeNextBatchSize(mBatchSize, count, durationNanos);
+            if (LOGV) {
+                Log.v(TAG, "Applied " + count + " operations in " + durationMillis
+                        + "ms, next batch size " + mBatchSize);
+            }
+        }
+
         /**
          * Return the first item encountered by this scan requested.
          * <p>
@@ -973,6 +1278,154 @@ public class ModernMediaScanner implements MediaScanner {
         }
     }
 
+    /**
+     * Set of directories whose contents were skipped during a scan, supporting
+     * fast lookup of whether a path is one of them or beneath one of them.
+     * Matching is case-insensitive to mirror the {@code NOCASE} collation of
+     * {@link FileColumns#DATA}.
+     */
+    @VisibleForTesting
+    static final class ExcludedDirs {
+        /**
+         * Sorted directory paths with a trailing {@code '/'}, where no entry
+         * is beneath another entry.
+         */
+        private final String[] mPrefixes;
+
+        ExcludedDirs(@NonNull List<String> dirs) {
+            final String[] prefixes = new String[dirs.size()];
+            for (int i = 0; i < prefixes.length; i++) {
+                prefixes[i] = toPrefix(dirs.get(i));
+            }
+            Arrays.sort(prefixes);
+
+            // Drop anything nested beneath another entry, so that the floor
+            // entry of any path is the only candidate that can contain it
+            int count = 0;
+            for (String prefix : prefixes) {
+                if (count == 0 || !prefix.startsWith(prefixes[count - 1])) {
+                    prefixes[count++] = prefix;
+                }
+            }
+            mPrefixes = Arrays.copyOf(prefixes, count);
+        }
+
+        boolean contains(@Nullable String path) {
+            if (path == null || mPrefixes.length == 0) {
+                return false;
+            }
+            final String key = toPrefix(path);
+            int index = Arrays.binarySearch(mPrefixes, key);
+            if (index >= 0) {
+                return true;
+            }
+            index = -index - 2;
+            return index >= 0 && key.startsWith(mPrefixes[index]);
+        }
+
+        private static String toPrefix(@NonNull String path) {
+            return path.toLowerCase(Locale.ROOT) + "/";
+        }
+    }
+
+    /**
+     * Compute the size of the next batch to apply, given that the previous
+     * batch of {@code count} operations took {@code durationNanos}.
+     * <p>
+     * Each transaction carries a fixed cost (generation bump, triggers and
+     * notifications), so we grow batches while they remain comfortably under
+     * {@link #TARGET_BATCH_MILLIS}, but at most doubling each time. When a
+     * batch overruns the budget we immediately shrink to what would have fit.
+     */
+    @VisibleForTesting
+    static int computeNextBatchSize(int current, int count, long durationNanos) {
+        // Partial batches drained at the end of a directory don't tell us
+        // much about how a full batch would behave
+        if (count <= 0 || count < current / 2) {
+            return current;
+        }
+
+        final long targetNanos = TimeUnit.MILLISECONDS.toNanos(TARGET_BATCH_MILLIS);
+        final long perOperationNanos = Math.max(1, durationNanos / count);
+        final long fitting = targetNanos / perOperationNanos;
+
+        final long next = Math.min(fitting, (long) current * 2);
+        return (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, next));
+    }
+
+    /**
+     * State tracked for each directory while it's being walked.
+     */
+    private static final class DirectoryState {
+        final Path dir;
+        /** Modified time of the directory when we started walking it. */
+        final long lastModified;
+        /**
+         * Existing database rows for direct children, keyed by
+         * {@link FileColumns#DATA}, or {@code null} when they weren't
+         * preloaded and lookups should query for each item directly.
+         */
+        @Nullable Map<String, ExistingRow> rows;
+        int childCount;
+        boolean hasSubdirectories;
+        /** Set when a child couldn't be visited or its changes committed. */
+        boolean failed;
+
+        DirectoryState(@NonNull Path dir, long lastModified) {
+            this.dir = dir;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Build the fingerprint of a directory as scanned into the database with
+     * the given version. Fingerprints are kept in xattrs on the directories
+     * themselves, so they outlive the database; including its version and
+     * UUID ignores any recorded before the database was wiped or recreated.
+     */
+    @VisibleForTesting
+    static @NonNull String buildDirectoryFingerprint(@NonNull String databaseVersion,
+            long lastModified, int childCount) {
+        return databaseVersion + ":" + lastModified + ":" + childCount;
+    }
+
+    /**
+     * Compact snapshot of the columns of an existing database row that are
+     * needed to decide if an item has changed since it was last scanned.
+     */
+    private static final class ExistingRow {
+        static final String[] PROJECTION = new String[] {
+                FileColumns._ID, FileColumns.DATE_MODIFIED, FileColumns.SIZE,
+                FileColumns.MIME_TYPE, FileColumns.MEDIA_TYPE, FileColumns.IS_PENDING,
+                FileColumns._MODIFIER };
+        static final String[] PROJECTION_WITH_DATA = new String[] {
+                FileColumns._ID, FileColumns.DATE_MODIFIED, FileColumns.SIZE,
+                FileColumns.MIME_TYPE, FileColumns.MEDIA_TYPE, FileColumns.IS_PENDING,
+                FileColumns._MODIFIER, FileColumns.DATA };
+
+        final long id;
+        final long dateModified;
+        final long size;
+        final String mimeType;
+        final int mediaType;
+        final int isPending;
+        final int modifier;
+
+        private ExistingRow(Cursor c) {
+            id = c.getLong(0);
+            dateModified = c.getLong(1);
+            size = c.getLong(2);
+            mimeType = c.getString(3);
+            mediaType = c.getInt(4);
+            isPending = c.getInt(5);
+            modifier = c.getInt(6);
+        }
+
+        static @NonNull ExistingRow fromCursor(@NonNull Cursor c) {
+            return new ExistingRow(c);
+        }
+    }
+
     /**
      * Scan the requested file, returning a {@link ContentProviderOperation}
      * containing all indexed metadata, suitable for passing to a
@@ -1677,6 +2130,7 @@ public class ModernMediaScanner implements MediaScanner {
             // Well known paths can never be a hidden directory. Delete any non-standard nomedia
             // presence in well known path.
             nomedia.delete();
+            FileUtils.invalidateNoMediaCache(nomedia);
             return true;
         }
 
@@ -1688,6 +2142,7 @@ public class ModernMediaScanner implements MediaScanner {
                 nomedia.createNewFile();
             } catch (IOException ignored) {
             }
+            FileUtils.invalidateNoMediaCache(nomedia);
             return false;
         }
         return true;
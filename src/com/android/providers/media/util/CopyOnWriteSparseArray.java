@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import android.util.SparseArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+/**
+ * Map from int keys to values designed for read-mostly workloads, such as
+ * caches keyed by UID. Reads never lock and never allocate; every mutation
+ * publishes a new copy of the underlying {@link SparseArray}.
+ * <p>
+ * Each removal advances a generation, which lets callers that build a value
+ * without holding any lock avoid caching it when the key was invalidated in
+ * the meantime, using {@link #getGeneration()} and
+ * {@link #putIfAbsent(int, Object, long)}. Since several callers may build a
+ * value for the same key concurrently, that method keeps the first one stored
+ * and hands it to the others.
+ *
+ * @hide
+ */
+public class CopyOnWriteSparseArray<E> {
+    private final Object mLock = new Object();
+
+    /**
+     * Current contents, which are never mutated once published. Only
+     * {@link SparseArray#get} is used on published copies, since other
+     * methods may compact the array in place.
+     */
+    private volatile SparseArray<E> mValues = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    /**
+     * Returns the value mapped to the given key, or {@code null} if none.
+     */
+    public @Nullable E get(int key) {
+        return mValues.get(key);
+    }
+
+    /**
+     * Returns the current generation, which advances on every removal.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Maps the given key to the given value.
+     */
+    public void put(int key, E value) {
+        synchronized (mLock) {
+            putLocked(key, value);
+        }
+    }
+
+    /**
+     * Maps the given key to the given value, unless the key is already mapped
+     * or anything was removed since the given generation was obtained from
+     * {@link #getGeneration()}.
+     *
+     * @return the value mapped to the given key if there is one, which callers
+     *         should use instead of their own, otherwise the given value.
+     */
+    public E putIfAbsent(int key, E value, long generation) {
+        synchronized (mLock) {
+            final E existing = mValues.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (mGeneration == generation) {
+                putLocked(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Removes any value mapped to the given key.
+     */
+    public void remove(int key) {
+        synchronized (mLock) {
+            mGeneration++;
+            if (mValues.indexOfKey(key) >= 0) {
+                final SparseArray<E> values = mValues.clone();
+                values.remove(key);
+                publishLocked(values);
+            }
+        }
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mValues = new SparseArray<>();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void putLocked(int key, E value) {
+        final SparseArray<E> values = mValues.clone();
+        values.put(key, value);
+        publishLocked(values);
+    }
+
+    @GuardedBy("mLock")
+    private void publishLocked(SparseArray<E> values) {
+        // Compact any removed entries before publishing, so that readers
+        // never race with SparseArray's lazy garbage collection
+        values.size();
+        mValues = values;
+    }
+}
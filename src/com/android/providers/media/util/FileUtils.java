@@ -50,6 +50,7 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
@@ -61,8 +62,10 @@ import android.system.OsConstants;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.webkit.MimeTypeMap;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
@@ -1527,12 +1530,12 @@ public class FileUtils {
         final File nomedia = new File(dir, ".nomedia");
 
         // check for .nomedia presence
-        if (!nomedia.exists()) {
+        if (!hasNoMedia(dir)) {
             return false;
         }
 
         if (shouldBeVisible(dir.getAbsolutePath())) {
-            nomedia.delete();
+            deleteNoMedia(nomedia);
             return false;
         }
 
@@ -1542,19 +1545,19 @@ public class FileUtils {
         final boolean isTopLevelDir =
                 relativePath.length == 1 && TextUtils.isEmpty(relativePath[0]);
         if (isTopLevelDir && isDefaultDirectoryName(name)) {
-            nomedia.delete();
+            deleteNoMedia(nomedia);
             return false;
         }
 
         // DCIM/Camera should always be visible regardless of .nomedia presence.
         if (CAMERA_RELATIVE_PATH.equalsIgnoreCase(
                 extractRelativePathWithDisplayName(dir.getAbsolutePath()))) {
-            nomedia.delete();
+            deleteNoMedia(nomedia);
             return false;
         }
 
         if (isScreenshotsDirNonHidden(relativePath, name)) {
-            nomedia.delete();
+            deleteNoMedia(nomedia);
             return false;
         }
 
@@ -1687,6 +1690,60 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Key of the xattr holding the fingerprint recorded for a directory by the
+     * last scan that visited it.
+     */
+    private static final String XATTR_DIRECTORY_FINGERPRINT = "user.scan_fingerprint";
+
+    /**
+     * @return the fingerprint recorded for {@code dir} by
+     * {@link #setDirectoryFingerprint}, or empty if none was recorded or it
+     * couldn't be read.
+     */
+    public static Optional<String> getDirectoryFingerprint(File dir) {
+        try {
+            return Optional.of(new String(Os.getxattr(getDirectoryXAttrPath(dir),
+                    XATTR_DIRECTORY_FINGERPRINT), StandardCharsets.UTF_8));
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENODATA && e.errno != OsConstants.EOPNOTSUPP) {
+                Log.w(TAG, "Failed to read directory fingerprint: " + dir + ": " + e);
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Record {@code fingerprint} against {@code dir}, or clear any recorded
+     * fingerprint when empty. Failures are logged and otherwise ignored, since
+     * a missing fingerprint only means {@code dir} will be scanned again.
+     */
+    public static void setDirectoryFingerprint(File dir, Optional<String> fingerprint) {
+        try {
+            final String path = getDirectoryXAttrPath(dir);
+            if (fingerprint.isPresent()) {
+                Os.setxattr(path, XATTR_DIRECTORY_FINGERPRINT,
+                        fingerprint.get().getBytes(StandardCharsets.UTF_8), 0);
+            } else {
+                Os.removexattr(path, XATTR_DIRECTORY_FINGERPRINT);
+            }
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENODATA && e.errno != OsConstants.EOPNOTSUPP) {
+                Log.w(TAG, "Failed to change directory fingerprint: " + dir + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * FUSE doesn't support xattrs, so directories on the primary emulated
+     * volume are resolved to their lower filesystem path, the same way as
+     * {@link XAttrUtils#getFileAttributesFromXAttr}.
+     */
+    private static String getDirectoryXAttrPath(File dir) {
+        final String dataMediaPath = XAttrUtils.getDataMediaPath(dir.getPath());
+        return (dataMediaPath != null) ? dataMediaPath : dir.getPath();
+    }
+
     /**
      * @return the folder containing the top-most .nomedia in {@code file} hierarchy.
      * E.g input as /sdcard/foo/bar/ will return /sdcard/foo
@@ -1699,8 +1756,7 @@ public class FileUtils {
 
         File parent = file;
         while (parent != null) {
-            File nomedia = new File(parent, ".nomedia");
-            if (nomedia.exists()) {
+            if (hasNoMedia(parent)) {
                 topNoMediaDir = parent;
             }
             parent = parent.getParentFile();
@@ -1709,6 +1765,148 @@ public class FileUtils {
         return topNoMediaDir;
     }
 
+    /**
+     * Maximum number of directories whose .nomedia state is remembered.
+     */
+    private static final int NOMEDIA_CACHE_SIZE = 1024;
+
+    /**
+     * How long a cached .nomedia state is trusted. Apps with raw access to the
+     * lower file system can create or delete a .nomedia without going through
+     * {@link #invalidateNoMediaCache}, so entries only last long enough to
+     * serve the bursts of lookups made while scanning or inserting many items.
+     */
+    @VisibleForTesting
+    static final long NOMEDIA_CACHE_TTL_MS = 2_000;
+
+    private static final class CachedNoMedia {
+        final boolean exists;
+        final long expiresAtMs;
+
+        CachedNoMedia(boolean exists, long expiresAtMs) {
+            this.exists = exists;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    /**
+     * Cache of whether a directory directly contains a .nomedia, keyed by
+     * {@link #getNoMediaCacheKey}. Checking every ancestor of a path is
+     * otherwise a stat() per level for every scanned or inserted item.
+     */
+    private static final LruCache<String, CachedNoMedia> sNoMediaCache =
+            new LruCache<>(NOMEDIA_CACHE_SIZE);
+
+    private static final Object sNoMediaCacheLock = new Object();
+
+    /**
+     * Advanced by every invalidation, so that a .nomedia state looked up
+     * concurrently with a change is never stored, see {@link #hasNoMedia}.
+     */
+    @GuardedBy("sNoMediaCacheLock")
+    private static long sNoMediaCacheGeneration;
+
+    /**
+     * The cache is only safe to use once every change to .nomedia files flows
+     * through {@link #invalidateNoMediaCache}, which is the case once we're
+     * serving FUSE for the volumes we scan.
+     */
+    private static volatile boolean sNoMediaCacheEnabled;
+
+    public static void setNoMediaCacheEnabled(boolean enabled) {
+        sNoMediaCacheEnabled = enabled;
+        if (!enabled) {
+            synchronized (sNoMediaCacheLock) {
+                sNoMediaCacheGeneration++;
+                sNoMediaCache.evictAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the normalized path of {@code dir}, case-folded to match the
+     * case-insensitive lower file system, so that aliases of a directory
+     * share a single entry.
+     */
+    private static @NonNull String getNoMediaCacheKey(@NonNull File dir) {
+        return dir.getAbsoluteFile().toPath().normalize().toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isNoMediaFile(@NonNull File file) {
+        return ".nomedia".equalsIgnoreCase(file.getName());
+    }
+
+    /**
+     * @return {@code true} if {@code dir} directly contains a .nomedia.
+     */
+    private static boolean hasNoMedia(@NonNull File dir) {
+        if (!sNoMediaCacheEnabled) {
+            return new File(dir, ".nomedia").exists();
+        }
+
+        final String key = getNoMediaCacheKey(dir);
+        final long generation;
+        final long nowMs = SystemClock.elapsedRealtime();
+        synchronized (sNoMediaCacheLock) {
+            final CachedNoMedia cached = sNoMediaCache.get(key);
+            if (cached != null && nowMs < cached.expiresAtMs) {
+                return cached.exists;
+            }
+            generation = sNoMediaCacheGeneration;
+        }
+        final boolean exists = new File(dir, ".nomedia").exists();
+        synchronized (sNoMediaCacheLock) {
+            if (generation == sNoMediaCacheGeneration) {
+                sNoMediaCache.put(key, new CachedNoMedia(exists,
+                        nowMs + NOMEDIA_CACHE_TTL_MS));
+            }
+        }
+        return exists;
+    }
+
+    private static void deleteNoMedia(@NonNull File nomedia) {
+        nomedia.delete();
+        invalidateNoMediaCache(nomedia);
+    }
+
+    /**
+     * Forget any cached .nomedia state affected by a change to {@code file}.
+     * Must be called whenever a .nomedia is created, deleted or renamed. This
+     * is a no-op for any other file, so it's cheap to call for every change.
+     * Changes to directories must use {@link #invalidateNoMediaCacheForDirectory}.
+     */
+    public static void invalidateNoMediaCache(@NonNull File file) {
+        if (!isNoMediaFile(file)) {
+            return;
+        }
+        final File parent = file.getParentFile();
+        if (parent != null) {
+            final String key = getNoMediaCacheKey(parent);
+            synchronized (sNoMediaCacheLock) {
+                sNoMediaCacheGeneration++;
+                sNoMediaCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forget any cached .nomedia state of {@code dir} and everything beneath
+     * it. Must be called whenever a directory is renamed or deleted, or may
+     * have changed without going through {@link #invalidateNoMediaCache}.
+     */
+    public static void invalidateNoMediaCacheForDirectory(@NonNull File dir) {
+        final String key = getNoMediaCacheKey(dir);
+        final String prefix = key + "/";
+        synchronized (sNoMediaCacheLock) {
+            sNoMediaCacheGeneration++;
+            for (String cachedKey : sNoMediaCache.snapshot().keySet()) {
+                if (cachedKey.equals(key) || cachedKey.startsWith(prefix)) {
+                    sNoMediaCache.remove(cachedKey);
+                }
+            }
+        }
+    }
+
     /**
      * Generate the extended absolute path from the expired file path
      * E.g. the input expiredFilePath is /storage/emulated/0/DCIM/.trashed-1621147340-test.jpg
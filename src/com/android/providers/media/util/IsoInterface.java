@@ -19,7 +19,6 @@ package com.android.providers.media.util;
 import android.media.ExifInterface;
 import android.system.ErrnoException;
 import android.system.Os;
-import android.system.OsConstants;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -31,6 +30,7 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteOrder;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -89,6 +89,13 @@ public class IsoInterface {
         }
     }
 
+    /**
+     * Size of the window through which box headers are read.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** File being parsed, used to lazily read box contents */
+    private final FileDescriptor mFd;
     /** Top-level boxes */
     private List<Box> mRoots = new ArrayList<>();
     /** Flattened view of all boxes */
@@ -98,6 +105,9 @@ public class IsoInterface {
         public final int type;
         public final long[] range;
         public UUID uuid;
+        /** Whether contents are kept for {@link #getBoxBytes}. */
+        public boolean hasData;
+        /** Contents, once read by {@link #getBoxBytes}. */
         public byte[] data;
         public List<Box> children;
         public int headerSize;
@@ -108,41 +118,78 @@ public class IsoInterface {
         }
     }
 
-    @VisibleForTesting
-    public static String typeToString(int type) {
-        final byte[] buf = new byte[4];
-        Memory.pokeInt(buf, 0, type, ByteOrder.BIG_ENDIAN);
-        return new String(buf);
+    /**
+     * Reads big-endian values at absolute file positions through a buffered
+     * window, so that walking box headers costs a single {@code pread} per
+     * window instead of several syscalls and allocations per box.
+     */
+    private static class BoxReader {
+        private final FileDescriptor mFd;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private long mBufferOffset;
+        private int mBufferLength;
+
+        BoxReader(@NonNull FileDescriptor fd) {
+            mFd = fd;
+        }
+
+        int readInt(long offset) throws ErrnoException, IOException {
+            if (offset < mBufferOffset || offset + 4 > mBufferOffset + mBufferLength) {
+                fill(offset);
+                if (mBufferLength < 4) {
+                    throw new EOFException();
+                }
+            }
+            return Memory.peekInt(mBuffer, (int) (offset - mBufferOffset), ByteOrder.BIG_ENDIAN);
+        }
+
+        long readLong(long offset) throws ErrnoException, IOException {
+            final long high = readInt(offset);
+            final long low = readInt(offset + 4);
+            return (high << 32L) | (low & 0xffffffffL);
+        }
+
+        private void fill(long offset) throws ErrnoException, InterruptedIOException {
+            mBufferOffset = offset;
+            mBufferLength = readFully(mFd, offset, mBuffer);
+        }
     }
 
-    private static int readInt(@NonNull FileDescriptor fd)
-            throws ErrnoException, IOException {
-        final byte[] buf = new byte[4];
-        if (Os.read(fd, buf, 0, 4) == 4) {
-            return Memory.peekInt(buf, 0, ByteOrder.BIG_ENDIAN);
-        } else {
-            throw new EOFException();
+    /**
+     * Read into {@code buf} from the given position, stopping early only at
+     * the end of the file.
+     *
+     * @return number of bytes read.
+     */
+    private static int readFully(@NonNull FileDescriptor fd, long offset, @NonNull byte[] buf)
+            throws ErrnoException, InterruptedIOException {
+        int read = 0;
+        while (read < buf.length) {
+            final int n = Os.pread(fd, buf, read, buf.length - read, offset + read);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
         }
+        return read;
     }
 
-    private static @NonNull UUID readUuid(@NonNull FileDescriptor fd)
-            throws ErrnoException, IOException {
-        final long high = (((long) readInt(fd)) << 32L) | (((long) readInt(fd)) & 0xffffffffL);
-        final long low = (((long) readInt(fd)) << 32L) | (((long) readInt(fd)) & 0xffffffffL);
-        return new UUID(high, low);
+    @VisibleForTesting
+    public static String typeToString(int type) {
+        final byte[] buf = new byte[4];
+        Memory.pokeInt(buf, 0, type, ByteOrder.BIG_ENDIAN);
+        return new String(buf);
     }
 
-    private static @Nullable Box parseNextBox(@NonNull FileDescriptor fd, long end,
+    private static @Nullable Box parseNextBox(@NonNull BoxReader reader, long pos, long end,
             @NonNull String prefix) throws ErrnoException, IOException {
-        final long pos = Os.lseek(fd, 0, OsConstants.SEEK_CUR);
-
         int headerSize = 8;
         if (end - pos < headerSize) {
             return null;
         }
 
-        long len = Integer.toUnsignedLong(readInt(fd));
-        final int type = readInt(fd);
+        long len = Integer.toUnsignedLong(reader.readInt(pos));
+        final int type = reader.readInt(pos + 4);
 
         if (len == 0) {
             // Length 0 means the box extends to the end of the file.
@@ -150,9 +197,7 @@ public class IsoInterface {
         } else if (len == 1) {
             // Actually 64-bit box length.
             headerSize += 8;
-            long high = readInt(fd);
-            long low = readInt(fd);
-            len = (high << 32L) | (low & 0xffffffffL);
+            len = reader.readLong(pos + 8);
         }
 
         if (len < headerSize || pos + len > end) {
@@ -167,7 +212,8 @@ public class IsoInterface {
         // Parse UUID box
         if (type == BOX_UUID) {
             box.headerSize += 16;
-            box.uuid = readUuid(fd);
+            box.uuid = new UUID(reader.readLong(pos + headerSize),
+                    reader.readLong(pos + headerSize + 8));
             if (LOGV) {
                 Log.v(TAG, prefix + "  UUID " + box.uuid);
             }
@@ -176,40 +222,24 @@ public class IsoInterface {
                 Log.w(TAG, "Skipping abnormally large uuid box");
                 return null;
             }
-
-            try {
-                box.data = new byte[(int) (len - box.headerSize)];
-            } catch (OutOfMemoryError e) {
-                Log.w(TAG, "Couldn't read large uuid box", e);
-                return null;
-            }
-            Os.read(fd, box.data, 0, box.data.length);
+            box.hasData = true;
         } else if (type == BOX_XMP) {
             if (len > Integer.MAX_VALUE) {
                 Log.w(TAG, "Skipping abnormally large xmp box");
                 return null;
             }
-
-            try {
-                box.data = new byte[(int) (len - box.headerSize)];
-            } catch (OutOfMemoryError e) {
-                Log.w(TAG, "Couldn't read large xmp box", e);
-                return null;
-            }
-            Os.read(fd, box.data, 0, box.data.length);
+            box.hasData = true;
         } else if (type == BOX_META && len != headerSize) {
             // The format of this differs in ISO and QT encoding:
             // (iso) [1 byte version + 3 bytes flags][4 byte size of next atom]
             // (qt)  [4 byte size of next atom      ][4 byte hdlr atom type   ]
             // In case of (iso) we need to skip the next 4 bytes before parsing
             // the children.
-            readInt(fd);
-            int maybeBoxType = readInt(fd);
+            int maybeBoxType = reader.readInt(pos + headerSize + 4);
             if (maybeBoxType != BOX_HDLR) {
                 // ISO, skip 4 bytes.
                 box.headerSize += 4;
             }
-            Os.lseek(fd, pos + box.headerSize, OsConstants.SEEK_SET);
         }
 
         if (LOGV) {
@@ -221,23 +251,24 @@ public class IsoInterface {
         if (isBoxParent(type)) {
             box.children = new ArrayList<>();
 
+            long childPos = pos + box.headerSize;
             Box child;
-            while ((child = parseNextBox(fd, pos + len, prefix + "  ")) != null) {
+            while ((child = parseNextBox(reader, childPos, pos + len, prefix + "  ")) != null) {
                 box.children.add(child);
+                childPos = child.range[0] + child.range[1];
             }
         }
 
-        // Skip completely over ourselves
-        Os.lseek(fd, pos + len, OsConstants.SEEK_SET);
         return box;
     }
 
     private IsoInterface(@NonNull FileDescriptor fd) throws IOException {
+        mFd = fd;
         try {
-            Os.lseek(fd, 4, OsConstants.SEEK_SET);
+            final BoxReader reader = new BoxReader(fd);
             boolean hasFtypHeader;
             try {
-                hasFtypHeader = readInt(fd) == BOX_FTYP;
+                hasFtypHeader = reader.readInt(4) == BOX_FTYP;
             } catch (EOFException e) {
                 hasFtypHeader = false;
             }
@@ -249,11 +280,12 @@ public class IsoInterface {
                 return;
             }
 
-            final long end = Os.lseek(fd, 0, OsConstants.SEEK_END);
-            Os.lseek(fd, 0, OsConstants.SEEK_SET);
+            final long end = Os.fstat(fd).st_size;
+            long pos = 0;
             Box box;
-            while ((box = parseNextBox(fd, end, "")) != null) {
+            while ((box = parseNextBox(reader, pos, end, "")) != null) {
                 mRoots.add(box);
+                pos = box.range[0] + box.range[1];
             }
         } catch (ErrnoException e) {
             throw e.rethrowAsIOException();
@@ -270,13 +302,42 @@ public class IsoInterface {
         }
     }
 
+    /**
+     * Read the contents of the given box, if not already read.
+     */
+    private @Nullable byte[] getBoxData(@NonNull Box box) {
+        if (!box.hasData || box.data != null) {
+            return box.data;
+        }
+        try {
+            final byte[] data = new byte[(int) (box.range[1] - box.headerSize)];
+            readFully(mFd, box.range[0] + box.headerSize, data);
+            box.data = data;
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Couldn't read large " + typeToString(box.type) + " box", e);
+            box.hasData = false;
+        } catch (ErrnoException | InterruptedIOException e) {
+            Log.w(TAG, "Couldn't read " + typeToString(box.type) + " box", e);
+        }
+        return box.data;
+    }
+
     public static @NonNull IsoInterface fromFile(@NonNull File file)
             throws IOException {
         try (FileInputStream is = new FileInputStream(file)) {
-            return fromFileDescriptor(is.getFD());
+            final IsoInterface iso = fromFileDescriptor(is.getFD());
+            // Read all box contents now, since we're about to close the file
+            for (Box box : iso.mFlattened) {
+                iso.getBoxData(box);
+            }
+            return iso;
         }
     }
 
+    /**
+     * Parse the given file. Box contents are only read when requested through
+     * {@link #getBoxBytes}, so {@code fd} must remain open until then.
+     */
     public static @NonNull IsoInterface fromFileDescriptor(@NonNull FileDescriptor fd)
             throws IOException {
         return new IsoInterface(fd);
@@ -316,7 +377,7 @@ public class IsoInterface {
     public @Nullable byte[] getBoxBytes(int type) {
         for (Box box : mFlattened) {
             if (box.type == type) {
-                return box.data;
+                return getBoxData(box);
             }
         }
         return null;
@@ -328,7 +389,7 @@ public class IsoInterface {
     public @Nullable byte[] getBoxBytes(@NonNull UUID uuid) {
         for (Box box : mFlattened) {
             if (box.type == BOX_UUID && Objects.equals(box.uuid, uuid)) {
-                return box.data;
+                return getBoxData(box);
             }
         }
         return null;
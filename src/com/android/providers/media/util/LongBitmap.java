@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import java.util.Arrays;
+
+/**
+ * Implements a compressed set of non-negative long primitives, designed for
+ * tracking database row IDs.
+ * <p>
+ * Values are partitioned into chunks of 65,536 consecutive values. Sparse
+ * chunks hold a sorted array of their members, and are converted to a plain
+ * bitmap once that becomes smaller, so dense ranges of IDs (as handed out by
+ * an {@code AUTOINCREMENT} sequence) cost roughly one bit each. Membership
+ * tests are constant time for dense chunks.
+ *
+ * @hide
+ */
+public class LongBitmap {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int BITMAP_WORDS = (1 << CHUNK_BITS) / Long.SIZE;
+    /**
+     * Number of members beyond which a sorted array of {@code char} values
+     * would use more memory than a bitmap.
+     */
+    private static final int MAX_ARRAY_SIZE = BITMAP_WORDS * 4;
+    private static final int MIN_CAPACITY_INCREMENT = 12;
+
+    /**
+     * Sorted chunk keys, being the high bits of member values.
+     */
+    private long[] mKeys = new long[0];
+    private Chunk[] mChunks = new Chunk[0];
+    private int mChunkCount;
+    private int mSize;
+
+    private static class Chunk {
+        /** Sorted low bits of members, when in array mode. */
+        char[] values = new char[4];
+        /** Membership bits, when in bitmap mode. */
+        long[] bits;
+        int count;
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, count, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits != null) {
+                final long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) != 0) {
+                    return false;
+                }
+                bits[low >>> 6] |= mask;
+                count++;
+                return true;
+            }
+
+            int index = Arrays.binarySearch(values, 0, count, low);
+            if (index >= 0) {
+                return false;
+            }
+            if (count == MAX_ARRAY_SIZE) {
+                toBitmap();
+                return add(low);
+            }
+            index = -index - 1;
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, count * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, count - index);
+            values[index] = low;
+            count++;
+            return true;
+        }
+
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < count; i++) {
+                final char low = values[i];
+                bits[low >>> 6] |= 1L << low;
+            }
+            values = null;
+        }
+    }
+
+    /**
+     * Adds the specified value to this set.
+     *
+     * @return {@code true} if the value wasn't already present.
+     * @throws IllegalArgumentException when value &lt; 0
+     */
+    public boolean add(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value must be non-negative: " + value);
+        }
+        final long key = value >>> CHUNK_BITS;
+        int index = Arrays.binarySearch(mKeys, 0, mChunkCount, key);
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, key);
+        }
+        if (mChunks[index].add((char) (value & CHUNK_MASK))) {
+            mSize++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the values in the specified array to this set.
+     */
+    public void addAll(LongArray values) {
+        for (int i = 0; i < values.size(); i++) {
+            add(values.get(i));
+        }
+    }
+
+    /**
+     * Returns {@code true} if this set contains the specified value.
+     */
+    public boolean contains(long value) {
+        if (value < 0) {
+            return false;
+        }
+        final int index = Arrays.binarySearch(mKeys, 0, mChunkCount, value >>> CHUNK_BITS);
+        return index >= 0 && mChunks[index].contains((char) (value & CHUNK_MASK));
+    }
+
+    /**
+     * Returns the number of distinct values in this set.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns {@code true} if this set contains no values.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Removes all values from this set.
+     */
+    public void clear() {
+        Arrays.fill(mChunks, 0, mChunkCount, null);
+        mChunkCount = 0;
+        mSize = 0;
+    }
+
+    private void insertChunk(int index, long key) {
+        if (mChunkCount == mKeys.length) {
+            final int newCapacity = mChunkCount + Math.max(MIN_CAPACITY_INCREMENT,
+                    mChunkCount >> 1);
+            mKeys = Arrays.copyOf(mKeys, newCapacity);
+            mChunks = Arrays.copyOf(mChunks, newCapacity);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mChunkCount - index);
+        System.arraycopy(mChunks, index, mChunks, index + 1, mChunkCount - index);
+        mKeys[index] = key;
+        mChunks[index] = new Chunk();
+        mChunkCount++;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Implements a map from long primitives to non-null values using open
+ * addressing, so that lookups take constant time without boxing keys.
+ * <p>
+ * A map may optionally be bounded, in which case inserting a new key into a
+ * full map first evicts the key that was inserted the longest time ago. This
+ * makes it suitable for caches that shouldn't grow without limit.
+ *
+ * @hide
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    /** Keys of occupied slots; a slot is occupied when its value is non-null */
+    private long[] mKeys;
+    private Object[] mValues;
+    /** Insertion sequence number of the key in each occupied slot, when bounded */
+    private long[] mSeqs;
+    private int mSize;
+
+    private final int mMaxSize;
+    private long mNextSeq;
+
+    /**
+     * Keys and their insertion sequence numbers in insertion order, used for
+     * eviction when bounded. Entries of keys that were since removed, or
+     * removed and inserted again, no longer match the sequence number of the
+     * key and are skipped. Allocated on first insertion and grown as needed,
+     * so that a large bound costs nothing until it's reached.
+     */
+    private long[] mOrderKeys;
+    private long[] mOrderSeqs;
+    private int mOrderHead;
+    private int mOrderCount;
+
+    /**
+     * Creates an unbounded map.
+     */
+    public LongHashMap() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a map holding at most the given number of keys.
+     */
+    public LongHashMap(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        mKeys = new long[MIN_CAPACITY];
+        mValues = new Object[MIN_CAPACITY];
+        mSeqs = isBounded() ? new long[MIN_CAPACITY] : null;
+    }
+
+    private boolean isBounded() {
+        return mMaxSize != Integer.MAX_VALUE;
+    }
+
+    private static int hash(long key, int mask) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int indexOf(long key) {
+        final int mask = mKeys.length - 1;
+        int index = hash(key, mask);
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return ~index;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or {@code null} if none.
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        final int index = indexOf(key);
+        return (index >= 0) ? (V) mValues[index] : null;
+    }
+
+    /**
+     * Returns {@code true} if the given key is mapped to a value.
+     */
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Maps the given key to the given value, evicting the eldest key if this
+     * map is bounded and full.
+     *
+     * @return the value previously mapped to the key, or {@code null} if none.
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(long key, @NonNull V value) {
+        if (value == null) {
+            throw new NullPointerException("value must not be null");
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            final V previous = (V) mValues[index];
+            mValues[index] = value;
+            return previous;
+        }
+
+        final long seq = mNextSeq++;
+        if (isBounded()) {
+            if (mSize == mMaxSize) {
+                evictEldest();
+            }
+            appendOrder(key, seq);
+        }
+
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            resize(mKeys.length * 2);
+        }
+        // Evictions and resizing both move entries around
+        index = ~indexOf(key);
+        mKeys[index] = key;
+        mValues[index] = value;
+        if (mSeqs != null) {
+            mSeqs[index] = seq;
+        }
+        mSize++;
+        return null;
+    }
+
+    private boolean isLive(long key, long seq) {
+        final int index = indexOf(key);
+        return index >= 0 && mSeqs[index] == seq;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void evictEldest() {
+        while (mOrderCount > 0) {
+            final long key = mOrderKeys[mOrderHead];
+            final long seq = mOrderSeqs[mOrderHead];
+            mOrderHead = (mOrderHead + 1) & (mOrderKeys.length - 1);
+            mOrderCount--;
+
+            final int index = indexOf(key);
+            if (index >= 0 && mSeqs[index] == seq) {
+                final V value = (V) mValues[index];
+                removeAt(index);
+                entryEvicted(key, value);
+                return;
+            }
+        }
+    }
+
+    private void appendOrder(long key, long seq) {
+        if (mOrderKeys == null) {
+            mOrderKeys = new long[MIN_CAPACITY];
+            mOrderSeqs = new long[MIN_CAPACITY];
+        } else if (mOrderCount == mOrderKeys.length) {
+            // Drop skipped entries in place while they make up at least half,
+            // which also bounds the order to a small multiple of the max size
+            final boolean mostlyStale = (mOrderCount - mSize) * 2 >= mOrderCount;
+            compactOrder(mostlyStale ? mOrderKeys.length : mOrderKeys.length * 2);
+        }
+        final int tail = (mOrderHead + mOrderCount) & (mOrderKeys.length - 1);
+        mOrderKeys[tail] = key;
+        mOrderSeqs[tail] = seq;
+        mOrderCount++;
+    }
+
+    private void compactOrder(int capacity) {
+        final long[] keys = new long[capacity];
+        final long[] seqs = new long[capacity];
+        int count = 0;
+        for (int i = 0; i < mOrderCount; i++) {
+            final int index = (mOrderHead + i) & (mOrderKeys.length - 1);
+            if (isLive(mOrderKeys[index], mOrderSeqs[index])) {
+                keys[count] = mOrderKeys[index];
+                seqs[count] = mOrderSeqs[index];
+                count++;
+            }
+        }
+        mOrderKeys = keys;
+        mOrderSeqs = seqs;
+        mOrderHead = 0;
+        mOrderCount = count;
+    }
+
+    /**
+     * Called when a bounded map evicts the given entry to make room for a new
+     * key. The default implementation does nothing.
+     */
+    protected void entryEvicted(long key, @NonNull V value) {
+    }
+
+    /**
+     * Removes any value mapped to the given key.
+     *
+     * @return the value previously mapped to the key, or {@code null} if none.
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(long key) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        final V previous = (V) mValues[index];
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(int index) {
+        // Shift back any following entries that would no longer be reachable
+        final int mask = mKeys.length - 1;
+        int next = (index + 1) & mask;
+        while (mValues[next] != null) {
+            final int home = hash(mKeys[next], mask);
+            // Move the entry unless its home slot lies cyclically in (index, next]
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                mKeys[index] = mKeys[next];
+                mValues[index] = mValues[next];
+                if (mSeqs != null) {
+                    mSeqs[index] = mSeqs[next];
+                }
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mValues[index] = null;
+        mSize--;
+    }
+
+    /**
+     * Returns the number of keys in this map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns {@code true} if this map contains no keys.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Removes all keys from this map.
+     */
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+        mOrderKeys = null;
+        mOrderSeqs = null;
+        mOrderHead = 0;
+        mOrderCount = 0;
+    }
+
+    private void resize(int capacity) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final long[] seqs = mSeqs;
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mSeqs = (seqs != null) ? new long[capacity] : null;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                final int index = ~indexOf(keys[i]);
+                mKeys[index] = keys[i];
+                mValues[index] = values[i];
+                if (seqs != null) {
+                    mSeqs[index] = seqs[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+/**
+ * Implements a set of long primitives with constant time operations, backed
+ * by a {@link LongHashMap}. A set may optionally be bounded, in which case
+ * adding to a full set first evicts the value that was added the longest
+ * time ago.
+ *
+ * @hide
+ */
+public class LongHashSet {
+    private final LongHashMap<Boolean> mMap;
+
+    /**
+     * Creates an unbounded set.
+     */
+    public LongHashSet() {
+        mMap = new LongHashMap<>();
+    }
+
+    /**
+     * Creates a set holding at most the given number of values.
+     */
+    public LongHashSet(int maxSize) {
+        mMap = new LongHashMap<>(maxSize);
+    }
+
+    /**
+     * Adds the given value to this set.
+     *
+     * @return {@code true} if the value wasn't already present.
+     */
+    public boolean add(long value) {
+        return mMap.put(value, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Removes the given value from this set.
+     *
+     * @return {@code true} if the value was present.
+     */
+    public boolean remove(long value) {
+        return mMap.remove(value) != null;
+    }
+
+    /**
+     * Returns {@code true} if this set contains the given value.
+     */
+    public boolean contains(long value) {
+        return mMap.containsKey(value);
+    }
+
+    /**
+     * Returns the number of values in this set.
+     */
+    public int size() {
+        return mMap.size();
+    }
+
+    /**
+     * Returns {@code true} if this set contains no values.
+     */
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    /**
+     * Removes all values from this set.
+     */
+    public void clear() {
+        mMap.clear();
+    }
+}
@@ -44,11 +44,14 @@ import com.android.providers.media.MediaProviderStatsLog;
  */
 public class Metrics {
     public static void logScan(@NonNull String volumeName, int reason, long itemCount,
-            long durationMillis, int insertCount, int updateCount, int deleteCount) {
+            long durationMillis, int insertCount, int updateCount, int deleteCount,
+            int batchCount, int maxBatchSize, long averageBatchMillis, long maxBatchMillis) {
         Logging.logPersistent(String.format(
-                "Scanned %s due to %s, found %d items in %dms, %d inserts %d updates %d deletes",
+                "Scanned %s due to %s, found %d items in %dms, %d inserts %d updates %d deletes,"
+                        + " %d batches of up to %d operations taking %dms avg %dms max",
                 volumeName, translateReason(reason), itemCount, durationMillis, insertCount,
-                updateCount, deleteCount));
+                updateCount, deleteCount, batchCount, maxBatchSize, averageBatchMillis,
+                maxBatchMillis));
 
         final float normalizedDurationMillis = ((float) durationMillis) / itemCount;
         final float normalizedInsertCount = ((float) insertCount) / itemCount;
@@ -16,8 +16,6 @@
 
 package com.android.providers.media.util;
 
-import static com.android.providers.media.util.FileUtils.extractDisplayName;
-import static com.android.providers.media.util.FileUtils.extractRelativePath;
 import static com.android.providers.media.util.Logging.TAG;
 
 import android.os.SystemProperties;
@@ -25,8 +23,12 @@ import android.os.Trace;
 import android.os.UserHandle;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import com.android.providers.media.FileAccessAttributes;
 
 import java.nio.ByteOrder;
@@ -60,24 +62,94 @@ public class XAttrUtils {
      */
     public static final String FILE_ACCESS_XATTR_KEY = "user.fattr";
 
+    /**
+     * Returns the path of the file backing {@code path} under
+     * {@link #DATA_MEDIA_XATTR_DIRECTORY_PATH}, on which xattrs can be accessed, or {@code null}
+     * if {@code path} isn't on the primary emulated volume of this user.
+     */
+    public static @Nullable String getDataMediaPath(@NonNull String path) {
+        final String emulatedPrefix = "/storage/emulated/" + UserHandle.myUserId() + "/";
+        if (!path.startsWith(emulatedPrefix)) {
+            return null;
+        }
+        return DATA_MEDIA_XATTR_DIRECTORY_PATH + "/" + path.substring(emulatedPrefix.length());
+    }
+
     public static Optional<FileAccessAttributes> getFileAttributesFromXAttr(String path,
             String key) {
         Trace.beginSection("getFileAttributesFromXAttr");
-        String relativePathWithDisplayName = DATA_MEDIA_XATTR_DIRECTORY_PATH + "/"
-                + extractRelativePath(path) + extractDisplayName(path);
+        final String dataMediaPath = getDataMediaPath(path);
+        if (dataMediaPath == null) {
+            Trace.endSection();
+            return Optional.empty();
+        }
         try {
-            return Optional.of(deserializeFileAccessAttributes(
-                    Os.getxattr(relativePathWithDisplayName, key)));
+            final byte[] data = Os.getxattr(dataMediaPath, key);
+            if (data.length != SIZE_OF_FILE_ATTRIBUTES) {
+                Log.w(TAG, "Ignoring xattr:" + key + " of unexpected size from path:" + path);
+                return Optional.empty();
+            }
+            return Optional.of(deserializeFileAccessAttributes(data));
         } catch (ErrnoException e) {
-            Log.w(TAG,
-                    String.format("Exception encountered while reading xattr:%s from path:%s.", key,
-                            path));
+            if (e.errno != OsConstants.ENODATA) {
+                Log.w(TAG,
+                        String.format("Exception encountered while reading xattr:%s from path:%s.",
+                                key, path));
+            }
             return Optional.empty();
         } finally {
             Trace.endSection();
         }
     }
 
+    /**
+     * Stores {@code fileAccessAttributes} in the xattr {@code key} of the file at {@code path}.
+     *
+     * @return {@code true} if the xattr was written, {@code false} if {@code path} doesn't
+     * support xattrs or the write failed.
+     */
+    public static boolean setFileAttributesInXAttr(@NonNull String path, @NonNull String key,
+            @NonNull FileAccessAttributes fileAccessAttributes) {
+        Trace.beginSection("setFileAttributesInXAttr");
+        final String dataMediaPath = getDataMediaPath(path);
+        if (dataMediaPath == null) {
+            Trace.endSection();
+            return false;
+        }
+        try {
+            Os.setxattr(dataMediaPath, key, serializeFileAccessAttributes(fileAccessAttributes),
+                    0);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENOENT) {
+                Log.w(TAG, String.format("Exception encountered while writing xattr:%s to"
+                        + " path:%s.", key, path));
+            }
+            return false;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Removes the xattr {@code key} from the file at {@code path}, if present, so that readers
+     * fall back to the database.
+     */
+    public static void removeFileAttributesFromXAttr(@NonNull String path, @NonNull String key) {
+        final String dataMediaPath = getDataMediaPath(path);
+        if (dataMediaPath == null) {
+            return;
+        }
+        try {
+            Os.removexattr(dataMediaPath, key);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENODATA && e.errno != OsConstants.ENOENT) {
+                Log.w(TAG, String.format("Exception encountered while removing xattr:%s from"
+                        + " path:%s.", key, path));
+            }
+        }
+    }
+
     /**
      * Serializes file access attributes into byte array that will be stored in the xattr.
      * This method serializes only the id, mediaType, isPending, isTrashed and ownerId fields.
@@ -113,6 +113,7 @@ public class PerformanceTest {
             timers.notifyInsert.start();
             obs.waitForChange();
             timers.notifyInsert.stop();
+            timers.callbacksInsert.add(obs.getCallbackCount());
         }
         MediaStore.waitForIdle(resolver);
         {
@@ -129,6 +130,7 @@ public class PerformanceTest {
             timers.notifyUpdate.start();
             obs.waitForChange();
             timers.notifyUpdate.stop();
+            timers.callbacksUpdate.add(obs.getCallbackCount());
         }
         MediaStore.waitForIdle(resolver);
         {
@@ -142,6 +144,7 @@ public class PerformanceTest {
             timers.notifyDelete.start();
             obs.waitForChange();
             timers.notifyDelete.stop();
+            timers.callbacksDelete.add(obs.getCallbackCount());
         }
         MediaStore.waitForIdle(resolver);
     }
@@ -186,6 +189,7 @@ public class PerformanceTest {
             timers.notifyInsert.start();
             obs.waitForChange();
             timers.notifyInsert.stop();
+            timers.callbacksInsert.add(obs.getCallbackCount());
         }
         MediaStore.waitForIdle(resolver);
         {
@@ -206,6 +210,7 @@ public class PerformanceTest {
             timers.notifyUpdate.start();
             obs.waitForChange();
             timers.notifyUpdate.stop();
+            timers.callbacksUpdate.add(obs.getCallbackCount());
         }
         MediaStore.waitForIdle(resolver);
         {
@@ -225,6 +230,7 @@ public class PerformanceTest {
             timers.notifyDelete.start();
             obs.waitForChange();
             timers.notifyDelete.stop();
+            timers.callbacksDelete.add(obs.getCallbackCount());
         }
         MediaStore.waitForIdle(resolver);
     }
@@ -350,6 +356,9 @@ public class PerformanceTest {
         public final Timer notifyInsert = new Timer("notify_insert");
         public final Timer notifyUpdate = new Timer("notify_update");
         public final Timer notifyDelete = new Timer("notify_delete");
+        public final Counter callbacksInsert = new Counter("callbacks_insert");
+        public final Counter callbacksUpdate = new Counter("callbacks_update");
+        public final Counter callbacksDelete = new Counter("callbacks_delete");
 
         public void dumpResults() {
             actionInsert.dumpResults();
@@ -358,6 +367,37 @@ public class PerformanceTest {
             notifyInsert.dumpResults();
             notifyUpdate.dumpResults();
             notifyDelete.dumpResults();
+            callbacksInsert.dumpResults();
+            callbacksUpdate.dumpResults();
+            callbacksDelete.dumpResults();
+        }
+    }
+
+    /**
+     * Average number of {@link ContentObserver#onChange} callbacks needed to
+     * deliver a change, which shows the effect of notification coalescing.
+     */
+    private static class Counter {
+        private final String name;
+        private int runs;
+        private long total;
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void add(int count) {
+            runs++;
+            total += count;
+        }
+
+        public void dumpResults() {
+            final long average = (runs == 0) ? 0 : total / runs;
+            Log.v(TAG, name + ": " + average);
+
+            final Bundle results = new Bundle();
+            results.putLong(name + " (count)", average);
+            InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
         }
     }
 
@@ -365,14 +405,17 @@ public class PerformanceTest {
      * Observer that will wait for a specific change event to be delivered.
      */
     public static class CountingContentObserver extends ContentObserver {
+        private final Uri uri;
         private final int uriCount;
         private final int flags;
         private int accumulatedCount = 0;
+        private int callbackCount = 0;
 
         private final CountDownLatch latch = new CountDownLatch(1);
 
-        private CountingContentObserver(int uriCount, int flags) {
+        private CountingContentObserver(Uri uri, int uriCount, int flags) {
             super(null);
+            this.uri = uri;
             this.uriCount = uriCount;
             this.flags = flags;
         }
@@ -382,10 +425,17 @@ public class PerformanceTest {
             Log.v(TAG, String.format("onChange(%b, %s, %d)",
                     selfChange, asSet(uris).toString(), flags));
 
+            if (flags == this.flags) {
+                callbackCount++;
+            }
+
             if (this.uriCount == 1) {
                 if (asSet(uris).size() == 1 && flags == this.flags) {
                     latch.countDown();
                 }
+            } else if (flags == this.flags && uris.contains(this.uri)) {
+                // Bulk changes may have been collapsed into the collection itself
+                latch.countDown();
             } else if (flags == this.flags) {
                 // NotifyChange for bulk operations will be sent in batches.
                 final int receivedCount = asSet(uris).size();
@@ -399,12 +449,16 @@ public class PerformanceTest {
         }
 
         public static CountingContentObserver create(Uri uri, int uriCount, int flags) {
-            final CountingContentObserver obs = new CountingContentObserver(uriCount, flags);
+            final CountingContentObserver obs = new CountingContentObserver(uri, uriCount, flags);
             InstrumentationRegistry.getContext().getContentResolver()
                     .registerContentObserver(uri, true, obs);
             return obs;
         }
 
+        public int getCallbackCount() {
+            return callbackCount;
+        }
+
         public void waitForChange() {
             try {
                 assertTrue(latch.await(5, TimeUnit.SECONDS));
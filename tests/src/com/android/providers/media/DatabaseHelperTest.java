@@ -38,6 +38,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
 import android.os.UserHandle;
 import android.provider.Column;
 import android.provider.ExportedSince;
@@ -59,7 +60,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(AndroidJUnit4.class)
 public class DatabaseHelperTest {
@@ -78,6 +85,74 @@ public class DatabaseHelperTest {
         sIsolatedResolver = sIsolatedContext.getContentResolver();
     }
 
+    @Test
+    public void testTriggerArgs() throws Exception {
+        final DatabaseHelper.TriggerArgs args = new DatabaseHelper.TriggerArgs(
+                "external_primary:42:-1:1:0:null:/storage/emulated/0/a:b.jpg");
+        assertEquals("external_primary", args.nextString());
+        assertEquals(42L, args.nextLong());
+        assertEquals(-1, args.nextInt());
+        assertTrue(args.nextBoolean());
+        assertFalse(args.nextBoolean());
+        assertEquals("null", args.nextString());
+        assertEquals("/storage/emulated/0/a:b.jpg", args.remaining());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new DatabaseHelper.TriggerArgs("external").nextLong());
+        assertThrows(NumberFormatException.class,
+                () -> new DatabaseHelper.TriggerArgs("1x:").nextLong());
+    }
+
+    @Test
+    public void testPostBackgroundBatched() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ArrayList<String> items = new ArrayList<>();
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            helper.runWithTransaction((db) -> {
+                for (int i = 0; i < 3; i++) {
+                    final String item = "item" + i;
+                    helper.postBackgroundBatched(CountDownRunnable.class, () -> {
+                        created.incrementAndGet();
+                        return new CountDownRunnable(latch);
+                    }, (batch) -> items.add(item));
+                }
+                return null;
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, created.get());
+        assertEquals(3, items.size());
+    }
+
+    private static class CountDownRunnable implements Runnable {
+        private final CountDownLatch mLatch;
+
+        CountDownRunnable(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public void run() {
+            mLatch.countDown();
+        }
+    }
+
+    @Test
+    public void testCollapseUris() throws Exception {
+        final List<Uri> uris = Arrays.asList(
+                Uri.parse("content://media/external/images/media/12"),
+                Uri.parse("content://media/external/images/media/13"),
+                Uri.parse("content://media/external/file/12"),
+                Uri.parse("content://media/external/file"));
+
+        assertThat(DatabaseHelper.collapseUris(uris, 0)).containsExactlyElementsIn(uris);
+        assertThat(DatabaseHelper.collapseUris(uris, 4)).containsExactlyElementsIn(uris);
+        assertThat(DatabaseHelper.collapseUris(uris, 3)).containsExactly(
+                Uri.parse("content://media/external/images/media"),
+                Uri.parse("content://media/external/file"));
+    }
+
     @Test
     public void testFilterVolumeNames() throws Exception {
         try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
@@ -115,4 +115,24 @@ public class LocalCallingIdentityTest {
         assertFalse(ident.hasPermission(LocalCallingIdentity.PERMISSION_WRITE_VIDEO));
         assertFalse(ident.hasPermission(LocalCallingIdentity.PERMISSION_WRITE_IMAGES));
     }
+
+    @Test
+    public void testResolveCommonPermissions() throws Exception {
+        final Context context = InstrumentationRegistry.getContext();
+        final int uid = context.getPackageManager()
+                .getPackageUid(MediaProviderTest.PERMISSIONLESS_APP, 0);
+
+        final LocalCallingIdentity lazy = LocalCallingIdentity.fromExternal(context, null, uid);
+        final LocalCallingIdentity eager = LocalCallingIdentity.fromExternal(context, null, uid);
+        eager.resolveCommonPermissions();
+
+        // Resolving up front must agree with resolving one at a time
+        for (int i = 0; i < Integer.SIZE; i++) {
+            final int permission = 1 << i;
+            if ((LocalCallingIdentity.PERMISSIONS_COMMON & permission) != 0) {
+                assertEquals("permission " + permission, lazy.hasPermission(permission),
+                        eager.hasPermission(permission));
+            }
+        }
+    }
 }
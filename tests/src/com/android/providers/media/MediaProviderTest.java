@@ -47,12 +47,16 @@ import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Environment;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AudioColumns;
@@ -76,6 +80,7 @@ import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
 import com.android.providers.media.util.FileUtils;
 import com.android.providers.media.util.FileUtilsTest;
 import com.android.providers.media.util.SQLiteQueryBuilder;
+import com.android.providers.media.util.XAttrUtils;
 
 import org.junit.AfterClass;
 import org.junit.Assume;
@@ -87,6 +92,7 @@ import org.junit.runner.RunWith;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -95,6 +101,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 @RunWith(AndroidJUnit4.class)
@@ -375,6 +387,49 @@ public class MediaProviderTest {
         }
     }
 
+    @Test
+    public void testTrashDropsStaleFileAccessXAttr() throws Exception {
+        Assume.assumeTrue(XAttrUtils.ENABLE_XATTR_METADATA_FOR_FUSE);
+
+        resetIsolatedContext();
+        final String[] projection = new String[]{MediaColumns._ID, MediaColumns.DATA};
+        final File dir = Environment
+                .getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        final File file = stage(R.raw.lg_g4_iso_800_jpg,
+                new File(dir, "test" + System.nanoTime() + ".jpg"));
+        final Uri uri = MediaStore.scanFile(sIsolatedResolver, file);
+
+        final long id;
+        try (Cursor c = sIsolatedResolver.query(uri, projection, null, null)) {
+            assertTrue(c.moveToFirst());
+            id = c.getLong(0);
+        }
+
+        // Access metadata of the item before it's trashed, which moves with the file
+        assertTrue(XAttrUtils.setFileAttributesInXAttr(file.getPath(),
+                XAttrUtils.FILE_ACCESS_XATTR_KEY, new FileAccessAttributes(id,
+                        FileColumns.MEDIA_TYPE_IMAGE, /* isPending */ false,
+                        /* isTrashed */ false, /* ownerId */ -1, /* ownerPackageName */ null)));
+
+        final Bundle extras = new Bundle();
+        extras.putBoolean(MediaStore.QUERY_ARG_ALLOW_MOVEMENT, true);
+        final ContentValues values = new ContentValues();
+        values.put(MediaColumns.IS_TRASHED, 1);
+        assertEquals(1, sIsolatedResolver.update(uri, values, extras));
+
+        final String trashedPath;
+        try (Cursor c = sIsolatedResolver.query(uri, projection, null, null)) {
+            assertTrue(c.moveToFirst());
+            trashedPath = c.getString(1);
+        }
+        assertNotEquals(file.getPath(), trashedPath);
+
+        // Either no xattr, or the one written from the trashed row
+        final Optional<FileAccessAttributes> attrs = XAttrUtils.getFileAttributesFromXAttr(
+                trashedPath, XAttrUtils.FILE_ACCESS_XATTR_KEY);
+        assertTrue(!attrs.isPresent() || attrs.get().isTrashed());
+    }
+
     /**
      * We already have solid coverage of this logic in
      * {@code CtsProviderTestCases}, but the coverage system currently doesn't
@@ -1621,6 +1676,193 @@ public class MediaProviderTest {
         }
     }
 
+    @Test
+    public void testEnsureThumbnail_sharesConcurrentGeneration() throws Exception {
+        final CountDownLatch decodeStarted = new CountDownLatch(1);
+        final CountDownLatch finishDecode = new CountDownLatch(1);
+        final List<CancellationSignal> decodeSignals = new CopyOnWriteArrayList<>();
+        try (ContentProviderClient cpc = sIsolatedResolver
+                .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            final MediaProvider.Thumbnailer thumbnailer = newBlockingThumbnailer(
+                    (MediaProvider) cpc.getLocalContentProvider(), decodeStarted, finishDecode,
+                    decodeSignals);
+            final Uri uri = newThumbnailUri();
+            try {
+                final ThumbnailRequest first =
+                        new ThumbnailRequest(thumbnailer, uri, /* signal */ null);
+                assertTrue(decodeStarted.await(5, TimeUnit.SECONDS));
+                final ThumbnailRequest second =
+                        new ThumbnailRequest(thumbnailer, uri, /* signal */ null);
+                second.awaitWaiting();
+
+                finishDecode.countDown();
+                try (ParcelFileDescriptor pfd1 = first.get();
+                        ParcelFileDescriptor pfd2 = second.get()) {
+                    assertNotNull(pfd1);
+                    assertNotNull(pfd2);
+                }
+                assertEquals(1, decodeSignals.size());
+            } finally {
+                finishDecode.countDown();
+                thumbnailer.invalidateThumbnail(uri);
+            }
+        }
+    }
+
+    @Test
+    public void testEnsureThumbnail_cancelOneWaiterKeepsGeneration() throws Exception {
+        final CountDownLatch decodeStarted = new CountDownLatch(1);
+        final CountDownLatch finishDecode = new CountDownLatch(1);
+        final List<CancellationSignal> decodeSignals = new CopyOnWriteArrayList<>();
+        try (ContentProviderClient cpc = sIsolatedResolver
+                .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            final MediaProvider.Thumbnailer thumbnailer = newBlockingThumbnailer(
+                    (MediaProvider) cpc.getLocalContentProvider(), decodeStarted, finishDecode,
+                    decodeSignals);
+            final Uri uri = newThumbnailUri();
+            try {
+                final CancellationSignal firstSignal = new CancellationSignal();
+                final ThumbnailRequest first =
+                        new ThumbnailRequest(thumbnailer, uri, firstSignal);
+                assertTrue(decodeStarted.await(5, TimeUnit.SECONDS));
+                final ThumbnailRequest second =
+                        new ThumbnailRequest(thumbnailer, uri, new CancellationSignal());
+                second.awaitWaiting();
+
+                // The caller that started the generation goes away, but the
+                // other one still needs the thumbnail
+                firstSignal.cancel();
+                assertFalse(decodeSignals.get(0).isCanceled());
+
+                finishDecode.countDown();
+                try (ParcelFileDescriptor pfd = second.get()) {
+                    assertNotNull(pfd);
+                }
+                first.assertCanceled();
+                assertEquals(1, decodeSignals.size());
+            } finally {
+                finishDecode.countDown();
+                thumbnailer.invalidateThumbnail(uri);
+            }
+        }
+    }
+
+    @Test
+    public void testEnsureThumbnail_cancelAllWaitersCancelsGeneration() throws Exception {
+        final CountDownLatch decodeStarted = new CountDownLatch(1);
+        final CountDownLatch finishDecode = new CountDownLatch(1);
+        final List<CancellationSignal> decodeSignals = new CopyOnWriteArrayList<>();
+        try (ContentProviderClient cpc = sIsolatedResolver
+                .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+            final MediaProvider.Thumbnailer thumbnailer = newBlockingThumbnailer(
+                    (MediaProvider) cpc.getLocalContentProvider(), decodeStarted, finishDecode,
+                    decodeSignals);
+            final Uri uri = newThumbnailUri();
+            try {
+                final CancellationSignal firstSignal = new CancellationSignal();
+                final CancellationSignal secondSignal = new CancellationSignal();
+                final ThumbnailRequest first =
+                        new ThumbnailRequest(thumbnailer, uri, firstSignal);
+                assertTrue(decodeStarted.await(5, TimeUnit.SECONDS));
+                final ThumbnailRequest second =
+                        new ThumbnailRequest(thumbnailer, uri, secondSignal);
+                second.awaitWaiting();
+
+                secondSignal.cancel();
+                second.assertCanceled();
+                assertFalse(decodeSignals.get(0).isCanceled());
+
+                // Once nobody is waiting anymore, the generation itself is cancelled
+                firstSignal.cancel();
+                first.assertCanceled();
+                assertTrue(decodeSignals.get(0).isCanceled());
+
+                // And the next caller starts a new one
+                finishDecode.countDown();
+                try (ParcelFileDescriptor pfd = thumbnailer.ensureThumbnail(uri, null)) {
+                    assertNotNull(pfd);
+                }
+                assertEquals(2, decodeSignals.size());
+            } finally {
+                finishDecode.countDown();
+                thumbnailer.invalidateThumbnail(uri);
+            }
+        }
+    }
+
+    /**
+     * Returns a {@link MediaProvider.Thumbnailer} whose decoding blocks until
+     * {@code finishDecode} is released or the generation is cancelled, and
+     * which records the signal of every generation.
+     */
+    private static MediaProvider.Thumbnailer newBlockingThumbnailer(MediaProvider mp,
+            CountDownLatch decodeStarted, CountDownLatch finishDecode,
+            List<CancellationSignal> decodeSignals) {
+        return mp.new Thumbnailer(Environment.DIRECTORY_PICTURES) {
+            @Override
+            public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal)
+                    throws IOException {
+                decodeSignals.add(signal);
+                decodeStarted.countDown();
+                try {
+                    while (!finishDecode.await(10, TimeUnit.MILLISECONDS)) {
+                        signal.throwIfCanceled();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+            }
+        };
+    }
+
+    private static Uri newThumbnailUri() {
+        // Thumbnails are keyed by ID alone, so use one that no real item has
+        return MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY,
+                Long.MAX_VALUE - System.nanoTime());
+    }
+
+    /**
+     * Call to {@link MediaProvider.Thumbnailer#ensureThumbnail} on its own thread.
+     */
+    private static class ThumbnailRequest {
+        private final FutureTask<ParcelFileDescriptor> mTask;
+        private final Thread mThread;
+
+        ThumbnailRequest(MediaProvider.Thumbnailer thumbnailer, Uri uri,
+                CancellationSignal signal) {
+            mTask = new FutureTask<>(() -> thumbnailer.ensureThumbnail(uri, signal));
+            mThread = new Thread(mTask);
+            mThread.start();
+        }
+
+        /**
+         * Waits until this request joined the generation in progress, which
+         * parks its thread until the generation completes.
+         */
+        void awaitWaiting() throws Exception {
+            final long deadline = SystemClock.elapsedRealtime() + 5_000;
+            while (mThread.getState() != Thread.State.WAITING) {
+                assertTrue("Timed out waiting for thumbnail request",
+                        SystemClock.elapsedRealtime() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        ParcelFileDescriptor get() throws Exception {
+            return mTask.get(5, TimeUnit.SECONDS);
+        }
+
+        void assertCanceled() throws Exception {
+            try {
+                FileUtils.closeQuietly(get());
+                fail("Expected thumbnail request to be canceled");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof OperationCanceledException);
+            }
+        }
+    }
+
     private static void resetIsolatedContext() {
         if (sIsolatedResolver != null) {
             // This is necessary, we wait for all unfinished tasks to finish before we create a
@@ -19,6 +19,7 @@ package com.android.providers.media;
 import static android.provider.CloudMediaProviderContract.AlbumColumns;
 import static android.provider.CloudMediaProviderContract.EXTRA_ALBUM_ID;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIA_COLLECTION_ID;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 import static android.provider.CloudMediaProviderContract.MediaColumns;
@@ -40,9 +41,14 @@ import com.android.providers.media.photopicker.LocalProvider;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generates {@link TestMedia} items that can be accessed via test {@link CloudMediaProvider}
@@ -94,17 +100,55 @@ public class PickerProviderMediaGenerator {
         private Intent mAccountConfigurationIntent;
         private int mCursorExtraQueryCount;
         private Bundle mCursorExtra;
+        private int mPageSize;
+        private int mMediaQueryCount;
+        private final Set<Integer> mFailingMediaQueries = new HashSet<>();
+        private final List<String> mMediaPageTokens = new ArrayList<>();
+        private volatile CountDownLatch mMediaQueryBlocker;
+        private final Semaphore mBlockedMediaQueries = new Semaphore(0);
 
-        // TODO(b/214592293): Add pagination support for testing purposes.
         public Cursor getMedia(long generation, String albumId, String mimeType, long sizeBytes) {
-            final Cursor cursor = getCursor(mMedia, generation, albumId, mimeType, sizeBytes,
+            return getMedia(generation, albumId, mimeType, sizeBytes, /* pageToken */ null);
+        }
+
+        public Cursor getMedia(long generation, String albumId, String mimeType, long sizeBytes,
+                String pageToken) {
+            final CountDownLatch blocker = mMediaQueryBlocker;
+            if (blocker != null) {
+                mBlockedMediaQueries.release();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            Cursor cursor = getCursor(mMedia, generation, albumId, mimeType, sizeBytes,
                     /* isDeleted */ false);
 
+            final Bundle extras;
             if (mCursorExtra != null) {
-                cursor.setExtras(mCursorExtra);
+                extras = new Bundle(mCursorExtra);
             } else {
-                cursor.setExtras(buildCursorExtras(mCollectionId, generation > 0, albumId != null));
+                extras = buildCursorExtras(mCollectionId, generation > 0, albumId != null);
+            }
+
+            if (TextUtils.isEmpty(albumId)) {
+                mMediaPageTokens.add(pageToken);
+                if (mFailingMediaQueries.remove(++mMediaQueryCount)) {
+                    // Fails validation of the media collection id by the sync
+                    extras.putString(EXTRA_MEDIA_COLLECTION_ID, "failed");
+                }
+                if (mPageSize > 0) {
+                    final int offset = (pageToken == null) ? 0 : Integer.parseInt(pageToken);
+                    final int count = cursor.getCount();
+                    cursor = getPage(cursor, offset, mPageSize);
+                    if (offset + mPageSize < count) {
+                        extras.putString(EXTRA_PAGE_TOKEN, String.valueOf(offset + mPageSize));
+                    }
+                }
             }
+            cursor.setExtras(extras);
 
             if (--mCursorExtraQueryCount == 0) {
                 clearCursorExtras();
@@ -222,6 +266,50 @@ public class PickerProviderMediaGenerator {
             mDeletedMedia.clear();
             mAlbums.clear();
             clearCursorExtras();
+            mPageSize = 0;
+            mMediaQueryCount = 0;
+            mFailingMediaQueries.clear();
+            mMediaPageTokens.clear();
+            mMediaQueryBlocker = null;
+            mBlockedMediaQueries.drainPermits();
+        }
+
+        /**
+         * Returns media in pages of at most {@code pageSize} items, or all at once if 0.
+         */
+        public void setPageSize(int pageSize) {
+            mPageSize = pageSize;
+        }
+
+        /**
+         * Makes the media query with the given 1-based index, counted since {@link #resetAll()},
+         * fail validation by returning a mismatched media collection id.
+         */
+        public void setFailingMediaQuery(int queryIndex) {
+            mFailingMediaQueries.add(queryIndex);
+        }
+
+        /**
+         * Returns the page token of every media query since {@link #resetAll()}, in order.
+         */
+        public List<String> getMediaPageTokens() {
+            return new ArrayList<>(mMediaPageTokens);
+        }
+
+        /**
+         * Makes media queries wait for the given latch, or not at all if {@code null}.
+         */
+        public void setMediaQueryBlocker(CountDownLatch blocker) {
+            mMediaQueryBlocker = blocker;
+        }
+
+        /**
+         * Waits until a media query waits for the latch of {@link #setMediaQueryBlocker}.
+         *
+         * @return {@code true} if one did before the timeout
+         */
+        public boolean awaitBlockedMediaQuery(long timeoutMs) throws InterruptedException {
+            return mBlockedMediaQueries.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
         }
 
         public void setMediaCollectionId(String id) {
@@ -282,6 +370,20 @@ public class PickerProviderMediaGenerator {
             return matrix;
         }
 
+        private static Cursor getPage(Cursor cursor, int offset, int pageSize) {
+            final MatrixCursor page = new MatrixCursor(cursor.getColumnNames());
+            if (cursor.moveToPosition(offset)) {
+                do {
+                    final MatrixCursor.RowBuilder row = page.newRow();
+                    for (int i = 0; i < cursor.getColumnCount(); i++) {
+                        row.add(cursor.getString(i));
+                    }
+                } while (page.getCount() < pageSize && cursor.moveToNext());
+            }
+            cursor.close();
+            return page;
+        }
+
         private static Cursor getCursor(List<TestAlbum> albumList, String mimeType, long sizeBytes,
                 boolean isLocal) {
             final MatrixCursor matrix = new MatrixCursor(ALBUM_PROJECTION);
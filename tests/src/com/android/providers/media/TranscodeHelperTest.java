@@ -33,9 +33,12 @@ import androidx.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 @SdkSuppress(minSdkVersion = 31, codeName = "S")
@@ -165,4 +168,48 @@ public class TranscodeHelperTest {
         assertThat(transcodeReason).isEqualTo(
                 MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__APP_EXTRA);
     }
+
+    @Test
+    public void testFreeCacheEvictsLeastRecentlyUsed() throws Exception {
+        final File dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "transcode_cache_test");
+        dir.mkdirs();
+        try {
+            final long now = System.currentTimeMillis();
+            final File oldest = createCacheFile(dir, "1", now - TimeUnit.DAYS.toMillis(3));
+            final File older = createCacheFile(dir, "2", now - TimeUnit.DAYS.toMillis(2));
+            final File newest = createCacheFile(dir, "3", now - TimeUnit.DAYS.toMillis(1));
+
+            // Using a file makes it the most recently used, regardless of when it was created
+            mUnderTest.onTranscodeFileUsed(oldest.getAbsolutePath());
+            assertThat(oldest.lastModified()).isGreaterThan(newest.lastModified());
+
+            // A file used again shortly after isn't touched
+            final long lastUsed = oldest.lastModified();
+            mUnderTest.onTranscodeFileUsed(oldest.getAbsolutePath());
+            assertThat(oldest.lastModified()).isEqualTo(lastUsed);
+
+            TranscodeHelperImpl.freeCache(dir, CACHE_FILE_SIZE + 1);
+            assertThat(older.exists()).isFalse();
+            assertThat(newest.exists()).isFalse();
+            assertThat(oldest.exists()).isTrue();
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static final int CACHE_FILE_SIZE = 1024;
+
+    private static File createCacheFile(File dir, String name, long lastModified)
+            throws Exception {
+        final File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[CACHE_FILE_SIZE]);
+        }
+        assertThat(file.setLastModified(lastModified)).isTrue();
+        return file;
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.android.providers.media.cloudproviders;
 
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 import static com.android.providers.media.PickerProviderMediaGenerator.MediaGenerator;
 
@@ -54,7 +55,8 @@ public class CloudProviderSecondary extends CloudMediaProvider {
                 CloudProviderQueryExtras.fromCloudMediaBundle(extras);
 
         return mMediaGenerator.getMedia(queryExtras.getGeneration(), queryExtras.getAlbumId(),
-                queryExtras.getMimeType(), queryExtras.getSizeBytes());
+                queryExtras.getMimeType(), queryExtras.getSizeBytes(),
+                extras == null ? null : extras.getString(EXTRA_PAGE_TOKEN));
     }
 
     @Override
@@ -28,6 +28,7 @@ import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Process;
@@ -51,7 +52,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -94,6 +97,10 @@ public class PickerSyncControllerTest {
 
     private static final String COLLECTION_1 = "1";
     private static final String COLLECTION_2 = "2";
+    private static final String COLLECTION_3 = "3";
+
+    private static final int PAGES_PER_CHECKPOINT =
+            PickerSyncController.SYNC_PAGES_PER_TRANSACTION;
 
     private static final long SYNC_DELAY_MS = 1000;
 
@@ -135,6 +142,218 @@ public class PickerSyncControllerTest {
         setCloudProviderAndSyncAllMedia(null);
     }
 
+    @Test
+    public void testSyncAllMediaAsync() throws Exception {
+        addMedia(mLocalMediaGenerator, LOCAL_ONLY_1);
+
+        final CountDownLatch blocker = new CountDownLatch(1);
+        mLocalMediaGenerator.setMediaQueryBlocker(blocker);
+        final CompletableFuture<Void> future = mController.syncAllMediaAsync();
+        try {
+            assertThat(mLocalMediaGenerator.awaitBlockedMediaQuery(5000)).isTrue();
+
+            // A sync that's still running is shared rather than started again
+            assertThat(mController.syncAllMediaAsync()).isSameInstanceAs(future);
+            assertThat(future.isDone()).isFalse();
+        } finally {
+            blocker.countDown();
+        }
+
+        future.get(5, TimeUnit.SECONDS);
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            assertCursor(cr, LOCAL_ID_1, LOCAL_PROVIDER_AUTHORITY);
+        }
+
+        // A finished sync isn't shared
+        final CompletableFuture<Void> nextFuture = mController.syncAllMediaAsync();
+        assertThat(nextFuture).isNotSameInstanceAs(future);
+        nextFuture.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSyncAllMediaAsyncDoesNotWaitForRunningSync() throws Exception {
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
+
+        final CountDownLatch blocker = new CountDownLatch(1);
+        mCloudPrimaryMediaGenerator.setMediaQueryBlocker(blocker);
+        final Thread syncThread = new Thread(mController::syncAllMedia);
+        syncThread.start();
+        final CompletableFuture<Void> future;
+        try {
+            // The blocking sync now holds the controller lock for the cloud sync
+            assertThat(mCloudPrimaryMediaGenerator.awaitBlockedMediaQuery(5000)).isTrue();
+
+            future = CompletableFuture.supplyAsync(mController::syncAllMediaAsync)
+                    .get(5, TimeUnit.SECONDS);
+            assertThat(future.isDone()).isFalse();
+        } finally {
+            blocker.countDown();
+        }
+
+        syncThread.join(5000);
+        future.get(5, TimeUnit.SECONDS);
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            assertCursor(cr, CLOUD_ID_1, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        }
+    }
+
+    @Test
+    public void testSyncAllMediaAsyncNotifiesCheckpoints() throws Exception {
+        final int pageCount = 2 * PickerSyncController.SYNC_PAGES_PER_TRANSACTION + 1;
+        for (int i = 0; i < pageCount; i++) {
+            mLocalMediaGenerator.addMedia(String.valueOf(i), /* cloudId */ null);
+        }
+        mLocalMediaGenerator.setPageSize(1);
+
+        // Once per checkpoint, and once the sync completes
+        final CountDownLatch notified = new CountDownLatch(3);
+        final ContentObserver observer = new ContentObserver(/* handler */ null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                notified.countDown();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                PickerUriResolver.PICKER_INTERNAL_URI, /* notifyForDescendants */ true, observer);
+        try {
+            mController.syncAllMediaAsync().get(5, TimeUnit.SECONDS);
+            assertThat(notified.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(pageCount);
+        }
+    }
+
+    @Test
+    public void testSyncAllMediaResumesFromCheckpoint() {
+        final int mediaCount = 2 * PAGES_PER_CHECKPOINT + 5;
+        prepareLocalFullSync(mediaCount);
+        // Fail after the first checkpoint
+        mLocalMediaGenerator.setFailingMediaQuery(PAGES_PER_CHECKPOINT + 5);
+
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(mediaCount);
+        }
+        // The retry continued after the checkpoint rather than starting over
+        final List<String> pageTokens = mLocalMediaGenerator.getMediaPageTokens();
+        assertThat(pageTokens).hasSize(PAGES_PER_CHECKPOINT + 5
+                + mediaCount - PAGES_PER_CHECKPOINT);
+        assertThat(pageTokens.get(PAGES_PER_CHECKPOINT + 5))
+                .isEqualTo(String.valueOf(PAGES_PER_CHECKPOINT));
+    }
+
+    @Test
+    public void testSyncAllMediaResetsWhenResumeMakesNoProgress() {
+        final int mediaCount = 2 * PAGES_PER_CHECKPOINT + 5;
+        prepareLocalFullSync(mediaCount);
+        // Fail after the first checkpoint, and again before the resumed sync reaches another
+        mLocalMediaGenerator.setFailingMediaQuery(PAGES_PER_CHECKPOINT + 5);
+        mLocalMediaGenerator.setFailingMediaQuery(PAGES_PER_CHECKPOINT + 5 + 3);
+
+        mController.syncAllMedia();
+
+        // All media of the failed sync is reset
+        assertEmptyCursorFromMediaQuery();
+        List<String> pageTokens = mLocalMediaGenerator.getMediaPageTokens();
+        assertThat(pageTokens).hasSize(PAGES_PER_CHECKPOINT + 5 + 3);
+        assertThat(pageTokens.get(PAGES_PER_CHECKPOINT + 5))
+                .isEqualTo(String.valueOf(PAGES_PER_CHECKPOINT));
+
+        // And the next sync starts over
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(mediaCount);
+        }
+        pageTokens = mLocalMediaGenerator.getMediaPageTokens();
+        assertThat(pageTokens).hasSize(PAGES_PER_CHECKPOINT + 5 + 3 + mediaCount);
+        assertThat(pageTokens.get(PAGES_PER_CHECKPOINT + 5 + 3)).isNull();
+    }
+
+    @Test
+    public void testSyncAllMediaDiscardsCheckpointOfOtherCollection() {
+        final int mediaCount = 2 * PAGES_PER_CHECKPOINT + 5;
+        prepareLocalFullSync(mediaCount);
+        // Fail after the first checkpoint, and again after the resumed sync reached another,
+        // which leaves that second checkpoint for the next sync
+        final int failedQueries = PAGES_PER_CHECKPOINT + 5 + PAGES_PER_CHECKPOINT + 2;
+        mLocalMediaGenerator.setFailingMediaQuery(PAGES_PER_CHECKPOINT + 5);
+        mLocalMediaGenerator.setFailingMediaQuery(failedQueries);
+
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(2 * PAGES_PER_CHECKPOINT);
+        }
+
+        // A new media collection can't resume from the checkpoint of the previous one
+        mLocalMediaGenerator.setMediaCollectionId(COLLECTION_3);
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(mediaCount);
+        }
+        final List<String> pageTokens = mLocalMediaGenerator.getMediaPageTokens();
+        assertThat(pageTokens).hasSize(failedQueries + mediaCount);
+        assertThat(pageTokens.get(failedQueries)).isNull();
+    }
+
+    @Test
+    public void testSyncAllMediaResumedSyncCommitsOriginalGeneration() {
+        final int mediaCount = 2 * PAGES_PER_CHECKPOINT + 5;
+        prepareLocalFullSync(mediaCount);
+        // Fail after the first checkpoint, and again after the resumed sync reached another,
+        // which leaves that second checkpoint for the next sync
+        final int failedQueries = PAGES_PER_CHECKPOINT + 5 + PAGES_PER_CHECKPOINT + 2;
+        mLocalMediaGenerator.setFailingMediaQuery(PAGES_PER_CHECKPOINT + 5);
+        mLocalMediaGenerator.setFailingMediaQuery(failedQueries);
+
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(2 * PAGES_PER_CHECKPOINT);
+        }
+
+        // While the sync is interrupted, replace the newest media, which it already synced.
+        // The page offsets of the remaining media stay the same
+        final String deletedId = String.valueOf(mediaCount - 1);
+        final String addedId = String.valueOf(mediaCount);
+        mLocalMediaGenerator.deleteMedia(deletedId, /* cloudId */ null);
+        mLocalMediaGenerator.addMedia(addedId, /* cloudId */ null);
+
+        // The resumed sync completes without seeing either change
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(mediaCount);
+        }
+
+        // But the next incremental sync does, since it starts from the generation the
+        // interrupted sync started from
+        mController.syncAllMedia();
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(mediaCount);
+
+            final List<String> ids = new ArrayList<>();
+            while (cr.moveToNext()) {
+                ids.add(cr.getString(cr.getColumnIndex(MediaColumns.ID)));
+            }
+            assertThat(ids).contains(addedId);
+            assertThat(ids).doesNotContain(deletedId);
+        }
+    }
+
     @Test
     public void testSyncAllMediaLocalOnly() {
         // 1. Do nothing
@@ -990,6 +1209,19 @@ public class PickerSyncControllerTest {
         return queryArgs;
     }
 
+    /**
+     * Adds local media returned a page per item, under a new media collection id so that the
+     * next sync is a full sync.
+     */
+    private void prepareLocalFullSync(int mediaCount) {
+        mLocalMediaGenerator.resetAll();
+        mLocalMediaGenerator.setMediaCollectionId(COLLECTION_2);
+        for (int i = 0; i < mediaCount; i++) {
+            mLocalMediaGenerator.addMedia(String.valueOf(i), /* cloudId */ null);
+        }
+        mLocalMediaGenerator.setPageSize(1);
+    }
+
     private static void addMedia(MediaGenerator generator, Pair<String, String> media) {
         generator.addMedia(media.first, media.second);
     }
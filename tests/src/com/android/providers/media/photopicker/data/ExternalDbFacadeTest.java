@@ -782,6 +782,52 @@ public class ExternalDbFacadeTest {
         }
     }
 
+    @Test
+    public void testQueryAlbumsAfterMediaChanges() throws Exception {
+        try (DatabaseHelper helper = new TestDatabaseHelper(sIsolatedContext)) {
+            ExternalDbFacade facade = new ExternalDbFacade(sIsolatedContext, helper,
+                    mock(VolumeCache.class));
+
+            initMediaInAllAlbums(helper);
+
+            try (Cursor cursor = facade.queryAlbums(/* mimeType */ null)) {
+                assertThat(cursor.getCount()).isEqualTo(3);
+            }
+
+            // Insert another image in camera album
+            ContentValues cv = getContentValues(DATE_TAKEN_MS4, GENERATION_MODIFIED4);
+            cv.put(MediaColumns.RELATIVE_PATH, ExternalDbFacade.RELATIVE_PATH_CAMERA);
+            helper.runWithTransaction(db -> db.insert(TABLE_FILES, null, cv));
+
+            // Non-media changes don't affect the albums
+            assertThat(facade.onFileInserted(FileColumns.MEDIA_TYPE_AUDIO, /* isPending */ false))
+                    .isFalse();
+            try (Cursor cursor = facade.queryAlbums(/* mimeType */ null)) {
+                cursor.moveToFirst();
+                assertAlbumColumns(facade, cursor, ALBUM_ID_CAMERA, DATE_TAKEN_MS1, /* count */ 1);
+            }
+
+            assertThat(facade.onFileInserted(FileColumns.MEDIA_TYPE_IMAGE, /* isPending */ false))
+                    .isTrue();
+            try (Cursor cursor = facade.queryAlbums(/* mimeType */ null)) {
+                assertThat(cursor.getCount()).isEqualTo(3);
+                cursor.moveToFirst();
+                assertAlbumColumns(facade, cursor, ALBUM_ID_CAMERA, DATE_TAKEN_MS4, /* count */ 2);
+            }
+
+            // Remove everything but the camera album
+            helper.runWithTransaction(db -> db.delete(TABLE_FILES,
+                    MediaColumns.DATE_TAKEN + " IN (?, ?)", new String[] {
+                            String.valueOf(DATE_TAKEN_MS2), String.valueOf(DATE_TAKEN_MS3)}));
+            facade.invalidateAlbums();
+            try (Cursor cursor = facade.queryAlbums(/* mimeType */ null)) {
+                assertThat(cursor.getCount()).isEqualTo(1);
+                cursor.moveToFirst();
+                assertAlbumColumns(facade, cursor, ALBUM_ID_CAMERA, DATE_TAKEN_MS4, /* count */ 2);
+            }
+        }
+    }
+
     @Test
     public void testOrderOfLocalAlbumIds() {
         // Camera, ScreenShots, Downloads
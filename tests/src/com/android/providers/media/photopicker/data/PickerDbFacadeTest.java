@@ -26,6 +26,7 @@ import static org.junit.Assert.assertThrows;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.provider.CloudMediaProviderContract.AlbumColumns;
 import android.provider.CloudMediaProviderContract.MediaColumns;
 import android.provider.MediaStore.PickerMediaColumns;
@@ -157,6 +158,78 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testAddLocalPage_hidesShadowedCloudMedia() throws Exception {
+        final String localId2 = LOCAL_ID + "1";
+        final String cloudId2 = CLOUD_ID + "2";
+        final String cloudId3 = CLOUD_ID + "3";
+        assertAddMediaOperation(CLOUD_PROVIDER, new MergeCursor(new Cursor[] {
+                getCloudMediaCursor(CLOUD_ID, LOCAL_ID, DATE_TAKEN_MS + 1),
+                getCloudMediaCursor(cloudId2, localId2, DATE_TAKEN_MS + 2),
+                getCloudMediaCursor(cloudId3, null, DATE_TAKEN_MS + 3)}), 3);
+
+        // A single page of local media hides every cloud item it shadows
+        assertAddMediaOperation(LOCAL_PROVIDER, new MergeCursor(new Cursor[] {
+                getLocalMediaCursor(LOCAL_ID, DATE_TAKEN_MS),
+                getLocalMediaCursor(localId2, DATE_TAKEN_MS - 1)}), 2);
+
+        try (Cursor cr = queryMediaAll()) {
+            assertThat(cr.getCount()).isEqualTo(3);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, cloudId3, DATE_TAKEN_MS + 3);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, LOCAL_ID, DATE_TAKEN_MS);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, localId2, DATE_TAKEN_MS - 1);
+        }
+
+        // The hidden cloud items are promoted again once their local items are gone
+        assertRemoveMediaOperation(LOCAL_PROVIDER, getDeletedMediaCursor(localId2), 1);
+
+        try (Cursor cr = queryMediaAll()) {
+            assertThat(cr.getCount()).isEqualTo(3);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, cloudId3, DATE_TAKEN_MS + 3);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, cloudId2, DATE_TAKEN_MS + 2);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, LOCAL_ID, DATE_TAKEN_MS);
+        }
+    }
+
+    @Test
+    public void testResyncCloudPage_keepsShadowedMediaHidden() throws Exception {
+        final String cloudId2 = CLOUD_ID + "2";
+        assertAddMediaOperation(LOCAL_PROVIDER, getLocalMediaCursor(LOCAL_ID, DATE_TAKEN_MS), 1);
+        assertAddMediaOperation(CLOUD_PROVIDER, new MergeCursor(new Cursor[] {
+                getCloudMediaCursor(CLOUD_ID, LOCAL_ID, DATE_TAKEN_MS + 1),
+                getCloudMediaCursor(cloudId2, null, DATE_TAKEN_MS + 2)}), 2);
+
+        // Syncing the same cloud items again updates them in place
+        assertAddMediaOperation(CLOUD_PROVIDER, new MergeCursor(new Cursor[] {
+                getCloudMediaCursor(CLOUD_ID, LOCAL_ID, DATE_TAKEN_MS + 3),
+                getCloudMediaCursor(cloudId2, null, DATE_TAKEN_MS + 4)}), 2);
+
+        try (Cursor cr = queryMediaAll()) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, cloudId2, DATE_TAKEN_MS + 4);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, LOCAL_ID, DATE_TAKEN_MS);
+        }
+
+        // The shadowed item kept the update while hidden
+        assertRemoveMediaOperation(LOCAL_PROVIDER, getDeletedMediaCursor(LOCAL_ID), 1);
+
+        try (Cursor cr = queryMediaAll()) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, cloudId2, DATE_TAKEN_MS + 4);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, CLOUD_ID, DATE_TAKEN_MS + 3);
+        }
+    }
+
     @Test
     public void testAddLocalAlbumMedia() {
         Cursor cursor1 = getAlbumMediaCursor(LOCAL_ID, DATE_TAKEN_MS + 1, true);
@@ -503,6 +576,47 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testQueryNextPageByPickerId() throws Exception {
+        Cursor cursor1 = getLocalMediaCursor(LOCAL_ID + "1", DATE_TAKEN_MS);
+        Cursor cursor2 = getLocalMediaCursor(LOCAL_ID + "2", DATE_TAKEN_MS);
+        Cursor cursor3 = getLocalMediaCursor(LOCAL_ID + "3", DATE_TAKEN_MS - 1);
+
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(LOCAL_PROVIDER)) {
+            assertWriteOperation(operation, cursor1, 1);
+            assertWriteOperation(operation, cursor2, 1);
+            assertWriteOperation(operation, cursor3, 1);
+            operation.setSuccess();
+        }
+
+        // Page through the items two at a time, keyed on the last item of each page
+        final long dateTakenMs;
+        final long pickerId;
+        try (Cursor cr = mFacade.queryMediaForUi(
+                new PickerDbFacade.QueryFilterBuilder(2).build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+
+            cr.moveToFirst();
+            assertCloudMediaCursor(cr, LOCAL_ID + "2", DATE_TAKEN_MS);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, LOCAL_ID + "1", DATE_TAKEN_MS);
+
+            dateTakenMs = cr.getLong(cr.getColumnIndex(MediaColumns.DATE_TAKEN_MILLIS));
+            pickerId = cr.getLong(cr.getColumnIndex(PickerDbFacade.PICKER_ID));
+        }
+
+        PickerDbFacade.QueryFilterBuilder qfbNext = new PickerDbFacade.QueryFilterBuilder(2);
+        qfbNext.setDateTakenBeforeMs(dateTakenMs);
+        qfbNext.setId(pickerId);
+        try (Cursor cr = mFacade.queryMediaForUi(qfbNext.build())) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            cr.moveToFirst();
+            assertCloudMediaCursor(cr, LOCAL_ID + "3", DATE_TAKEN_MS - 1);
+        }
+    }
+
     @Test
     public void testQueryWithLimit() throws Exception {
         Cursor cursor1 = getLocalMediaCursor(LOCAL_ID + "1", DATE_TAKEN_MS);
@@ -970,6 +1084,117 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testGetMergedAlbumsAfterMediaChanges() throws Exception {
+        Cursor localCursor = getMediaCursor(LOCAL_ID, DATE_TAKEN_MS, GENERATION_MODIFIED,
+                /* mediaStoreUri */ null, SIZE_BYTES, VIDEO_MIME_TYPE,
+                STANDARD_MIME_TYPE_EXTENSION, /* isFavorite */ true);
+        Cursor cloudCursor = getMediaCursor(CLOUD_ID, DATE_TAKEN_MS + 1, GENERATION_MODIFIED,
+                /* mediaStoreUri */ null, SIZE_BYTES, VIDEO_MIME_TYPE,
+                STANDARD_MIME_TYPE_EXTENSION, /* isFavorite */ false);
+
+        PickerDbFacade.QueryFilterBuilder qfb =
+                new PickerDbFacade.QueryFilterBuilder(/* limit */ 1000);
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(0);
+        }
+
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(LOCAL_PROVIDER)) {
+            assertWriteOperation(operation, localCursor, 1);
+            operation.setSuccess();
+        }
+
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToFirst();
+            assertCloudAlbumCursor(cr, ALBUM_ID_FAVORITES, ALBUM_ID_FAVORITES, LOCAL_ID,
+                    DATE_TAKEN_MS, /* count */ 1);
+            cr.moveToNext();
+            assertCloudAlbumCursor(cr, ALBUM_ID_VIDEOS, ALBUM_ID_VIDEOS, LOCAL_ID,
+                    DATE_TAKEN_MS, /* count */ 1);
+        }
+
+        // Failed writes leave the albums as they were
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(CLOUD_PROVIDER)) {
+            assertWriteOperation(operation, cloudCursor, 1);
+        }
+
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToLast();
+            assertCloudAlbumCursor(cr, ALBUM_ID_VIDEOS, ALBUM_ID_VIDEOS, LOCAL_ID,
+                    DATE_TAKEN_MS, /* count */ 1);
+        }
+
+        cloudCursor.moveToPosition(-1);
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(CLOUD_PROVIDER)) {
+            assertWriteOperation(operation, cloudCursor, 1);
+            operation.setSuccess();
+        }
+
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToLast();
+            assertCloudAlbumCursor(cr, ALBUM_ID_VIDEOS, ALBUM_ID_VIDEOS, CLOUD_ID,
+                    DATE_TAKEN_MS + 1, /* count */ 2);
+        }
+
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginResetMediaOperation(LOCAL_PROVIDER)) {
+            assertWriteOperation(operation, /* cursor */ null, 1);
+            operation.setSuccess();
+        }
+
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(1);
+            cr.moveToFirst();
+            assertCloudAlbumCursor(cr, ALBUM_ID_VIDEOS, ALBUM_ID_VIDEOS, CLOUD_ID,
+                    DATE_TAKEN_MS + 1, /* count */ 1);
+        }
+    }
+
+    @Test
+    public void testGetMergedAlbumsStoredInDb() throws Exception {
+        Cursor localCursor = getMediaCursor(LOCAL_ID, DATE_TAKEN_MS, GENERATION_MODIFIED,
+                /* mediaStoreUri */ null, SIZE_BYTES, VIDEO_MIME_TYPE,
+                STANDARD_MIME_TYPE_EXTENSION, /* isFavorite */ true);
+
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(LOCAL_PROVIDER)) {
+            assertWriteOperation(operation, localCursor, 1);
+            operation.setSuccess();
+        }
+
+        PickerDbFacade.QueryFilterBuilder qfb =
+                new PickerDbFacade.QueryFilterBuilder(/* limit */ 1000);
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+        }
+
+        // Remove the media behind the facades' back, the stored summaries are still served
+        try (PickerDatabaseHelper helper = new PickerDatabaseHelper(mContext)) {
+            helper.getWritableDatabase().delete("media", /* whereClause */ null,
+                    /* whereArgs */ null);
+        }
+
+        final PickerDbFacade facade = new PickerDbFacade(mContext, LOCAL_PROVIDER);
+        try (Cursor cr = facade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToFirst();
+            assertCloudAlbumCursor(cr, ALBUM_ID_FAVORITES, ALBUM_ID_FAVORITES, LOCAL_ID,
+                    DATE_TAKEN_MS, /* count */ 1);
+        }
+
+        // Until they're rebuilt
+        facade.invalidateAlbums();
+        try (Cursor cr = facade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(0);
+        }
+    }
+
     @Test
     public void testDataColumn() throws Exception {
         Cursor imageCursor = getMediaCursor(LOCAL_ID, DATE_TAKEN_MS, GENERATION_MODIFIED,
@@ -996,6 +1221,27 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testCheckpoint() throws Exception {
+        Cursor localCursor = getLocalMediaCursor(LOCAL_ID, DATE_TAKEN_MS);
+        Cursor cloudCursor = getCloudMediaCursor(CLOUD_ID, null, DATE_TAKEN_MS);
+
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(LOCAL_PROVIDER)) {
+            assertWriteOperation(operation, localCursor, 1);
+            operation.checkpoint();
+            assertWriteOperation(operation, cloudCursor, 1);
+            // Don't mark the operation successful
+        }
+
+        // Only the writes before the checkpoint were committed
+        try (Cursor cr = queryMediaAll()) {
+            assertThat(cr.getCount()).isEqualTo(1);
+            cr.moveToFirst();
+            assertCloudMediaCursor(cr, LOCAL_ID, DATE_TAKEN_MS);
+        }
+    }
+
     @Test
     public void testAddMediaFailure() throws Exception {
         try (PickerDbFacade.DbWriteOperation operation =
@@ -30,6 +30,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.CloudMediaProviderContract;
 import android.text.format.DateUtils;
 
@@ -39,8 +40,10 @@ import androidx.lifecycle.LiveData;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.providers.media.PickerUriResolver;
 import com.android.providers.media.photopicker.PickerSyncController;
 import com.android.providers.media.photopicker.data.ItemsProvider;
+import com.android.providers.media.photopicker.data.PickerDbFacade;
 import com.android.providers.media.photopicker.data.UserIdManager;
 import com.android.providers.media.photopicker.data.model.Category;
 import com.android.providers.media.photopicker.data.model.Item;
@@ -56,6 +59,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @RunWith(AndroidJUnit4.class)
@@ -281,6 +285,80 @@ public class PickerViewModelTest {
     }
 
 
+    @Test
+    public void testLoadMoreItems() throws Exception {
+        final int itemCount = PickerViewModel.ITEMS_PAGE_SIZE + 1;
+        mItemsProvider.setItems(generateFakeImageItemList(itemCount));
+        mPickerViewModel.updateItems();
+        // We use ForegroundThread to execute the loadItems in updateItems(), wait for the thread
+        // idle
+        ForegroundThread.waitForIdle();
+
+        // Only the first page is loaded
+        final List<Item> firstPageList = mPickerViewModel.getItems().getValue();
+        assertThat(countPhotoItems(firstPageList)).isEqualTo(PickerViewModel.ITEMS_PAGE_SIZE);
+
+        mPickerViewModel.loadMoreItems();
+        ForegroundThread.waitForIdle();
+
+        // The second page is appended to the same list
+        final List<Item> itemList = mPickerViewModel.getItems().getValue();
+        assertThat(itemList).isSameInstanceAs(firstPageList);
+        assertThat(countPhotoItems(itemList)).isEqualTo(itemCount);
+        // Check the item of the second page is last
+        final Item lastItem = itemList.get(itemList.size() - 1);
+        assertThat(lastItem.getId()).isEqualTo(String.valueOf(itemCount - 1));
+
+        // There are no more pages to load
+        mPickerViewModel.loadMoreItems();
+        ForegroundThread.waitForIdle();
+
+        assertThat(mPickerViewModel.getItems().getValue()).isSameInstanceAs(itemList);
+    }
+
+    @Test
+    public void testGetItems_reloadedWhenNotified() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final Uri notificationUri = PickerUriResolver.PICKER_INTERNAL_URI.buildUpon()
+                .appendPath(PickerUriResolver.MEDIA_PATH).build();
+        mItemsProvider.setItems(generateFakeImageItemList(1));
+        mItemsProvider.setNotificationUri(notificationUri);
+        mPickerViewModel.updateItems();
+        ForegroundThread.waitForIdle();
+
+        assertThat(countPhotoItems(mPickerViewModel.getItems().getValue())).isEqualTo(1);
+
+        try {
+            // A sync running in the background committed more media
+            mItemsProvider.setItems(generateFakeImageItemList(3));
+            context.getContentResolver().notifyChange(PickerUriResolver.PICKER_INTERNAL_URI,
+                    /* observer */ null);
+
+            // Wait for the observer to reload the first page on the main thread
+            final long deadlineMs = SystemClock.elapsedRealtime() + 5000;
+            while (countPhotoItems(mPickerViewModel.getItems().getValue()) != 3
+                    && SystemClock.elapsedRealtime() < deadlineMs) {
+                InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+                ForegroundThread.waitForIdle();
+                SystemClock.sleep(50);
+            }
+
+            assertThat(countPhotoItems(mPickerViewModel.getItems().getValue())).isEqualTo(3);
+        } finally {
+            mPickerViewModel.onCleared();
+        }
+    }
+
+    private static int countPhotoItems(List<Item> itemList) {
+        int count = 0;
+        for (Item item : itemList) {
+            if (!item.isDate()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private static Item generateFakeImageItem(String id) {
         final long dateTakenMs = System.currentTimeMillis() + Long.parseLong(id)
                 * DateUtils.DAY_IN_MILLIS;
@@ -316,20 +394,30 @@ public class PickerViewModelTest {
 
     private static class TestItemsProvider extends ItemsProvider {
 
+        private final Context mContext;
         private List<Item> mItemList = new ArrayList<>();
         private Cursor mCategoriesCursor;
+        private Uri mNotificationUri;
 
         public TestItemsProvider(Context context) {
             super(context);
+            mContext = context;
         }
 
         @Override
-        public Cursor getItems(Category category, int offset,
+        public Cursor getItems(Category category, long dateTakenBeforeMs, long pickerId,
                 int limit, @Nullable String mimeType, @Nullable UserId userId) throws
                 IllegalArgumentException, IllegalStateException {
-            final MatrixCursor c = new MatrixCursor(MediaColumns.ALL_PROJECTION);
-
-            for (Item item : mItemList) {
+            final String[] projection = Arrays.copyOf(MediaColumns.ALL_PROJECTION,
+                    MediaColumns.ALL_PROJECTION.length + 1);
+            projection[projection.length - 1] = PickerDbFacade.PICKER_ID;
+            final MatrixCursor c = new MatrixCursor(projection);
+
+            // Use the index of each item as its picker id
+            final int start = (int) pickerId + 1;
+            final int end = Math.min(mItemList.size(), start + limit);
+            for (int i = start; i < end; i++) {
+                final Item item = mItemList.get(i);
                 c.addRow(new String[] {
                         item.getId(),
                         String.valueOf(item.getDateTaken()),
@@ -341,9 +429,13 @@ public class PickerViewModelTest {
                         String.valueOf(item.getDuration()),
                         "0", // is_favorite
                         "/storage/emulated/0/foo",
-                        PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY
+                        PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY,
+                        String.valueOf(i)
                 });
             }
+            if (mNotificationUri != null) {
+                c.setNotificationUri(mContext.getContentResolver(), mNotificationUri);
+            }
 
             return c;
         }
@@ -365,6 +457,10 @@ public class PickerViewModelTest {
         public void setCategoriesCursor(@NonNull Cursor cursor) {
             mCategoriesCursor = cursor;
         }
+
+        public void setNotificationUri(@NonNull Uri uri) {
+            mNotificationUri = uri;
+        }
     }
 
     @Test
@@ -16,9 +16,13 @@
 
 package com.android.providers.media.scan;
 
+import static com.android.providers.media.scan.MediaScanner.REASON_IDLE;
 import static com.android.providers.media.scan.MediaScanner.REASON_UNKNOWN;
 import static com.android.providers.media.scan.MediaScannerTest.stage;
-import static com.android.providers.media.scan.ModernMediaScanner.MAX_EXCLUDE_DIRS;
+import static com.android.providers.media.scan.ModernMediaScanner.MAX_BATCH_SIZE;
+import static com.android.providers.media.scan.ModernMediaScanner.MIN_BATCH_SIZE;
+import static com.android.providers.media.scan.ModernMediaScanner.TARGET_BATCH_MILLIS;
+import static com.android.providers.media.scan.ModernMediaScanner.computeNextBatchSize;
 import static com.android.providers.media.scan.ModernMediaScanner.isFileAlbumArt;
 import static com.android.providers.media.scan.ModernMediaScanner.parseOptional;
 import static com.android.providers.media.scan.ModernMediaScanner.parseOptionalDate;
@@ -75,6 +79,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.providers.media.R;
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
+import com.android.providers.media.scan.ModernMediaScanner.ExcludedDirs;
 import com.android.providers.media.tests.utils.Timer;
 import com.android.providers.media.util.FileUtils;
 
@@ -91,6 +96,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Optional;
 
@@ -172,6 +178,23 @@ public class ModernMediaScannerTest {
         assertEquals(42, (int) parseOptional(42).get());
     }
 
+    @Test
+    public void testComputeNextBatchSize() throws Exception {
+        final long targetNanos = TARGET_BATCH_MILLIS * 1_000_000;
+
+        // Cheap batches grow, but no more than doubling
+        assertEquals(64, computeNextBatchSize(32, 32, targetNanos / 100));
+        assertEquals(MAX_BATCH_SIZE, computeNextBatchSize(MAX_BATCH_SIZE, MAX_BATCH_SIZE, 1));
+
+        // Expensive batches shrink to what would have fit in the budget
+        assertEquals(100, computeNextBatchSize(200, 200, targetNanos * 2));
+        assertEquals(MIN_BATCH_SIZE, computeNextBatchSize(64, 64, targetNanos * 10));
+
+        // Partial batches leave the size untouched
+        assertEquals(128, computeNextBatchSize(128, 3, targetNanos * 10));
+        assertEquals(128, computeNextBatchSize(128, 0, 0));
+    }
+
     @Test
     public void testParseOptionalOrZero() throws Exception {
         assertFalse(parseOptionalOrZero(-1).isPresent());
@@ -681,6 +704,68 @@ public class ModernMediaScannerTest {
         mModern.scanDirectory(mDir, REASON_UNKNOWN);
     }
 
+    @Test
+    public void testScan_Parallel() throws Exception {
+        final ModernMediaScanner parallel = new ModernMediaScanner(mIsolatedContext,
+                /* scanThreadCount */ 4);
+        for (int i = 0; i < 10; i++) {
+            stage(R.raw.test_audio, new File(mDir, "audio" + i + ".mp3"));
+            stage(R.raw.test_video, new File(mDir, "video" + i + ".mp4"));
+            stage(R.raw.test_image, new File(mDir, "image" + i + ".jpg"));
+        }
+
+        parallel.scanDirectory(mDir, REASON_UNKNOWN);
+
+        assertQueryCount(10, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI);
+        assertQueryCount(10, MediaStore.Video.Media.EXTERNAL_CONTENT_URI);
+        assertQueryCount(10, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+
+        // Confirm that metadata extracted by worker threads was committed
+        try (Cursor cursor = mIsolatedResolver
+                .query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                assertEquals(1280, cursor.getLong(cursor.getColumnIndex(MediaColumns.WIDTH)));
+                assertEquals(720, cursor.getLong(cursor.getColumnIndex(MediaColumns.HEIGHT)));
+            }
+        }
+    }
+
+    @Test
+    public void testScan_Idle_SkipsUnchangedDirectory() throws Exception {
+        final File archiveDir = new File(mDir, "archive");
+        archiveDir.mkdirs();
+        stage(R.raw.test_image, new File(archiveDir, "red.jpg"));
+
+        mModern.scanDirectory(mDir, REASON_UNKNOWN);
+        assertQueryCount(1, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        assertTrue(FileUtils.getDirectoryFingerprint(archiveDir).isPresent());
+
+        // Unchanged directory is skipped, but its contents must be kept
+        mModern.scanDirectory(mDir, REASON_IDLE);
+        assertQueryCount(1, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+
+        // Adding a file changes the fingerprint, so it's picked up
+        stage(R.raw.test_image, new File(archiveDir, "blue.jpg"));
+        mModern.scanDirectory(mDir, REASON_IDLE);
+        assertQueryCount(2, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+    }
+
+    @Test
+    public void testScan_Idle_IgnoresFingerprintOfOtherDatabase() throws Exception {
+        final File archiveDir = new File(mDir, "archive");
+        archiveDir.mkdirs();
+        stage(R.raw.test_image, new File(archiveDir, "red.jpg"));
+
+        // Fingerprint left behind by a database that was since wiped, which
+        // otherwise still matches what's on disk
+        FileUtils.setDirectoryFingerprint(archiveDir, Optional.of(
+                ModernMediaScanner.buildDirectoryFingerprint("0:stale-uuid",
+                        archiveDir.lastModified(), 1)));
+
+        mModern.scanDirectory(mDir, REASON_IDLE);
+        assertQueryCount(1, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+    }
+
     @Test
     public void testScan_missingDir() throws Exception {
         File newDir = new File(mDir, "new-dir");
@@ -720,12 +805,30 @@ public class ModernMediaScannerTest {
     }
 
     @Test
-    public void testScan_MaxExcludeNomediaDirs_DoesNotThrowException() throws Exception {
-        // Create MAX_EXCLUDE_DIRS + 50 nomedia dirs in mDir
-        // (Need to add 50 as MAX_EXCLUDE_DIRS is a safe limit;
-        // 499 would have been too close to the exception limit)
+    public void testExcludedDirs() throws Exception {
+        final ExcludedDirs dirs = new ExcludedDirs(Arrays.asList(
+                "/sdcard/foo", "/sdcard/foo/bar", "/sdcard/foo-bar", "/sdcard/Baz"));
+
+        assertTrue(dirs.contains("/sdcard/foo"));
+        assertTrue(dirs.contains("/sdcard/foo/bar/red.jpg"));
+        assertTrue(dirs.contains("/sdcard/foo-bar/red.jpg"));
+        assertTrue(dirs.contains("/sdcard/baz/red.jpg"));
+        assertTrue(dirs.contains("/sdcard/BAZ"));
+
+        assertFalse(dirs.contains(null));
+        assertFalse(dirs.contains("/sdcard"));
+        assertFalse(dirs.contains("/sdcard/fo"));
+        assertFalse(dirs.contains("/sdcard/foobar/red.jpg"));
+        assertFalse(dirs.contains("/sdcard/foo.bar"));
+        assertFalse(new ExcludedDirs(Arrays.asList()).contains("/sdcard/foo"));
+    }
+
+    @Test
+    public void testScan_ManyExcludeNomediaDirs_DoesNotThrowException() throws Exception {
+        // Create more nomedia dirs than could ever fit in a single SQL
+        // expression (see SQLITE_MAX_EXPR_DEPTH in sqlite3.c)
         // Mark them as non-dirty so that they are excluded from scans
-        for (int i = 0 ; i < (MAX_EXCLUDE_DIRS + 50) ; i++) {
+        for (int i = 0 ; i < 1000 ; i++) {
             createCleanNomediaDir(mDir);
         }
 
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CopyOnWriteSparseArrayTest {
+    @Test
+    public void testSimple() {
+        final CopyOnWriteSparseArray<String> array = new CopyOnWriteSparseArray<>();
+        assertNull(array.get(10001));
+
+        array.put(10001, "a");
+        array.put(10002, "b");
+        assertEquals("a", array.get(10001));
+        assertEquals("b", array.get(10002));
+
+        array.remove(10001);
+        assertNull(array.get(10001));
+        assertEquals("b", array.get(10002));
+
+        array.clear();
+        assertNull(array.get(10002));
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        final CopyOnWriteSparseArray<String> array = new CopyOnWriteSparseArray<>();
+        final long generation = array.getGeneration();
+        assertEquals("a", array.putIfAbsent(10001, "a", generation));
+        assertEquals("a", array.get(10001));
+
+        // The first value stored wins
+        assertEquals("a", array.putIfAbsent(10001, "b", generation));
+        assertEquals("a", array.get(10001));
+
+        // Any removal in the meantime means the value may be stale
+        array.remove(10001);
+        assertEquals("b", array.putIfAbsent(10001, "b", generation));
+        assertNull(array.get(10001));
+
+        assertEquals("b", array.putIfAbsent(10001, "b", array.getGeneration()));
+        assertEquals("b", array.get(10001));
+    }
+}
@@ -68,6 +68,7 @@ import static org.junit.Assert.fail;
 
 import android.content.ContentValues;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.MediaStore;
 import android.provider.MediaStore.MediaColumns;
@@ -924,6 +925,66 @@ public class FileUtilsTest {
         assertThat(FileUtils.isDirectoryHidden(hiddenDirNomedia)).isTrue();
     }
 
+    @Test
+    public void testIsDirectoryHidden_NoMediaCache() throws Exception {
+        FileUtils.setNoMediaCacheEnabled(true);
+        try {
+            File dir = getNewDirInDownload("testDirectory");
+            File subDir = new File(dir, "sub");
+            assertThat(subDir.mkdir()).isTrue();
+            assertThat(FileUtils.isDirectoryHidden(dir)).isFalse();
+            assertThat(FileUtils.getTopLevelNoMedia(subDir)).isNull();
+
+            // Creating a .nomedia is visible once invalidated
+            File nomedia = new File(dir, ".nomedia");
+            assertThat(nomedia.createNewFile()).isTrue();
+            FileUtils.invalidateNoMediaCache(nomedia);
+            assertThat(FileUtils.isDirectoryHidden(dir)).isTrue();
+            assertThat(FileUtils.getTopLevelNoMedia(subDir)).isEqualTo(dir);
+
+            // Other files don't affect cached state
+            assertThat(nomedia.delete()).isTrue();
+            FileUtils.invalidateNoMediaCache(new File(dir, "test.jpg"));
+            assertThat(FileUtils.isDirectoryHidden(dir)).isTrue();
+
+            // Invalidating a directory covers everything beneath it, regardless of case
+            FileUtils.invalidateNoMediaCacheForDirectory(
+                    new File(dir.getParentFile(), dir.getName().toUpperCase(Locale.ROOT)));
+            assertThat(FileUtils.isDirectoryHidden(dir)).isFalse();
+            assertThat(FileUtils.getTopLevelNoMedia(subDir)).isNull();
+
+            // Deleting a .nomedia is visible once invalidated
+            assertThat(nomedia.createNewFile()).isTrue();
+            FileUtils.invalidateNoMediaCacheForDirectory(dir);
+            assertThat(FileUtils.isDirectoryHidden(dir)).isTrue();
+            assertThat(nomedia.delete()).isTrue();
+            FileUtils.invalidateNoMediaCache(nomedia);
+            assertThat(FileUtils.isDirectoryHidden(dir)).isFalse();
+        } finally {
+            FileUtils.setNoMediaCacheEnabled(false);
+        }
+    }
+
+    @Test
+    public void testIsDirectoryHidden_NoMediaCacheExpires() throws Exception {
+        FileUtils.setNoMediaCacheEnabled(true);
+        try {
+            File dir = getNewDirInDownload("testDirectory");
+            assertThat(FileUtils.isDirectoryHidden(dir)).isFalse();
+
+            // A .nomedia created without invalidating the cache, e.g. on the
+            // lower file system, is only visible once the cached state expires
+            File nomedia = new File(dir, ".nomedia");
+            assertThat(nomedia.createNewFile()).isTrue();
+            assertThat(FileUtils.isDirectoryHidden(dir)).isFalse();
+
+            SystemClock.sleep(FileUtils.NOMEDIA_CACHE_TTL_MS + 100);
+            assertThat(FileUtils.isDirectoryHidden(dir)).isTrue();
+        } finally {
+            FileUtils.setNoMediaCacheEnabled(false);
+        }
+    }
+
     @Test
     public void testDirectoryDirty() throws Exception {
         File dirInDownload = getNewDirInDownload("testDirectoryDirty");
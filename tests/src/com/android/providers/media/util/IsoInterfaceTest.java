@@ -16,6 +16,7 @@
 
 package com.android.providers.media.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -31,6 +32,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -84,6 +86,19 @@ public class IsoInterfaceTest {
         assertEquals("3F9DD7A46B26513A7C35272F0D623A06", xmp.getOriginalDocumentId());
     }
 
+    @Test
+    public void testXmp_FileDescriptor() throws Exception {
+        final File file = stageFile(R.raw.test_video_xmp);
+        try (FileInputStream is = new FileInputStream(file)) {
+            final IsoInterface mp4 = IsoInterface.fromFileDescriptor(is.getFD());
+            final XmpInterface xmp = XmpInterface.fromContainer(mp4);
+
+            assertEquals("xmp.did:041dfd42-0b46-4302-918a-836fba5016ed", xmp.getDocumentId());
+            assertArrayEquals(IsoInterface.fromFile(file).getBoxBytes(IsoInterface.BOX_XMP),
+                    mp4.getBoxBytes(IsoInterface.BOX_XMP));
+        }
+    }
+
     @Test
     public void testIsoMeta() throws Exception {
         final IsoInterface isoMeta = IsoInterface.fromFile(stageFile(R.raw.test_video_xmp));
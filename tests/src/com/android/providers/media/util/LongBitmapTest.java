@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public class LongBitmapTest {
+
+    @Test
+    public void testSimple() {
+        final LongBitmap set = new LongBitmap();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1));
+
+        assertTrue(set.add(1));
+        assertTrue(set.add(65536));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertFalse(set.add(1));
+        assertEquals(3, set.size());
+
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(65536));
+        assertTrue(set.contains(Long.MAX_VALUE));
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(65535));
+        assertFalse(set.contains(-1));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegative() {
+        new LongBitmap().add(-1);
+    }
+
+    @Test
+    public void testDense() {
+        final LongBitmap set = new LongBitmap();
+        // Enough to convert several chunks into bitmaps
+        for (long i = 0; i < 200_000; i += 2) {
+            set.add(i);
+        }
+        assertEquals(100_000, set.size());
+        for (long i = 0; i < 200_000; i++) {
+            assertEquals(i % 2 == 0, set.contains(i));
+        }
+    }
+
+    @Test
+    public void testAddAll() {
+        final LongBitmap set = new LongBitmap();
+        set.addAll(LongArray.wrap(new long[] { 3, 1, 2, 3 }));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(1));
+        assertTrue(set.contains(2));
+        assertTrue(set.contains(3));
+    }
+
+    @Test
+    public void testRandom() {
+        final Random random = new Random(42);
+        final Set<Long> expected = new HashSet<>();
+        final LongBitmap set = new LongBitmap();
+        for (int i = 0; i < 50_000; i++) {
+            final long value = random.nextInt(1_000_000);
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long i = 0; i < 1_000_000; i++) {
+            assertEquals(expected.contains(i), set.contains(i));
+        }
+    }
+}
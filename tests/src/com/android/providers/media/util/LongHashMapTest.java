@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class LongHashMapTest {
+
+    @Test
+    public void testSimple() {
+        final LongHashMap<String> map = new LongHashMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(-1, "minus one"));
+        assertNull(map.put(Long.MAX_VALUE, "max"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals(3, map.size());
+
+        assertEquals("uno", map.get(1));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("max", map.get(Long.MAX_VALUE));
+        assertFalse(map.containsKey(0));
+
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(2, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(-1));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValue() {
+        new LongHashMap<String>().put(1, null);
+    }
+
+    @Test
+    public void testBounded() {
+        final List<Long> evicted = new ArrayList<>();
+        final LongHashMap<String> map = new LongHashMap<String>(3) {
+            @Override
+            protected void entryEvicted(long key, String value) {
+                evicted.add(key);
+            }
+        };
+        map.put(1, "a");
+        map.put(2, "b");
+        map.put(3, "c");
+        // Replacing a value doesn't evict anything
+        map.put(1, "d");
+        assertEquals(3, map.size());
+        assertTrue(evicted.isEmpty());
+
+        map.put(4, "e");
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey(1));
+        assertTrue(map.containsKey(4));
+        assertEquals(Arrays.asList(1L), evicted);
+
+        // Keys removed earlier aren't reported as evicted
+        map.remove(2);
+        map.put(5, "f");
+        map.put(6, "g");
+        assertEquals(Arrays.asList(1L, 3L), evicted);
+        assertEquals(3, map.size());
+        assertTrue(map.containsKey(4));
+        assertTrue(map.containsKey(5));
+        assertTrue(map.containsKey(6));
+    }
+
+    @Test
+    public void testBoundedReinsertedKey() {
+        final List<Long> evicted = new ArrayList<>();
+        final LongHashMap<String> map = new LongHashMap<String>(2) {
+            @Override
+            protected void entryEvicted(long key, String value) {
+                evicted.add(key);
+            }
+        };
+        map.put(1, "a");
+        map.put(2, "b");
+        // Inserting a removed key again makes it the newest
+        map.remove(1);
+        map.put(1, "c");
+        map.put(3, "d");
+        assertEquals(Arrays.asList(2L), evicted);
+        assertEquals("c", map.get(1));
+
+        map.put(4, "e");
+        assertEquals(Arrays.asList(2L, 1L), evicted);
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey(3));
+        assertTrue(map.containsKey(4));
+    }
+
+    @Test
+    public void testBoundedRandom() {
+        final Random random = new Random(42);
+        final int maxSize = 100;
+        final Map<Long, Integer> expected = new LinkedHashMap<Long, Integer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                return size() > maxSize;
+            }
+        };
+        final LongHashMap<Integer> map = new LongHashMap<>(maxSize);
+        for (int i = 0; i < 100_000; i++) {
+            final long key = random.nextInt(300);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 300; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testRandom() {
+        final Random random = new Random(42);
+        final Map<Long, Integer> expected = new HashMap<>();
+        final LongHashMap<Integer> map = new LongHashMap<>();
+        // Narrow key range so that removals regularly shift colliding entries
+        for (int i = 0; i < 100_000; i++) {
+            final long key = random.nextInt(5_000) * 65_536L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long i = 0; i < 5_000; i++) {
+            final long key = i * 65_536L;
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testSet() {
+        final LongHashSet set = new LongHashSet(2);
+        assertTrue(set.add(10));
+        assertFalse(set.add(10));
+        assertTrue(set.add(20));
+        assertTrue(set.add(30));
+        assertEquals(2, set.size());
+        assertFalse(set.contains(10));
+        assertTrue(set.remove(20));
+        assertFalse(set.remove(20));
+        assertTrue(set.contains(30));
+    }
+}
@@ -40,7 +40,8 @@ public class MetricsTest {
         final String volumeName = MediaStore.VOLUME_EXTERNAL_PRIMARY;
         final String packageName = "com.example";
 
-        Metrics.logScan(volumeName, MediaScanner.REASON_UNKNOWN, 42, 42, 42, 42, 42);
+        Metrics.logScan(volumeName, MediaScanner.REASON_UNKNOWN, 42, 42, 42, 42, 42, 42, 42, 42,
+                42);
         Metrics.logDeletionPersistent(volumeName, "scanReason", new int[] { 42 });
         Metrics.logDeletion(volumeName, 42, packageName, 42, new int[] { 42 });
         Metrics.logPermissionGranted(volumeName, 42, packageName, 42);
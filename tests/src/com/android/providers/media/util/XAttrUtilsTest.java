@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.UserHandle;
+import android.provider.MediaStore.Files.FileColumns;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.FileAccessAttributes;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class XAttrUtilsTest {
+    @Test
+    public void testGetDataMediaPath() {
+        final int userId = UserHandle.myUserId();
+        assertEquals("/data/media/" + userId + "/DCIM/Camera/a.jpg",
+                XAttrUtils.getDataMediaPath("/storage/emulated/" + userId + "/DCIM/Camera/a.jpg"));
+        assertEquals("/data/media/" + userId + "/a.jpg",
+                XAttrUtils.getDataMediaPath("/storage/emulated/" + userId + "/a.jpg"));
+        assertNull(XAttrUtils.getDataMediaPath("/storage/0000-0000/DCIM/a.jpg"));
+        assertNull(XAttrUtils.getDataMediaPath("/storage/emulated/" + (userId + 1) + "/a.jpg"));
+    }
+
+    @Test
+    public void testSerializeFileAccessAttributes() {
+        final FileAccessAttributes attrs = new FileAccessAttributes(42,
+                FileColumns.MEDIA_TYPE_IMAGE, /* isPending */ true, /* isTrashed */ false,
+                /* ownerId */ -1, /* ownerPackageName */ null);
+        final FileAccessAttributes res = XAttrUtils.deserializeFileAccessAttributes(
+                XAttrUtils.serializeFileAccessAttributes(attrs));
+        assertEquals(42, res.getId());
+        assertEquals(FileColumns.MEDIA_TYPE_IMAGE, res.getMediaType());
+        assertTrue(res.isPending());
+        assertFalse(res.isTrashed());
+        assertEquals(-1, res.getOwnerId());
+    }
+}